@@ -0,0 +1,407 @@
+package server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 JMH-Microbenchmarks der heissen Pfade des Chat-Servers. Liegt im Paket server, damit die
+ *          paketinternen Methoden (handleLine, broadcast, writeServerLog, ...) ohne Netzwerk direkt aufgerufen werden
+ *          koennen; die Mitglieder des Raums sind Verbindungen im Speicher, die die Frames nur zaehlen. Jeder Fall
+ *          laeuft in eigenen JVMs (@Fork), das JIT-Profil eines Falls beeinflusst also nicht den naechsten.
+ *
+ *          Faelle: register, usrs (zwischengespeichert) und usrsRebuild (nach jeder Aenderung neu aufgebaut),
+ *          broadcast an 10 bis 10000 Writer, parse (Befehlserkennung und Kodierung einer Zeile bzw. eines Frames) und
+ *          writeServerLog (mit der Rate verworfener Eintraege als Zusatzmetrik "dropped").
+ *
+ *          Aufruf: gradle :jmh:jmh [-Pjmh="<regex> -p writers=1000 ..."]. Gemessen wird mit -prof gc (B/op in
+ *          gc.alloc.rate.norm), die Ergebnisse stehen als JSON in jmh/build/results/jmh/results.json und lassen sich
+ *          zwischen zwei Commits vergleichen.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HotPathBenchmarks {
+
+	/**
+	 * Mitglied des Chat-Raums im Speicher: nimmt Frames an und zaehlt ihre Bytes
+	 */
+	static class Member implements Connection {
+		private final String name;
+		private final byte[] nameBytes;
+		private int userId;
+		private final boolean binary;
+		private Room room;
+		long bytes;
+
+		Member(String name, int userId, boolean binary) {
+			this.name = name;
+			this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			this.userId = userId;
+			this.binary = binary;
+		}
+
+		@Override
+		public String getNickname() {
+			return name;
+		}
+
+		@Override
+		public byte[] getNicknameBytes() {
+			return nameBytes;
+		}
+
+		@Override
+		public int getUserId() {
+			return userId;
+		}
+
+		@Override
+		public boolean isBinary() {
+			return binary;
+		}
+
+		@Override
+		public Room getRoom() {
+			return room;
+		}
+
+		@Override
+		public void setRoom(Room room) {
+			this.room = room;
+		}
+
+		@Override
+		public boolean send(Frame frame) {
+			frame = frame.encodedFor(binary);
+			if(frame != null) {
+				bytes += frame.length();
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isBackedUp() {
+			return false;
+		}
+
+		@Override
+		public boolean awaitDrained(long deadline) {
+			return true;
+		}
+
+		@Override
+		public void backOff(List<Connection> backedUp, long deadline) {
+		}
+
+		@Override
+		public void submit(Room room, Frame frame, long received) {
+			room.submit(frame, received);
+		}
+
+		@Override
+		public int getQueueDepth() {
+			return 0;
+		}
+
+		@Override
+		public long getDroppedMessages() {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Server ohne Netzwerk, Log-Datei, Journal und Beitrittsmeldungen
+	 */
+	static ChatServer server(String... extra) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("headless=true");
+		args.add("logFile=none");
+		args.add("journalDir=none");
+		args.add("joinNotices=false");
+		args.add("historyOnJoin=0");
+		for(String arg : extra) {
+			args.add(arg);
+		}
+		return new ChatServer(ServerConfig.load(args.toArray(new String[args.size()])));
+	}
+
+	/**
+	 * Meldet ein Mitglied an und nimmt es in den Raum auf
+	 */
+	static Member join(ChatServer server, String name, boolean binary) {
+		Member member = new Member(name, -1, binary);
+		member.userId = server.register(name, member);
+		server.joinRoom(member);
+		return member;
+	}
+
+	/**
+	 * Registry mit unterschiedlich vielen angemeldeten Benutzern
+	 */
+	@State(Scope.Thread)
+	public static class Registry {
+		@Param({ "0", "10000" })
+		public int occupied;
+
+		UserRegistry users;
+		String[] names;
+		Member connection;
+		int next;
+
+		@Setup
+		public void setUp() {
+			users = new UserRegistry(new LatencyHistogram());
+			for(int i = 0; i < occupied; i++) {
+				users.register("member" + i, new Member("member" + i, i, false));
+			}
+			names = new String[1024];
+			for(int i = 0; i < names.length; i++) {
+				names[i] = "user" + i;
+			}
+			connection = new Member("user", 0, false);
+		}
+	}
+
+	/**
+	 * Nickname reservieren und wieder freigeben
+	 */
+	@Benchmark
+	public int register(Registry state) {
+		String name = state.names[state.next++ & (state.names.length - 1)];
+		int id = state.users.register(name, state.connection);
+		state.users.unregister(name, state.connection);
+		return id;
+	}
+
+	/**
+	 * Server mit angemeldeten Benutzern, die /USRS abfragen
+	 */
+	@State(Scope.Thread)
+	public static class Users {
+		@Param({ "10", "100", "1000" })
+		public int members;
+
+		ChatServer server;
+		Member requester;
+		Member guest;
+		final byte[] line = "/USRS".getBytes(StandardCharsets.US_ASCII);
+
+		@Setup
+		public void setUp() throws Exception {
+			server = server();
+			for(int i = 1; i < members; i++) {
+				server.register("member" + i, new Member("member" + i, i, false));
+			}
+			requester = new Member("requester", 0, false);
+			server.register("requester", requester);
+			guest = new Member("guest", members, false);
+		}
+
+		@TearDown
+		public void tearDown() {
+			server.stop();
+		}
+	}
+
+	/**
+	 * /USRS: Antwort aus dem Schnappschuss
+	 */
+	@Benchmark
+	public long usrs(Users state) {
+		state.server.handleLine(state.requester, state.line, 0, state.line.length, System.nanoTime());
+		return state.requester.bytes;
+	}
+
+	/**
+	 * /USRS: Antwort nach jeder Aenderung der Benutzerliste neu aufgebaut
+	 */
+	@Benchmark
+	public long usrsRebuild(Users state) {
+		state.server.register("guest", state.guest);
+		state.server.handleLine(state.requester, state.line, 0, state.line.length, System.nanoTime());
+		state.server.leave(state.guest);
+		return state.requester.bytes;
+	}
+
+	/**
+	 * Raum mit writers Mitgliedern, davon binaryPercent Prozent im Binaerprotokoll
+	 */
+	@State(Scope.Thread)
+	public static class Writers {
+		@Param({ "10", "100", "1000", "10000" })
+		public int writers;
+
+		@Param({ "0", "50" })
+		public int binaryPercent;
+
+		ChatServer server;
+		Member first;
+		Frame frame;
+
+		@Setup
+		public void setUp() throws Exception {
+			server = server();
+			for(int i = 0; i < writers; i++) {
+				Member member = join(server, "member" + i, i % 100 < binaryPercent);
+				if(first == null) {
+					first = member;
+				}
+			}
+			String line = "/MSGE(12:00) member0: \"hello world, this is a chat message\"";
+			frame = Frame.of(line, BinaryProtocol.chat(0, 0L, "hello world, this is a chat message"));
+		}
+
+		@TearDown
+		public void tearDown() {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Verteilt ein fertig kodiertes Frame an alle Writer
+	 */
+	@Benchmark
+	public long broadcast(Writers state) {
+		state.server.broadcast(state.frame);
+		return state.first.bytes;
+	}
+
+	/**
+	 * Absender allein im Raum; input: msge (Nachricht), quitOther (/QUIT mit fremdem Nickname, wird zur Nachricht)
+	 * oder frame (Nachricht im Binaerprotokoll)
+	 */
+	@State(Scope.Thread)
+	public static class Input {
+		@Param({ "msge", "quitOther", "frame" })
+		public String input;
+
+		ChatServer server;
+		Member sender;
+		byte[] data;
+		boolean frame;
+
+		@Setup
+		public void setUp() throws Exception {
+			server = server();
+			frame = input.equals("frame");
+			sender = join(server, "sender", frame);
+			if(frame) {
+				ByteBuffer buffer = BinaryProtocol.text(BinaryProtocol.MSGE, "hello world, this is a chat message");
+				data = new byte[buffer.remaining()];
+				buffer.get(data);
+			} else if(input.equals("quitOther")) {
+				data = "/QUITsomebody".getBytes(StandardCharsets.UTF_8); // kein eigener Nickname: Nachricht
+			} else {
+				data = "/MSGEhello world, this is a chat message".getBytes(StandardCharsets.UTF_8);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Befehlserkennung und Kodierung: eine empfangene Zeile bzw. ein Frame wird wie vom Handler verarbeitet
+	 */
+	@Benchmark
+	public long parse(Input state) {
+		if(state.frame) {
+			state.server.handleFrame(state.sender, state.data, 0, state.data.length, System.nanoTime());
+		} else {
+			state.server.handleLine(state.sender, state.data, 0, state.data.length, System.nanoTime());
+		}
+		return state.sender.bytes;
+	}
+
+	/**
+	 * Server, dessen Log in den Ring-Puffer und je nach sink zusaetzlich in eine Datei geschrieben wird
+	 */
+	@State(Scope.Thread)
+	public static class Log {
+		@Param({ "none", "file" })
+		public String sink;
+
+		ChatServer server;
+		File file;
+
+		@Setup
+		public void setUp() throws Exception {
+			if(sink.equals("file")) {
+				file = File.createTempFile("bench", ".log");
+				server = server("logFile=" + file.getPath(), "logMaxBytes=" + (64L << 20), "logMaxFiles=1");
+			} else {
+				server = server();
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			server.stop();
+			if(file != null) {
+				for(File f : file.getParentFile().listFiles()) {
+					if(f.getName().startsWith(file.getName())) {
+						f.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Verworfene Log-Eintraege je Messrunde; JMH gibt sie als Rate neben dem Durchsatz aus
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class LogDrops {
+		public long dropped;
+		long before; // Stand beim ersten Aufruf der Runde, -1 bis dahin
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			dropped = 0;
+			before = -1;
+		}
+	}
+
+	/**
+	 * Durchsatz der Produzenten von writeServerLog; verworfene Eintraege zeigen, dass der Consumer nicht mithaelt
+	 */
+	@Benchmark
+	public void writeServerLog(Log state, LogDrops drops) {
+		if(drops.before < 0) {
+			drops.before = state.server.getLogDropped();
+		}
+		state.server.writeServerLog("member0", " /USRS");
+		drops.dropped = state.server.getLogDropped() - drops.before;
+	}
+}
@@ -0,0 +1,345 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Misst, wie viele Bytes die Server-Threads (Event-Loops bzw. Handler und Writer) pro Nachricht auf dem
+ *          Heap allokieren. Der Server laeuft im selben Prozess, gezaehlt wird ueber
+ *          com.sun.management.ThreadMXBean#getThreadAllocatedBytes nur fuer Threads namens "nio-loop-*",
+ *          "handler-*" und "room-shard-*"; Sender und Empfaenger zaehlen also nicht mit. Gemessen wird nach einer
+ *          Aufwaermrunde. Im Modus VIRTUAL sind die Handler-Threads nicht aufzaehlbar, er wird daher nicht
+ *          unterstuetzt.
+ *
+ *          Aufruf: java benchmark.AllocationBenchmark [modes=nio,platform] [receivers=20] [senders=4]
+ *          [messages=20000] [warmup=20000] [burst=50] [pause=1] [size=100] [protocol=text|binary]
+ */
+public class AllocationBenchmark {
+
+	private final String mode;
+	private final int receivers;
+	private final int senders;
+	private final int messages;
+	private final int warmup;
+	private final int burst;
+	private final long pause;
+	private final boolean binary;
+	private final byte[] padding;
+
+	public AllocationBenchmark(String mode, int receivers, int senders, int messages, int warmup, int burst, long pause,
+			int size, boolean binary) {
+		this.mode = mode;
+		this.receivers = receivers;
+		this.senders = senders;
+		this.messages = messages;
+		this.warmup = warmup;
+		this.burst = burst;
+		this.pause = pause;
+		this.binary = binary;
+		this.padding = new byte[size];
+		Arrays.fill(padding, (byte) 'x');
+	}
+
+	String run() throws Exception {
+		ChatServer server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "headless=true", "logFile=none",
+				"journalDir=none", "joinNotices=false", "outboundQueueSize=100000"));
+		int port = server.start();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			List<Socket> receiving = new ArrayList<Socket>();
+			for(int r = 0; r < receivers; r++) {
+				Socket socket = new Socket("127.0.0.1", port);
+				sockets.add(socket);
+				login(socket, "r" + r);
+				receiving.add(socket);
+			}
+			List<OutputStream> sending = new ArrayList<OutputStream>();
+			for(int s = 0; s < senders; s++) {
+				Socket socket = new Socket("127.0.0.1", port);
+				sockets.add(socket);
+				login(socket, "s" + s);
+				drain(socket.getInputStream());
+				sending.add(socket.getOutputStream());
+			}
+
+			round(receiving, sending, warmup);
+			long[] ids = serverThreads();
+			long before = allocated(ids);
+			round(receiving, sending, messages);
+			long bytes = allocated(ids) - before;
+
+			long total = (long) senders * messages;
+			long deliveries = total * (receivers + senders);
+			return String.format("%-8s %-8s %10d %12d %14.1f %14.2f", mode, binary ? "binary" : "text", total, bytes,
+					bytes / (double) total, bytes / (double) deliveries);
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Jeder Sender schickt count Nachrichten; kehrt zurueck, wenn alle Empfaenger alle Nachrichten gelesen haben
+	 */
+	private void round(List<Socket> receiving, List<OutputStream> sending, int count) throws Exception {
+		final long expected = (long) senders * count;
+		final CountDownLatch done = new CountDownLatch(receiving.size());
+		for(int r = 0; r < receiving.size(); r++) {
+			final InputStream in = receiving.get(r).getInputStream();
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						count(in, expected);
+					} catch(IOException e) {
+						System.err.println(e);
+					}
+					done.countDown();
+				}
+			}, "receiver-" + r).start();
+		}
+		List<Thread> senderThreads = new ArrayList<Thread>();
+		for(int s = 0; s < sending.size(); s++) {
+			final OutputStream out = sending.get(s);
+			final int messages = count;
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						byte[] message = message();
+						for(int i = 0; i < messages; i++) {
+							out.write(message);
+							if((i + 1) % burst == 0) {
+								Thread.sleep(pause);
+							}
+						}
+					} catch(IOException | InterruptedException e) {
+						System.err.println(e);
+					}
+				}
+			}, "sender-" + s);
+			senderThreads.add(sender);
+			sender.start();
+		}
+		for(Thread sender : senderThreads) {
+			sender.join();
+		}
+		done.await();
+	}
+
+	/**
+	 * @return eine kodierte Nachricht im ausgehandelten Protokoll
+	 */
+	private byte[] message() {
+		if(!binary) {
+			byte[] line = new byte[5 + padding.length + 1];
+			System.arraycopy("/MSGE".getBytes(StandardCharsets.US_ASCII), 0, line, 0, 5);
+			System.arraycopy(padding, 0, line, 5, padding.length);
+			line[line.length - 1] = '\n';
+			return line;
+		}
+		return frame(4, padding);
+	}
+
+	/**
+	 * Liest, bis expected Nachrichten angekommen sind. Im Textprotokoll wird jede Zeile gezaehlt, im Binaerprotokoll
+	 * jedes Frame.
+	 */
+	private void count(InputStream in, long expected) throws IOException {
+		byte[] buffer = new byte[65536];
+		long n = 0;
+		int skip = 0; // Binaerprotokoll: noch zu ueberspringende Bytes des aktuellen Frames
+		byte[] header = new byte[4];
+		int headerBytes = 0;
+		while(n < expected) {
+			int read = in.read(buffer);
+			if(read < 0) {
+				throw new IOException("Verbindung beendet nach " + n + " Nachrichten");
+			}
+			for(int i = 0; i < read;) {
+				if(!binary) {
+					if(buffer[i++] == '\n') {
+						n++;
+					}
+				} else if(skip > 0) {
+					int k = Math.min(skip, read - i);
+					skip -= k;
+					i += k;
+				} else {
+					header[headerBytes++] = buffer[i++];
+					if(headerBytes == 4) {
+						skip = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8)
+								| (header[3] & 0xFF);
+						headerBytes = 0;
+						n++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Meldet einen Client an (im Binaerprotokoll nach /OPTSbinary) und wartet auf die Bestaetigung
+	 */
+	private void login(Socket socket, String name) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		expect(in, "/NAME");
+		if(binary) {
+			out.write("/OPTSbinary\n".getBytes(StandardCharsets.US_ASCII));
+			expect(in, "/OPTSbinary");
+			out.write(frame(2, name.getBytes(StandardCharsets.UTF_8)));
+			readFrame(in); // ACPT
+			readFrame(in); // Zuordnung der User-IDs
+		} else {
+			out.write(("/USER" + name + "\n").getBytes(StandardCharsets.UTF_8));
+			expect(in, "/ACPT");
+		}
+	}
+
+	private static void expect(InputStream in, String line) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while((b = in.read()) != '\n') {
+			if(b < 0) {
+				throw new IOException("Verbindung beendet");
+			}
+			sb.append((char) b);
+		}
+		if(!sb.toString().equals(line)) {
+			throw new IOException("erwartet " + line + ", erhalten " + sb);
+		}
+	}
+
+	private static void readFrame(InputStream in) throws IOException {
+		int length = 0;
+		for(int i = 0; i < 4; i++) {
+			length = (length << 8) | in.read();
+		}
+		for(int i = 0; i < length; i++) {
+			if(in.read() < 0) {
+				throw new IOException("Verbindung beendet");
+			}
+		}
+	}
+
+	private static byte[] frame(int opcode, byte[] payload) {
+		byte[] frame = new byte[5 + payload.length];
+		int length = 1 + payload.length;
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		frame[4] = (byte) opcode;
+		System.arraycopy(payload, 0, frame, 5, payload.length);
+		return frame;
+	}
+
+	/**
+	 * Liest die Nachrichten an einen Sender im Hintergrund, damit seine Warteschlange nicht ueberlaeuft
+	 */
+	private void drain(final InputStream in) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[65536];
+				try {
+					while(in.read(buffer) >= 0) {
+					}
+				} catch(IOException e) {
+				}
+			}
+		}, "drain");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return IDs aller Threads des Servers, die Nachrichten verarbeiten
+	 */
+	private static long[] serverThreads() {
+		List<Long> ids = new ArrayList<Long>();
+		for(Thread t : Thread.getAllStackTraces().keySet()) {
+			if(t.getName().startsWith("nio-loop-") || t.getName().startsWith("handler-")
+					|| t.getName().startsWith("room-shard-")) {
+				ids.add(t.getId());
+			}
+		}
+		long[] result = new long[ids.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Summe der bisher allokierten Bytes der Threads
+	 */
+	private static long allocated(long[] ids) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long sum = 0;
+		for(long bytes : threads.getThreadAllocatedBytes(ids)) {
+			if(bytes > 0) {
+				sum += bytes;
+			}
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String modes = "nio,platform";
+		int receivers = 20;
+		int senders = 4;
+		int messages = 20000;
+		int warmup = 20000;
+		int burst = 50;
+		long pause = 1;
+		int size = 100;
+		String protocol = "text";
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("modes")) {
+				modes = kv[1];
+			} else if(kv[0].equals("receivers")) {
+				receivers = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("senders")) {
+				senders = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("messages")) {
+				messages = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("warmup")) {
+				warmup = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("burst")) {
+				burst = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("pause")) {
+				pause = Long.parseLong(kv[1]);
+			} else if(kv[0].equals("size")) {
+				size = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("protocol")) {
+				protocol = kv[1];
+			}
+		}
+
+		System.out.println(String.format("%-8s %-8s %10s %12s %14s %14s", "mode", "protocol", "messages", "bytes",
+				"bytes/msg", "bytes/delivery"));
+		for(String mode : modes.split(",")) {
+			for(String p : protocol.split(",")) {
+				System.out.println(new AllocationBenchmark(mode, receivers, senders, messages, warmup, burst, pause,
+						size, p.equals("binary")).run());
+			}
+		}
+	}
+}
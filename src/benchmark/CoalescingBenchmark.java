@@ -0,0 +1,219 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Misst Durchsatz und Latenz des Servers fuer verschiedene Coalescing-Fenster. Mehrere Sender schicken
+ *          Nachrichten in Bursts; jede Nachricht traegt ihren Sendezeitpunkt, die Empfaenger messen daraus die
+ *          Ende-zu-Ende-Latenz. Als Mass fuer Syscalls/Pakete wird gezaehlt, wie viele read()-Aufrufe die Empfaenger pro
+ *          Nachricht benoetigen.
+ *
+ *          Aufruf: java benchmark.CoalescingBenchmark [modes=nio,platform] [windows=0,100,500,1000,5000]
+ *          [receivers=20] [senders=4] [messages=2000] [burst=20] [pause=10] [size=100]
+ */
+public class CoalescingBenchmark {
+
+	private final String mode;
+	private final long window;
+	private final int receivers;
+	private final int senders;
+	private final int messages;
+	private final int burst;
+	private final long pause;
+	private final String padding;
+
+	private final AtomicLong reads = new AtomicLong();
+
+	public CoalescingBenchmark(String mode, long window, int receivers, int senders, int messages, int burst,
+			long pause, int size) {
+		this.mode = mode;
+		this.window = window;
+		this.receivers = receivers;
+		this.senders = senders;
+		this.messages = messages;
+		this.burst = burst;
+		this.pause = pause;
+		char[] pad = new char[size];
+		Arrays.fill(pad, 'x');
+		this.padding = new String(pad);
+	}
+
+	String run() throws Exception {
+		ChatServer server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "headless=true", "logFile=none",
+				"journalDir=none", "joinNotices=false", "coalesceWindowMicros=" + window, "outboundQueueSize=100000"));
+		int port = server.start();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			final int expected = senders * messages;
+			final long[][] latencies = new long[receivers][expected];
+			final CountDownLatch done = new CountDownLatch(receivers);
+			for(int r = 0; r < receivers; r++) {
+				Socket socket = new Socket("127.0.0.1", port);
+				sockets.add(socket);
+				final BufferedReader in = login(socket, "r" + r);
+				final long[] samples = latencies[r];
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							int n = 0;
+							String line;
+							while(n < expected && (line = in.readLine()) != null) {
+								int idx = line.indexOf("\"t");
+								if(idx >= 0) {
+									long sent = Long.parseLong(line.substring(idx + 2, line.indexOf(' ', idx)));
+									samples[n++] = System.nanoTime() - sent;
+								}
+							}
+						} catch(IOException e) {
+							System.err.println(e);
+						}
+						done.countDown();
+					}
+				}, "receiver-" + r).start();
+			}
+
+			List<Thread> senderThreads = new ArrayList<Thread>();
+			for(int s = 0; s < senders; s++) {
+				Socket socket = new Socket("127.0.0.1", port);
+				sockets.add(socket);
+				final BufferedReader in = login(socket, "s" + s);
+				final OutputStream out = socket.getOutputStream();
+				drain(in);
+				Thread sender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for(int i = 0; i < messages; i++) {
+								out.write(("/MSGEt" + System.nanoTime() + " " + padding + "\n").getBytes(StandardCharsets.UTF_8));
+								if((i + 1) % burst == 0) {
+									Thread.sleep(pause);
+								}
+							}
+						} catch(IOException | InterruptedException e) {
+							System.err.println(e);
+						}
+					}
+				}, "sender-" + s);
+				senderThreads.add(sender);
+			}
+
+			reads.set(0);
+			long start = System.nanoTime();
+			for(Thread sender : senderThreads) {
+				sender.start();
+			}
+			done.await();
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			long[] all = new long[receivers * expected];
+			for(int r = 0; r < receivers; r++) {
+				System.arraycopy(latencies[r], 0, all, r * expected, expected);
+			}
+			Arrays.sort(all);
+			return String.format("%-8s %8d %12.0f %10.3f %10.3f %10.3f", mode, window, all.length / seconds,
+					all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, reads.get() / (double) all.length);
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Meldet einen Client an; die read()-Aufrufe auf dem Socket werden gezaehlt
+	 */
+	private BufferedReader login(Socket socket, String name) throws IOException {
+		InputStream counting = new FilterInputStream(socket.getInputStream()) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				reads.incrementAndGet();
+				return super.read(b, off, len);
+			}
+		};
+		BufferedReader in = new BufferedReader(new InputStreamReader(counting, StandardCharsets.UTF_8));
+		OutputStream out = socket.getOutputStream();
+		String line;
+		while((line = in.readLine()) != null && !line.equals("/ACPT")) {
+			if(line.equals("/NAME")) {
+				out.write(("/USER" + name + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * Liest die Nachrichten an einen Sender im Hintergrund, damit seine Warteschlange nicht ueberlaeuft
+	 */
+	private void drain(final BufferedReader in) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(in.readLine() != null) {
+					}
+				} catch(IOException e) {
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String modes = "nio,platform";
+		String windows = "0,100,500,1000,5000";
+		int receivers = 20;
+		int senders = 4;
+		int messages = 2000;
+		int burst = 20;
+		long pause = 10;
+		int size = 100;
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("modes")) {
+				modes = kv[1];
+			} else if(kv[0].equals("windows")) {
+				windows = kv[1];
+			} else if(kv[0].equals("receivers")) {
+				receivers = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("senders")) {
+				senders = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("messages")) {
+				messages = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("burst")) {
+				burst = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("pause")) {
+				pause = Long.parseLong(kv[1]);
+			} else if(kv[0].equals("size")) {
+				size = Integer.parseInt(kv[1]);
+			}
+		}
+
+		System.out.println(String.format("%-8s %8s %12s %10s %10s %10s", "mode", "win[us]", "msg/s", "p50[ms]",
+				"p99[ms]", "reads/msg"));
+		for(String mode : modes.split(",")) {
+			for(String window : windows.split(",")) {
+				System.out.println(new CoalescingBenchmark(mode, Long.parseLong(window), receivers, senders, messages,
+						burst, pause, size).run());
+			}
+		}
+	}
+}
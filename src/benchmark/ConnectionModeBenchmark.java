@@ -0,0 +1,243 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Vergleicht die Ausfuehrungsmodi des Chat-Servers (PLATFORM, VIRTUAL und NIO) bei 1k, 10k und 50k
+ *          gleichzeitigen Verbindungen. Server und Clients laufen im selben Prozess; die Clients werden von einem
+ *          einzigen Selector-Thread bedient, ihr Anteil an Speicher und Threads ist in allen Modi gleich.
+ *
+ *          Aufruf: java benchmark.ConnectionModeBenchmark [modes=platform,virtual,nio] [counts=1000,10000,50000]
+ *          [sources=4] [rounds=5]
+ *
+ *          Hinweise: 50k Verbindungen brauchen ca. 100k Dateideskriptoren (ulimit -n) und mehrere Quelladressen
+ *          (127.0.0.1 ... 127.0.0.n), da pro Adresse nur ca. 28k ephemere Ports zur Verfuegung stehen. VIRTUAL benoetigt
+ *          Java 21.
+ */
+public class ConnectionModeBenchmark {
+
+	private static final int MAX_HANDSHAKES = 32; // gleichzeitige Anmeldungen, bleibt unter dem Standard-Backlog (50)
+	private static final long STALL_TIMEOUT = 30000000000L; // Abbruch, wenn sich 30s nichts bewegt
+
+	private final String mode;
+	private final int count;
+	private final int sources;
+
+	private Selector selector;
+	private final List<BenchClient> clients = new ArrayList<BenchClient>();
+	private int loggedIn;
+	private int received;
+
+	public ConnectionModeBenchmark(String mode, int count, int sources) {
+		this.mode = mode;
+		this.count = count;
+		this.sources = sources;
+	}
+
+	/**
+	 * Startet einen Server, meldet count Clients an und misst Ressourcen und Fan-out-Latenz
+	 * @return Ergebniszeile oder Fehlermeldung
+	 */
+	String run(int rounds) throws IOException {
+		ChatServer server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "headless=true", "logFile=none",
+				"journalDir=none", "maxConnections=" + (count + 16), "joinNotices=false"));
+		int port = server.start();
+		selector = Selector.open();
+		try {
+			long start = System.nanoTime();
+			connectAll(port);
+			double loginSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.gc();
+			long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			long rss = residentSetSize();
+
+			long[] fanout = new long[rounds];
+			for(int i = 0; i < rounds; i++) {
+				fanout[i] = broadcastRound(i);
+			}
+			Arrays.sort(fanout);
+
+			return String.format("%-8s %7d %9.2f %8d %9.1f %9.1f %12.2f", mode, count, loginSeconds, threads,
+					heap / 1048576.0, rss / 1048576.0, fanout[rounds / 2] / 1e6);
+		} finally {
+			for(BenchClient client : clients) {
+				client.channel.close();
+			}
+			selector.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Baut alle Verbindungen auf und fuehrt den Handshake NAME -> USER -> ACPT durch
+	 */
+	private void connectAll(int port) throws IOException {
+		int opened = 0;
+		int progress = -1;
+		long lastProgress = System.nanoTime();
+		while(loggedIn < count) {
+			if(loggedIn != progress) {
+				progress = loggedIn;
+				lastProgress = System.nanoTime();
+			} else if(System.nanoTime() - lastProgress > STALL_TIMEOUT) {
+				throw new IOException("nur " + loggedIn + " von " + count + " Clients angemeldet");
+			}
+			while(opened < count && opened - loggedIn < MAX_HANDSHAKES) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.bind(new InetSocketAddress("127.0.0." + (1 + opened % sources), 0));
+				channel.connect(new InetSocketAddress("127.0.0.1", port));
+				BenchClient client = new BenchClient(channel, "u" + opened);
+				clients.add(client);
+				channel.register(selector, SelectionKey.OP_CONNECT, client);
+				opened++;
+			}
+			poll(10);
+		}
+	}
+
+	/**
+	 * Client 0 schickt eine Nachricht; gemessen wird die Zeit bis alle Clients sie empfangen haben
+	 * @return Dauer in Nanosekunden
+	 */
+	private long broadcastRound(int round) throws IOException {
+		received = 0;
+		long start = System.nanoTime();
+		clients.get(0).write("/MSGEping" + round);
+		while(received < count) {
+			if(System.nanoTime() - start > STALL_TIMEOUT) {
+				throw new IOException("nur " + received + " von " + count + " Clients erreicht");
+			}
+			poll(10);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void poll(long timeout) throws IOException {
+		selector.select(timeout);
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			BenchClient client = (BenchClient) key.attachment();
+			if(key.isConnectable()) {
+				client.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+			} else if(key.isReadable()) {
+				client.read();
+			}
+		}
+	}
+
+	/**
+	 * @return Resident Set Size des Prozesses in Bytes (nur Linux), sonst -1
+	 */
+	private static long residentSetSize() {
+		try(BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch(IOException e) {
+		}
+		return -1;
+	}
+
+	/**
+	 * Ein simulierter Chat-Teilnehmer
+	 */
+	private class BenchClient {
+		private final SocketChannel channel;
+		private final String name;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+		private final StringBuilder line = new StringBuilder();
+
+		BenchClient(SocketChannel channel, String name) {
+			this.channel = channel;
+			this.name = name;
+		}
+
+		void write(String text) throws IOException {
+			ByteBuffer out = ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+			while(out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+
+		void read() throws IOException {
+			buffer.clear();
+			if(channel.read(buffer) < 0) {
+				throw new IOException(name + ": Verbindung vom Server geschlossen");
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				char c = (char) buffer.get(); // Protokollzeilen des Benchmarks sind ASCII
+				if(c != '\n') {
+					line.append(c);
+					continue;
+				}
+				String input = line.toString();
+				line.setLength(0);
+				if(input.equals("/NAME")) {
+					write("/USER" + name);
+				} else if(input.equals("/ACPT")) {
+					loggedIn++;
+				} else if(input.startsWith("/MSGE")) {
+					received++;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String modes = "platform,virtual,nio";
+		String counts = "1000,10000,50000";
+		int sources = 4;
+		int rounds = 5;
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("modes")) {
+				modes = kv[1];
+			} else if(kv[0].equals("counts")) {
+				counts = kv[1];
+			} else if(kv[0].equals("sources")) {
+				sources = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("rounds")) {
+				rounds = Integer.parseInt(kv[1]);
+			}
+		}
+
+		System.out.println(String.format("%-8s %7s %9s %8s %9s %9s %12s", "mode", "conns", "login[s]", "threads",
+				"heap[MB]", "rss[MB]", "fanout[ms]"));
+		for(String count : counts.split(",")) {
+			for(String mode : modes.split(",")) {
+				try {
+					System.out.println(new ConnectionModeBenchmark(mode, Integer.parseInt(count), sources).run(rounds));
+				} catch(IOException | IllegalStateException | OutOfMemoryError e) {
+					System.out.println(String.format("%-8s %7s failed: %s", mode, count, e));
+				}
+			}
+		}
+	}
+}
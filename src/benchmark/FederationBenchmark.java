@@ -0,0 +1,273 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import server.ChatServer;
+import server.LatencyHistogram;
+import server.ServerConfig;
+import server.ServerMetricsMBean;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Misst einen Verbund aus mehreren Knoten im selben Prozess (Loopback-Ports) fuer jede Knotenzahl aus
+ *          nodes:
+ *
+ *          Kapazitaet: jeder Knoten hat maxConnections=capacity; es werden reihum Clients angemeldet, bis jeder Knoten
+ *          neue Verbindungen mit /ERRO abweist. Gemeldet werden die angemeldeten Clients insgesamt und die mittlere
+ *          Dauer einer Anmeldung, die im Verbund die Abstimmung des Nicknames mit allen Knoten enthaelt.
+ *
+ *          Latenz: ein Sender auf dem ersten Knoten schickt messages Nachrichten mit fester Rate, jede mit ihrem
+ *          Sendezeitpunkt (System.nanoTime(), im selben Prozess vergleichbar). Je Knoten lesen receivers Clients
+ *          mit; die Latenz wird getrennt fuer den eigenen Knoten (lokal) und die anderen (ueber eine
+ *          Server-zu-Server-Verbindung) ausgewertet. lost zaehlt fehlende, dup doppelt zugestellte Nachrichten.
+ *
+ *          Alle Knoten teilen sich die Kerne dieses Rechners; die Kapazitaet waechst mit den Knoten, weil jeder sein
+ *          eigenes Verbindungslimit mitbringt, auf getrennten Rechnern auch mit deren Kernen.
+ *
+ *          Aufruf: java benchmark.FederationBenchmark [nodes=1,2,3,4] [mode=nio] [capacity=200] [receivers=2]
+ *          [messages=2000] [rate=500]
+ */
+public class FederationBenchmark {
+
+	private final String mode;
+	private final int nodes;
+	private final int capacity;
+	private final int receivers;
+	private final int messages;
+	private final int rate;
+
+	public FederationBenchmark(String mode, int nodes, int capacity, int receivers, int messages, int rate) {
+		this.mode = mode;
+		this.nodes = nodes;
+		this.capacity = capacity;
+		this.receivers = receivers;
+		this.messages = messages;
+		this.rate = rate;
+	}
+
+	String run() throws Exception {
+		List<ChatServer> servers = new ArrayList<ChatServer>();
+		int[] ports = new int[nodes];
+		StringBuilder peers = new StringBuilder();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for(int i = 0; i < nodes; i++) {
+				// jeder Knoten verbindet sich mit den bereits gestarteten: Vollvermaschung
+				ChatServer server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "peerPort=0",
+						"nodeId=node" + i, "peers=" + peers, "headless=true", "logFile=none", "journalDir=none",
+						"joinNotices=false", "maxConnections=" + capacity, "outboundQueueSize=100000"));
+				ports[i] = server.start();
+				servers.add(server);
+				peers.append(peers.length() == 0 ? "" : ",").append("127.0.0.1:").append(server.getPeerPort());
+			}
+			awaitMesh(ports);
+
+			// Kapazitaet
+			int loggedIn = 0;
+			long loginNanos = 0;
+			boolean[] full = new boolean[nodes];
+			int fullNodes = 0;
+			for(int n = 0; fullNodes < nodes; n++) {
+				int node = n % nodes;
+				if(full[node]) {
+					continue;
+				}
+				Socket socket = new Socket("127.0.0.1", ports[node]);
+				sockets.add(socket);
+				long start = System.nanoTime();
+				if(login(socket, "c" + n) == null) {
+					full[node] = true;
+					fullNodes++;
+				} else {
+					loginNanos += System.nanoTime() - start;
+					loggedIn++;
+				}
+			}
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			sockets.clear();
+			Thread.sleep(500); // Verbindungsplaetze werden asynchron frei
+
+			// Latenz
+			LatencyHistogram local = new LatencyHistogram();
+			LatencyHistogram remote = new LatencyHistogram();
+			AtomicLong received = new AtomicLong();
+			AtomicLong duplicates = new AtomicLong();
+			List<Thread> readers = new ArrayList<Thread>();
+			for(int node = 0; node < nodes; node++) {
+				for(int r = 0; r < receivers; r++) {
+					Socket socket = new Socket("127.0.0.1", ports[node]);
+					sockets.add(socket);
+					BufferedReader in = login(socket, "r" + node + "-" + r);
+					Thread reader = new Thread(new Receiver(in, node == 0 ? local : remote, received, duplicates),
+							"receiver-" + node + "-" + r);
+					reader.start();
+					readers.add(reader);
+				}
+			}
+			Socket sender = new Socket("127.0.0.1", ports[0]);
+			sockets.add(sender);
+			login(sender, "sender");
+			OutputStream out = sender.getOutputStream();
+			long interval = 1000000000L / rate;
+			long next = System.nanoTime();
+			for(int i = 0; i < messages; i++) {
+				while(System.nanoTime() < next) {
+					Thread.yield();
+				}
+				out.write(("/MSGE" + i + " " + System.nanoTime() + "\n").getBytes(StandardCharsets.US_ASCII));
+				next += interval;
+			}
+			for(Thread reader : readers) {
+				reader.join(10000);
+			}
+			long expected = (long) messages * nodes * receivers;
+			return String.format(Locale.ROOT, "%5d %9d %9.2f %9.0f %9.0f %9.0f %9.0f %6d %5d", nodes, loggedIn,
+					loginNanos / 1e6 / Math.max(1, loggedIn), local.percentile(50) / 1e3, local.percentile(99) / 1e3,
+					remote.percentile(50) / 1e3, remote.percentile(99) / 1e3, expected - received.get(),
+					duplicates.get());
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			for(ChatServer server : servers) {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Wartet, bis jeder Knoten mit allen anderen verbunden ist (ueber die Kennzahlen in JMX)
+	 */
+	private void awaitMesh(int[] ports) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		for(int port : ports) {
+			ServerMetricsMBean metrics = JMX.newMBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+					new ObjectName("server:type=ChatServer,port=" + port), ServerMetricsMBean.class);
+			while(metrics.getPeers() < nodes - 1) {
+				if(System.currentTimeMillis() > deadline) {
+					throw new IOException("Knoten auf Port " + port + " hat nur " + metrics.getPeers() + " Peers");
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Meldet einen Client an
+	 * @return der Leser nach /ACPT oder null, wenn der Knoten die Verbindung abweist (voll)
+	 */
+	private static BufferedReader login(Socket socket, String name) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		String line = in.readLine();
+		if(line != null && line.startsWith("/ERRO")) {
+			return null;
+		}
+		if(!"/NAME".equals(line)) {
+			throw new IOException("/NAME erwartet");
+		}
+		socket.getOutputStream().write(("/USER" + name + "\n").getBytes(StandardCharsets.UTF_8));
+		while(!"/ACPT".equals(line = in.readLine())) {
+			if(line == null || line.equals("/NAME")) {
+				throw new IOException("Anmeldung von " + name + " abgelehnt");
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * Liest die Nachrichten des Senders und zeichnet die Latenz auf
+	 */
+	private class Receiver implements Runnable {
+		private final BufferedReader in;
+		private final LatencyHistogram latency;
+		private final AtomicLong received;
+		private final AtomicLong duplicates;
+
+		Receiver(BufferedReader in, LatencyHistogram latency, AtomicLong received, AtomicLong duplicates) {
+			this.in = in;
+			this.latency = latency;
+			this.received = received;
+			this.duplicates = duplicates;
+		}
+
+		@Override
+		public void run() {
+			boolean[] seen = new boolean[messages];
+			int count = 0;
+			try {
+				String line;
+				while(count < messages && (line = in.readLine()) != null) {
+					// "/MSGE(hh:mm) sender: "<i> <nanoTime>""
+					int start = line.indexOf(": \"");
+					if(start < 0 || !line.contains(") sender: ")) {
+						continue;
+					}
+					long now = System.nanoTime();
+					String[] fields = line.substring(start + 3, line.length() - 1).split(" ");
+					int i = Integer.parseInt(fields[0]);
+					if(seen[i]) {
+						duplicates.incrementAndGet();
+						continue;
+					}
+					seen[i] = true;
+					count++;
+					synchronized(latency) {
+						latency.record(now - Long.parseLong(fields[1]));
+					}
+					received.incrementAndGet();
+				}
+			} catch(IOException e) {
+				System.err.println(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String nodes = "1,2,3,4";
+		String mode = "nio";
+		int capacity = 200;
+		int receivers = 2;
+		int messages = 2000;
+		int rate = 500;
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("nodes")) {
+				nodes = kv[1];
+			} else if(kv[0].equals("mode")) {
+				mode = kv[1];
+			} else if(kv[0].equals("capacity")) {
+				capacity = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("receivers")) {
+				receivers = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("messages")) {
+				messages = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("rate")) {
+				rate = Integer.parseInt(kv[1]);
+			}
+		}
+
+		System.out.println("mode=" + mode + " capacity/node=" + capacity + " messages=" + messages + " rate=" + rate
+				+ "/s, Latenzen in Mikrosekunden");
+		System.out.println(String.format("%5s %9s %9s %9s %9s %9s %9s %6s %5s", "nodes", "clients", "login ms",
+				"local50", "local99", "remote50", "remote99", "lost", "dup"));
+		for(String n : nodes.split(",")) {
+			System.out.println(new FederationBenchmark(mode, Integer.parseInt(n), capacity, receivers, messages, rate)
+					.run());
+		}
+	}
+}
@@ -0,0 +1,559 @@
+package benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import server.ChatServer;
+import server.LatencyHistogram;
+import server.ServerConfig;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Headless Lastgenerator, der das Protokoll des Chat-Servers spricht. Er baut viele Verbindungen auf
+ *          (NAME -> USER -> ACPT), laesst einen Teil davon Nachrichten mit fester Rate und Groesse schicken und misst
+ *          die Ende-zu-Ende-Latenz des Fan-outs: jede Nachricht traegt ihren geplanten Sendezeitpunkt, jeder Empfaenger
+ *          (auch der Absender) zeichnet die Differenz zum Empfang auf. Weil der geplante und nicht der tatsaechliche
+ *          Sendezeitpunkt eingetragen wird, fliesst ein verspaeteter Sender in die Latenz ein (kein "coordinated
+ *          omission"). Die Verbindungen werden von wenigen Selector-Threads bedient.
+ *
+ *          Fuer jede Rate aus rates wird nach einer Aufwaermphase duration Sekunden gemessen. Der Bericht enthaelt
+ *          pro Stufe erreichte Rate, Zustellquote, Zustellungen/s und die Perzentile p50, p99 und p99.9 sowie die
+ *          hoechste Stufe, die das Latenzziel (p99 <= slo) bei vollstaendiger Zustellung einhaelt.
+ *
+ *          Aufruf: java benchmark.LoadGenerator [host=127.0.0.1] [port=0] [mode=nio] [clients=1000] [senders=10]
+ *          [rates=100,1000,5000] [size=100] [duration=10] [warmup=3] [threads=2] [sources=1] [slo=50]
+ *          [report=<datei>]
+ *
+ *          Ohne port (bzw. mit port=0) wird ein Server im selben Prozess im Modus mode gestartet. Viele Verbindungen
+ *          brauchen entsprechend viele Dateideskriptoren (ulimit -n) und ab ca. 28k mehrere Quelladressen (sources).
+ */
+public class LoadGenerator {
+
+	private static final int MAX_HANDSHAKES = 32; // gleichzeitige Anmeldungen je Thread
+	private static final long STALL_TIMEOUT = 30000000000L; // Abbruch, wenn sich 30s nichts bewegt
+	private static final long DRAIN_TIMEOUT = 5000000000L; // Wartezeit auf Nachzuegler nach einer Stufe
+	private static final byte[] MARK = { '"', 'L' }; // Beginn des Zeitstempels in der verteilten Zeile
+	private static final byte[] PREFIX = "/MSGEL".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PONG = "/PONG\n".getBytes(StandardCharsets.US_ASCII);
+	private static final int MAX_STEPS = 1000;
+
+	private final String host;
+	private final int port;
+	private final int clients;
+	private final int senders;
+	private final int size;
+	private final int sources;
+	private final ClientLoop[] loops;
+
+	private final AtomicLong loggedIn = new AtomicLong();
+	private final AtomicLongArray sent = new AtomicLongArray(MAX_STEPS); // gesendete Nachrichten je Stufe
+	private final AtomicLong delivered = new AtomicLong();
+	private volatile int sendPhase; // Stufe, mit der die Sender ihre Nachrichten kennzeichnen, 0 = Aufwaermen
+	private volatile int measuredPhase; // Stufe, deren Zustellungen gezaehlt werden
+	private volatile LatencyHistogram latency = new LatencyHistogram();
+	private volatile IOException failure;
+
+	public LoadGenerator(String host, int port, int clients, int senders, int size, int threads, int sources) {
+		this.host = host;
+		this.port = port;
+		this.clients = clients;
+		this.senders = Math.min(senders, clients);
+		this.size = size;
+		this.sources = sources;
+		this.loops = new ClientLoop[Math.max(1, threads)];
+	}
+
+	/**
+	 * Baut alle Verbindungen auf und wartet, bis alle angemeldet sind
+	 * @return Dauer der Anmeldung in Sekunden
+	 */
+	double connect() throws IOException {
+		long start = System.nanoTime();
+		for(int i = 0; i < loops.length; i++) {
+			loops[i] = new ClientLoop(i);
+		}
+		for(int c = 0; c < clients; c++) {
+			loops[c % loops.length].planned.add(new Client("load" + c, c < senders));
+		}
+		for(ClientLoop loop : loops) {
+			loop.start();
+		}
+		long progress = -1;
+		long lastProgress = System.nanoTime();
+		while(loggedIn.get() < clients) {
+			check();
+			if(loggedIn.get() != progress) {
+				progress = loggedIn.get();
+				lastProgress = System.nanoTime();
+			} else if(System.nanoTime() - lastProgress > STALL_TIMEOUT) {
+				throw new IOException("nur " + loggedIn.get() + " von " + clients + " Clients angemeldet");
+			}
+			sleep(10);
+		}
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * Eine Laststufe: Aufwaermen, Messen und Abwarten der Nachzuegler
+	 * @return Ergebniszeile
+	 */
+	Result step(int index, double rate, double warmup, double duration) throws IOException {
+		sendPhase = 0;
+		setRate(rate);
+		sleep((long) (warmup * 1000));
+		check();
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		latency = histogram;
+		delivered.set(0);
+		measuredPhase = index;
+		sendPhase = index;
+		long start = System.nanoTime();
+		sleep((long) (duration * 1000));
+		sendPhase = 0;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		setRate(0);
+		long messages = sent.get(index);
+
+		long expected = messages * clients;
+		long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+		while(delivered.get() < expected && System.nanoTime() < deadline) {
+			check();
+			sleep(10);
+		}
+		measuredPhase = 0; // spaetere Zustellungen zaehlen nicht mehr
+		return new Result(rate, messages / seconds, delivered.get(), expected, delivered.get() / seconds, histogram);
+	}
+
+	/**
+	 * Beendet alle Verbindungen
+	 */
+	void close() {
+		for(ClientLoop loop : loops) {
+			if(loop != null) {
+				loop.running = false;
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	private void setRate(double rate) {
+		for(ClientLoop loop : loops) {
+			loop.setRate(rate / loops.length);
+		}
+	}
+
+	private void check() throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ergebnis einer Laststufe
+	 */
+	static class Result {
+		final double targetRate;
+		final double sendRate;
+		final long delivered;
+		final long expected;
+		final double deliveriesPerSecond;
+		final LatencyHistogram latency;
+
+		Result(double targetRate, double sendRate, long delivered, long expected, double deliveriesPerSecond,
+				LatencyHistogram latency) {
+			this.targetRate = targetRate;
+			this.sendRate = sendRate;
+			this.delivered = delivered;
+			this.expected = expected;
+			this.deliveriesPerSecond = deliveriesPerSecond;
+			this.latency = latency;
+		}
+
+		boolean complete() {
+			return delivered >= expected;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%10.0f %10.1f %12d %8.2f%% %14.0f %9.3f %9.3f %9.3f %9.3f", targetRate,
+					sendRate, delivered, expected == 0 ? 100.0 : 100.0 * delivered / expected, deliveriesPerSecond,
+					latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+					latency.max() / 1e6);
+		}
+	}
+
+	/**
+	 * Ein Selector-Thread mit einem Teil der Verbindungen; schickt die Nachrichten seiner Sender im Takt der Rate
+	 */
+	private class ClientLoop extends Thread {
+		private final Selector selector;
+		private final List<Client> planned = new ArrayList<Client>(); // noch nicht verbunden
+		private final List<Client> senderClients = new ArrayList<Client>();
+		private volatile boolean running = true;
+		private volatile long interval; // ns zwischen zwei Nachrichten dieses Threads, 0 = keine
+		private volatile long rateChanged; // Zeitpunkt der letzten Aenderung
+		private long nextSend;
+		private long seenChange;
+		private int nextSender;
+		private int handshaking;
+		private int opened;
+
+		ClientLoop(int index) throws IOException {
+			super("load-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void setRate(double rate) {
+			interval = rate <= 0 ? 0 : (long) (1e9 / rate);
+			rateChanged = System.nanoTime();
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while(running) {
+					while(opened < planned.size() && handshaking < MAX_HANDSHAKES) {
+						open(planned.get(opened++));
+					}
+					long now = System.nanoTime();
+					long period = interval;
+					if(rateChanged != seenChange) {
+						seenChange = rateChanged;
+						nextSend = now;
+					}
+					if(period > 0 && !senderClients.isEmpty()) {
+						while(nextSend - now <= 0) {
+							Client sender = senderClients.get(nextSender++ % senderClients.size());
+							sender.sendMessage(nextSend);
+							nextSend += period;
+						}
+						long wait = nextSend - now;
+						if(wait >= 1000000) {
+							selector.select(wait / 1000000);
+						} else {
+							selector.selectNow();
+						}
+					} else {
+						selector.select(100);
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Client client = (Client) key.attachment();
+						if(!key.isValid()) {
+							continue;
+						}
+						if(key.isConnectable()) {
+							client.channel.finishConnect();
+							key.interestOps(SelectionKey.OP_READ);
+							continue;
+						}
+						if(key.isReadable()) {
+							client.read();
+						}
+						if(key.isValid() && key.isWritable()) {
+							client.flush();
+						}
+					}
+				}
+			} catch(IOException e) {
+				failure = e;
+			} finally {
+				for(SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch(IOException e) {
+					}
+				}
+				try {
+					selector.close();
+				} catch(IOException e) {
+				}
+			}
+		}
+
+		private void open(Client client) throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if(sources > 1) {
+				channel.bind(new InetSocketAddress("127.0.0." + (1 + opened % sources), 0));
+			}
+			channel.connect(new InetSocketAddress(host, port));
+			client.channel = channel;
+			client.loop = this;
+			client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+			handshaking++;
+		}
+	}
+
+	/**
+	 * Ein simulierter Chat-Teilnehmer. Zeilen werden direkt auf den Bytes ausgewertet.
+	 */
+	private class Client {
+		private final String name;
+		private final boolean sender;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ClientLoop loop;
+		private final ByteBuffer in = ByteBuffer.allocate(8192);
+		private ByteBuffer out; // noch nicht geschriebene Bytes, null = nichts
+		private final byte[] message;
+		private boolean accepted;
+
+		Client(String name, boolean sender) {
+			this.name = name;
+			this.sender = sender;
+			// "/MSGEL<phase>.<zeitstempel> " + Fuellzeichen; Zeitstempel wird beim Senden eingetragen
+			this.message = sender ? new byte[5 + 1 + 4 + 1 + 19 + 1 + size + 1] : null;
+		}
+
+		/**
+		 * Schickt eine Nachricht mit dem geplanten Sendezeitpunkt
+		 */
+		void sendMessage(long scheduled) throws IOException {
+			byte[] m = message;
+			int p = sendPhase;
+			System.arraycopy(PREFIX, 0, m, 0, PREFIX.length);
+			int pos = putNumber(m, PREFIX.length, p, 4);
+			m[pos++] = '.';
+			pos = putNumber(m, pos, scheduled, 19);
+			m[pos++] = ' ';
+			for(int i = 0; i < size; i++) {
+				m[pos++] = 'x';
+			}
+			m[pos++] = '\n';
+			write(ByteBuffer.wrap(m, 0, pos));
+			sent.incrementAndGet(p);
+		}
+
+		void write(ByteBuffer data) throws IOException {
+			if(out == null) {
+				channel.write(data);
+				if(!data.hasRemaining()) {
+					return;
+				}
+				out = ByteBuffer.allocate(Math.max(65536, data.remaining()));
+			} else if(out.remaining() < data.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2 + data.remaining());
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(data);
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		void flush() throws IOException {
+			out.flip();
+			channel.write(out);
+			if(out.hasRemaining()) {
+				out.compact();
+				return;
+			}
+			out = null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void read() throws IOException {
+			if(channel.read(in) < 0) {
+				throw new IOException(name + ": Verbindung vom Server geschlossen");
+			}
+			in.flip();
+			byte[] data = in.array();
+			int start = in.position();
+			for(int i = start; i < in.limit(); i++) {
+				if(data[i] == '\n') {
+					line(data, start, i - start);
+					start = i + 1;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if(!in.hasRemaining()) {
+				throw new IOException(name + ": Zeile laenger als " + in.capacity() + " Bytes");
+			}
+		}
+
+		private void line(byte[] data, int offset, int length) throws IOException {
+			if(!accepted && startsWith(data, offset, length, "/NAME")) {
+				write(ByteBuffer.wrap(("/USER" + name + "\n").getBytes(StandardCharsets.UTF_8)));
+			} else if(!accepted && startsWith(data, offset, length, "/ACPT")) {
+				accepted = true;
+				loop.handshaking--;
+				if(sender) {
+					loop.senderClients.add(this);
+				}
+				loggedIn.incrementAndGet();
+			} else if(startsWith(data, offset, length, "/PING")) {
+				write(ByteBuffer.wrap(PONG)); // Heartbeat, sonst trennt der Server stille Empfaenger
+			} else if(startsWith(data, offset, length, "/MSGE")) {
+				int mark = find(data, offset, length, MARK);
+				if(mark < 0) {
+					return;
+				}
+				long now = System.nanoTime();
+				int pos = mark + 2;
+				int end = offset + length;
+				long p = 0;
+				while(pos < end && data[pos] != '.') {
+					p = p * 10 + (data[pos++] - '0');
+				}
+				long scheduled = 0;
+				for(pos++; pos < end && data[pos] != ' '; pos++) {
+					scheduled = scheduled * 10 + (data[pos] - '0');
+				}
+				if(p == measuredPhase && p > 0) {
+					latency.record(now - scheduled);
+					delivered.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static int putNumber(byte[] m, int pos, long value, int digits) {
+		for(int i = digits - 1; i >= 0; i--) {
+			m[pos + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, String prefix) {
+		if(length < prefix.length()) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++) {
+			if(data[offset + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int find(byte[] data, int offset, int length, byte[] pattern) {
+		for(int i = offset; i <= offset + length - pattern.length; i++) {
+			if(data[i] == pattern[0] && data[i + 1] == pattern[1]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 0;
+		String mode = "nio";
+		int clients = 1000;
+		int senders = 10;
+		String rates = "100,1000,5000";
+		int size = 100;
+		double duration = 10;
+		double warmup = 3;
+		int threads = 2;
+		int sources = 1;
+		double slo = 50;
+		String report = null;
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("host")) {
+				host = kv[1];
+			} else if(kv[0].equals("port")) {
+				port = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("mode")) {
+				mode = kv[1];
+			} else if(kv[0].equals("clients")) {
+				clients = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("senders")) {
+				senders = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("rates")) {
+				rates = kv[1];
+			} else if(kv[0].equals("size")) {
+				size = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("duration")) {
+				duration = Double.parseDouble(kv[1]);
+			} else if(kv[0].equals("warmup")) {
+				warmup = Double.parseDouble(kv[1]);
+			} else if(kv[0].equals("threads")) {
+				threads = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("sources")) {
+				sources = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("slo")) {
+				slo = Double.parseDouble(kv[1]);
+			} else if(kv[0].equals("report")) {
+				report = kv[1];
+			}
+		}
+
+		ChatServer server = null;
+		if(port == 0) {
+			server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "headless=true", "logFile=none",
+					"journalDir=none", "joinNotices=false", "maxConnections=" + (clients + 16)));
+			port = server.start();
+		}
+		PrintStream out = report == null ? System.out : new PrintStream(new FileOutputStream(report), true, "UTF-8");
+		LoadGenerator generator = new LoadGenerator(host, port, clients, senders, size, threads, sources);
+		try {
+			double login = generator.connect();
+			String header = String.format(Locale.ROOT, "%s:%d%s, %d Clients (%d Sender), Nachricht %d Bytes, Anmeldung %.2f s",
+					host, port, server == null ? "" : " (" + mode + ", im Prozess)", clients, senders, size, login);
+			out.println(header);
+			if(out != System.out) {
+				System.out.println(header);
+			}
+			String columns = String.format("%10s %10s %12s %9s %14s %9s %9s %9s %9s", "rate", "sent/s", "delivered",
+					"quote", "deliveries/s", "p50[ms]", "p99[ms]", "p99.9[ms]", "max[ms]");
+			out.println(columns);
+			Result capacity = null;
+			int index = 1;
+			for(String rate : rates.split(",")) {
+				if(index == MAX_STEPS) {
+					break;
+				}
+				Result result = generator.step(index++, Double.parseDouble(rate), warmup, duration);
+				out.println(result);
+				if(out != System.out) {
+					System.out.println(result);
+				}
+				if(result.complete() && result.latency.percentile(99) / 1e6 <= slo
+						&& (capacity == null || result.sendRate > capacity.sendRate)) {
+					capacity = result;
+				}
+			}
+			out.println(capacity == null ? "Kapazitaet: keine Stufe haelt p99 <= " + slo + " ms ein"
+					: String.format(Locale.ROOT, "Kapazitaet: %.0f Nachrichten/s (%.0f Zustellungen/s) bei p99 <= %.0f ms",
+							capacity.sendRate, capacity.deliveriesPerSecond, slo));
+		} finally {
+			generator.close();
+			if(out != System.out) {
+				out.close();
+			}
+			if(server != null) {
+				server.stop();
+			}
+		}
+	}
+}
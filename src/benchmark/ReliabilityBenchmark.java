@@ -0,0 +1,265 @@
+package benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import praktikum.Reliability;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Misst die Zuverlaessigkeitsschicht des Praktikum-Clients (praktikum.Reliability) in einem simulierten
+ *          Netz mit Paketverlust. Alle Clients chatten gleichzeitig: die Nachrichten werden reihum von den Clients mit
+ *          fester Rate an alle anderen verschickt. Jedes Paket geht mit der eingestellten Wahrscheinlichkeit verloren
+ *          und braucht sonst delay plus eine zufaellige Verzoegerung bis jitter, wodurch Pakete sich auch
+ *          ueberholen. Gerechnet wird in simulierter Zeit; die Ergebnisse haengen nur vom seed ab, nicht von der
+ *          Maschine.
+ *
+ *          Ausgegeben werden zugestellte Nachrichten (Soll: 100 %), Zustellungen ausser der Reihe (Soll: 0),
+ *          Wiederholungen, eigene ACK-Pakete und im Kopf mitgeschickte ACKs pro Nachricht, Pakete pro Zustellung sowie
+ *          die Latenz vom Senden bis zur Zustellung.
+ *
+ *          Aufruf: java benchmark.ReliabilityBenchmark [losses=0,1,5] [peers=8] [messages=5000] [rate=500] [delay=2]
+ *          [jitter=1] [multicast=false] [seed=42]
+ */
+public class ReliabilityBenchmark {
+
+	private static final int PORT = 60001;
+	private static final long NONE = Long.MAX_VALUE;
+
+	/**
+	 * Ein Paket unterwegs
+	 */
+	private static final class Packet implements Comparable<Packet> {
+		private final long arrival;
+		private final long order; // gleiche Ankunftszeit: in Sendereihenfolge
+		private final Node to;
+		private final InetSocketAddress from;
+		private final byte[] data;
+
+		Packet(long arrival, long order, Node to, InetSocketAddress from, byte[] data) {
+			this.arrival = arrival;
+			this.order = order;
+			this.to = to;
+			this.from = from;
+			this.data = data;
+		}
+
+		@Override
+		public int compareTo(Packet other) {
+			if(arrival != other.arrival) {
+				return arrival < other.arrival ? -1 : 1;
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * Ein simulierter Client
+	 */
+	private final class Node implements Reliability.Link, Reliability.Listener {
+		private final int index;
+		private final InetSocketAddress address;
+		private final Reliability reliability;
+		private final List<InetSocketAddress> recipients = new ArrayList<InetSocketAddress>();
+		private final int[] last; // zuletzt zugestellte Nachricht je Absender
+		private long deadline = NONE; // naechster Aufruf von poll()
+
+		Node(int index) throws UnknownHostException {
+			this.index = index;
+			this.address = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) (index + 1) }),
+					PORT);
+			this.reliability = new Reliability(index + 1, PORT, this, this);
+			this.last = new int[peers];
+			Arrays.fill(last, -1);
+		}
+
+		@Override
+		public void send(ByteBuffer packet, InetSocketAddress to) {
+			byte[] data = new byte[packet.remaining()];
+			packet.get(data);
+			if(to.equals(group)) {
+				for(Node node : nodes) {
+					if(node != this) {
+						transmit(node, address, data);
+					}
+				}
+			} else {
+				transmit(nodes[to.getAddress().getAddress()[3] - 1], address, data);
+			}
+		}
+
+		@Override
+		public void deliver(InetSocketAddress from, String message) {
+			int space = message.indexOf(' ');
+			int origin = Integer.parseInt(message.substring(0, space));
+			int number = Integer.parseInt(message.substring(space + 1));
+			if(number <= last[origin]) {
+				outOfOrder++;
+			}
+			last[origin] = Math.max(last[origin], number);
+			latencies[delivered++] = now - sentAt[number];
+		}
+
+		void poll() {
+			long wait = reliability.poll(now);
+			deadline = wait == NONE ? NONE : now + wait;
+		}
+	}
+
+	private final int peers;
+	private final int messages;
+	private final long interval; // ns zwischen zwei Nachrichten
+	private final long delay; // ns
+	private final long jitter; // ns
+	private final double loss;
+	private final InetSocketAddress group;
+	private final Random random;
+
+	private final Node[] nodes;
+	private final PriorityQueue<Packet> network = new PriorityQueue<Packet>();
+	private final long[] sentAt;
+	private final long[] latencies;
+	private long now;
+	private long order;
+	private long packets;
+	private long lost;
+	private int delivered;
+	private int outOfOrder;
+
+	public ReliabilityBenchmark(int peers, int messages, int rate, double delayMillis, double jitterMillis,
+			double loss, boolean multicast, long seed) throws UnknownHostException {
+		this.peers = peers;
+		this.messages = messages;
+		this.interval = 1000000000L / rate;
+		this.delay = (long) (delayMillis * 1e6);
+		this.jitter = (long) (jitterMillis * 1e6);
+		this.loss = loss;
+		this.group = multicast ? new InetSocketAddress(InetAddress.getByName("239.255.42.1"), PORT) : null;
+		this.random = new Random(seed);
+		this.sentAt = new long[messages];
+		this.latencies = new long[messages * (peers - 1)];
+		this.nodes = new Node[peers];
+		for(int i = 0; i < peers; i++) {
+			nodes[i] = new Node(i);
+		}
+		for(Node node : nodes) {
+			for(Node other : nodes) {
+				if(other != node) {
+					node.recipients.add(other.address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Legt ein Paket ins Netz, sofern es nicht verloren geht
+	 */
+	private void transmit(Node to, InetSocketAddress from, byte[] data) {
+		packets++;
+		if(random.nextDouble() < loss) {
+			lost++;
+			return;
+		}
+		long arrival = now + delay + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+		network.add(new Packet(arrival, order++, to, from, data));
+	}
+
+	String run() {
+		long nextSend = 0;
+		int next = 0;
+		long end = (messages - 1) * interval + 60000000000L; // danach gilt der Rest als verloren
+		while(true) {
+			long timer = NONE;
+			for(Node node : nodes) {
+				timer = Math.min(timer, node.deadline);
+			}
+			long send = next < messages ? nextSend : NONE;
+			long arrival = network.isEmpty() ? NONE : network.peek().arrival;
+			long t = Math.min(send, Math.min(arrival, timer));
+			if(t == NONE || t > end) {
+				break;
+			}
+			now = t;
+			if(t == send) {
+				Node node = nodes[next % peers];
+				sentAt[next] = now;
+				node.reliability.send(node.index + " " + next, node.recipients, group, now);
+				node.poll();
+				next++;
+				nextSend += interval;
+			} else if(t == arrival) {
+				Packet packet = network.poll();
+				packet.to.reliability.receive(ByteBuffer.wrap(packet.data), packet.from, now);
+				packet.to.poll();
+			} else {
+				for(Node node : nodes) {
+					if(node.deadline <= now) {
+						node.poll();
+					}
+				}
+			}
+		}
+
+		long[] sum = new long[8];
+		for(Node node : nodes) {
+			long[] counters = node.reliability.counters();
+			for(int i = 0; i < sum.length; i++) {
+				sum[i] += counters[i];
+			}
+		}
+		long[] sorted = Arrays.copyOf(latencies, delivered);
+		Arrays.sort(sorted);
+		double p50 = sorted.length > 0 ? sorted[sorted.length / 2] / 1e6 : 0;
+		double p99 = sorted.length > 0 ? sorted[(int) (sorted.length * 0.99)] / 1e6 : 0;
+		double max = sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0;
+		return String.format("%6.1f %6.2f %9.3f %6d %9.3f %9.3f %9.3f %9.3f %8.3f %8.3f %8.3f", loss * 100,
+				100.0 * lost / packets, 100.0 * delivered / latencies.length, outOfOrder, sum[2] / (double) messages,
+				sum[3] / (double) messages, sum[4] / (double) messages, packets / (double) Math.max(1, delivered),
+				p50, p99, max);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String losses = "0,1,5";
+		int peers = 8;
+		int messages = 5000;
+		int rate = 500;
+		double delay = 2;
+		double jitter = 1;
+		boolean multicast = false;
+		long seed = 42;
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("losses")) {
+				losses = kv[1];
+			} else if(kv[0].equals("peers")) {
+				peers = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("messages")) {
+				messages = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("rate")) {
+				rate = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("delay")) {
+				delay = Double.parseDouble(kv[1]);
+			} else if(kv[0].equals("jitter")) {
+				jitter = Double.parseDouble(kv[1]);
+			} else if(kv[0].equals("multicast")) {
+				multicast = Boolean.parseBoolean(kv[1]);
+			} else if(kv[0].equals("seed")) {
+				seed = Long.parseLong(kv[1]);
+			}
+		}
+
+		System.out.println(String.format("%6s %6s %9s %6s %9s %9s %9s %9s %8s %8s %8s", "loss%", "lost%", "deliv%",
+				"order", "rexmit/m", "acks/m", "piggy/m", "pkts/dlv", "p50[ms]", "p99[ms]", "max[ms]"));
+		for(String loss : losses.split(",")) {
+			System.out.println(new ReliabilityBenchmark(peers, messages, rate, delay, jitter,
+					Double.parseDouble(loss) / 100, multicast, seed).run());
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Misst den Gesamtdurchsatz (zugestellte Nachrichten pro Sekunde) ueber alle Raeume in Abhaengigkeit
+ *          von der Anzahl der Raeume. Jeder Raum bekommt dieselbe Last: receivers Empfaenger und senders Sender, die
+ *          so schnell wie moeglich schreiben. Da jeder Raum eine eigene Sperre und eine eigene Warteschlange hat und
+ *          die Raeume auf die RoomShards (standardmaessig einer pro Kern) verteilt werden, sollte der Durchsatz bis
+ *          zur Anzahl der Kerne nahezu linear mit der Anzahl der Raeume wachsen. Auf einem Rechner mit einem Kern
+ *          kommt eine Steigerung nur von groesseren Schreib-Batches bei mehr gleichzeitigen Sendern, nicht von den
+ *          Shards. Der Server laeuft im selben Prozess, die Clients teilen sich also die Kerne mit ihm.
+ *
+ *          Aufruf: java benchmark.RoomBenchmark [mode=nio] [rooms=1,2,4,8] [receivers=10] [senders=2]
+ *          [messages=10000] [warmup=2000] [burst=0] [pause=1] [size=100] [roomShards=Kerne]
+ */
+public class RoomBenchmark {
+
+	private final String mode;
+	private final int rooms;
+	private final int receivers; // pro Raum
+	private final int senders; // pro Raum
+	private final int messages; // pro Sender
+	private final int warmup; // pro Sender
+	private final int burst; // 0 = ohne Pause
+	private final long pause;
+	private final int roomShards;
+	private final byte[] message;
+
+	public RoomBenchmark(String mode, int rooms, int receivers, int senders, int messages, int warmup, int burst,
+			long pause, int size, int roomShards) {
+		this.mode = mode;
+		this.rooms = rooms;
+		this.receivers = receivers;
+		this.senders = senders;
+		this.messages = messages;
+		this.warmup = warmup;
+		this.burst = burst;
+		this.pause = pause;
+		this.roomShards = roomShards;
+		this.message = new byte[5 + size + 1];
+		System.arraycopy("/MSGE".getBytes(StandardCharsets.US_ASCII), 0, message, 0, 5);
+		Arrays.fill(message, 5, 5 + size, (byte) 'x');
+		message[message.length - 1] = '\n';
+	}
+
+	/**
+	 * @return zugestellte Nachrichten pro Sekunde ueber alle Raeume
+	 */
+	double run() throws Exception {
+		ChatServer server = new ChatServer(ServerConfig.load("mode=" + mode, "port=0", "headless=true", "logFile=none",
+				"journalDir=none", "joinNotices=false", "outboundQueueSize=100000", "roomShards=" + roomShards));
+		int port = server.start();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			List<Socket> receiving = new ArrayList<Socket>();
+			List<OutputStream> sending = new ArrayList<OutputStream>();
+			for(int room = 0; room < rooms; room++) {
+				for(int r = 0; r < receivers; r++) {
+					Socket socket = new Socket("127.0.0.1", port);
+					sockets.add(socket);
+					login(socket, "r" + room + "-" + r, "bench" + room);
+					receiving.add(socket);
+				}
+				for(int s = 0; s < senders; s++) {
+					Socket socket = new Socket("127.0.0.1", port);
+					sockets.add(socket);
+					login(socket, "s" + room + "-" + s, "bench" + room);
+					drain(socket.getInputStream());
+					sending.add(socket.getOutputStream());
+				}
+			}
+
+			round(receiving, sending, warmup);
+			long start = System.nanoTime();
+			round(receiving, sending, messages);
+			long elapsed = System.nanoTime() - start;
+
+			long deliveries = (long) rooms * senders * messages * (receivers + senders);
+			return deliveries * 1e9 / elapsed;
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			server.stop();
+		}
+	}
+
+	/**
+	 * Jeder Sender schickt count Nachrichten in seinen Raum; kehrt zurueck, wenn alle Empfaenger alle Nachrichten
+	 * ihres Raums gelesen haben
+	 */
+	private void round(List<Socket> receiving, List<OutputStream> sending, final int count) throws Exception {
+		final long expected = (long) senders * count;
+		final CountDownLatch done = new CountDownLatch(receiving.size());
+		for(int r = 0; r < receiving.size(); r++) {
+			final InputStream in = receiving.get(r).getInputStream();
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						count(in, expected);
+					} catch(IOException e) {
+						System.err.println(e);
+					}
+					done.countDown();
+				}
+			}, "receiver-" + r).start();
+		}
+		List<Thread> senderThreads = new ArrayList<Thread>();
+		for(int s = 0; s < sending.size(); s++) {
+			final OutputStream out = sending.get(s);
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < count; i++) {
+							out.write(message);
+							if(burst > 0 && (i + 1) % burst == 0) {
+								Thread.sleep(pause);
+							}
+						}
+					} catch(IOException | InterruptedException e) {
+						System.err.println(e);
+					}
+				}
+			}, "sender-" + s);
+			senderThreads.add(sender);
+			sender.start();
+		}
+		for(Thread sender : senderThreads) {
+			sender.join();
+		}
+		done.await();
+	}
+
+	/**
+	 * Liest, bis expected Zeilen angekommen sind
+	 */
+	private static void count(InputStream in, long expected) throws IOException {
+		byte[] buffer = new byte[65536];
+		long n = 0;
+		while(n < expected) {
+			int read = in.read(buffer);
+			if(read < 0) {
+				throw new IOException("Verbindung beendet nach " + n + " Nachrichten");
+			}
+			for(int i = 0; i < read; i++) {
+				if(buffer[i] == '\n') {
+					n++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Meldet einen Client an und wechselt in den Raum; ueberliest den Verlauf bis zur Bestaetigung des Wechsels
+	 */
+	private static void login(Socket socket, String name, String room) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		skipTo(in, "/NAME");
+		out.write(("/USER" + name + "\n").getBytes(StandardCharsets.UTF_8));
+		skipTo(in, "/ACPT");
+		out.write(("/JOIN" + room + "\n").getBytes(StandardCharsets.UTF_8));
+		skipTo(in, "/MSGE        you are now in #" + room);
+	}
+
+	private static void skipTo(InputStream in, String line) throws IOException {
+		while(true) {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while((b = in.read()) != '\n') {
+				if(b < 0) {
+					throw new IOException("Verbindung beendet vor " + line);
+				}
+				sb.append((char) b);
+			}
+			if(sb.toString().equals(line)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Liest die Nachrichten an einen Sender im Hintergrund, damit seine Warteschlange nicht ueberlaeuft
+	 */
+	private static void drain(final InputStream in) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[65536];
+				try {
+					while(in.read(buffer) >= 0) {
+					}
+				} catch(IOException e) {
+				}
+			}
+		}, "drain");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = "nio";
+		String rooms = "1,2,4,8";
+		int receivers = 10;
+		int senders = 2;
+		int messages = 10000;
+		int warmup = 2000;
+		int burst = 0;
+		long pause = 1;
+		int size = 100;
+		int roomShards = Runtime.getRuntime().availableProcessors();
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if(kv[0].equals("mode")) {
+				mode = kv[1];
+			} else if(kv[0].equals("rooms")) {
+				rooms = kv[1];
+			} else if(kv[0].equals("receivers")) {
+				receivers = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("senders")) {
+				senders = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("messages")) {
+				messages = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("warmup")) {
+				warmup = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("burst")) {
+				burst = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("pause")) {
+				pause = Long.parseLong(kv[1]);
+			} else if(kv[0].equals("size")) {
+				size = Integer.parseInt(kv[1]);
+			} else if(kv[0].equals("roomShards")) {
+				roomShards = Integer.parseInt(kv[1]);
+			}
+		}
+
+		System.out.println("mode=" + mode + " roomShards=" + roomShards + " cores="
+				+ Runtime.getRuntime().availableProcessors() + " receivers/room=" + receivers + " senders/room="
+				+ senders);
+		System.out.println(String.format("%6s %16s %10s", "rooms", "deliveries/s", "speedup"));
+		String[] counts = rooms.split(",");
+		// ein verworfener Durchlauf, damit nicht nur die erste Messung den JIT-Compiler bezahlt
+		new RoomBenchmark(mode, Integer.parseInt(counts[0]), receivers, senders, messages, warmup, burst, pause, size,
+				roomShards).run();
+		double base = 0;
+		for(String n : counts) {
+			double rate = new RoomBenchmark(mode, Integer.parseInt(n), receivers, senders, messages, warmup, burst,
+					pause, size, roomShards).run();
+			if(base == 0) {
+				base = rate;
+			}
+			System.out.println(String.format("%6s %16.0f %9.2fx", n, rate, rate / base));
+		}
+	}
+}
@@ -5,31 +5,46 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ConnectException;
 import java.net.NoRouteToHostException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 
+import protocol.BinaryProtocol;
+
 /**
  * @author Marc Kaepke & Anna Steinhauer
  * @version 2.0
  * Ein TCP-Client verbindet sich, mit anderen
  * Clients, mit einem Chat-Server. Der Client folgt dabei dem Chat-Protokoll (NAME, ACPT, MSGE und
  * QUIT). Der Client verfuegt ueber eine grafische Swing-Oberflaeche und zeigt den Chat-Verlauf an.
+ * Mit -Dchat.protocol=binary handelt der Client das binaere Protokoll aus (siehe BinaryProtocol), dabei bietet
+ * er auch die Kompression grosser Frames an (abschaltbar mit -Dchat.deflate=false).
  */
 public class ChatClient {
 	
 	BufferedReader in;	// Eingabestream vom Server
 	PrintWriter out;	// Ausgabestream zum Server
+	CoalescingOutputStream coalescing;	// Bytes zum Server, fuer Frames im Binaerprotokoll
+	DataInputStream frames;	// Eingabestream vom Server im Binaerprotokoll
+	boolean binary = false;	// Binaerprotokoll ausgehandelt
+	Inflater inflater;	// entpackt DEFLATED-Frames, null = Kompression nicht ausgehandelt
 	
 	JFrame frame = new JFrame("HAW - RN");	// Chat-Fenster
 	JTextField textField = new JTextField(40);	// Eingabezeile
@@ -42,6 +57,7 @@ public class ChatClient {
 	final int PORT = 56789;	// Portnummer, als Konstante
 	
 	ClientThreadIncoming clientThreadIncoming = null;
+	final AtomicInteger userListRequests = new AtomicInteger();	// eigene, noch unbeantwortete /USRS (Binaerprotokoll)
 	Socket socket = null;
 	
 	/**
@@ -70,13 +86,15 @@ public class ChatClient {
 			 */
 			@Override
 			public void windowClosing(WindowEvent e) {
-				out.println("/QUIT" + user);
+				sendQuit();
+				out.close();	// schreibt auch noch im Coalescing-Fenster wartende Zeilen
 				System.exit(0);
 			}
 			
 			@Override
 			public void windowClosed(WindowEvent e) {
-				out.println("/QUIT" + user);
+				sendQuit();
+				out.close();	// schreibt auch noch im Coalescing-Fenster wartende Zeilen
 				System.exit(0);
 			}
 		});
@@ -94,13 +112,34 @@ public class ChatClient {
 					public void run() {
 						String message = textField.getText();
 						if(message.toUpperCase().equals("USERS")) {
-							out.println("/USRS");
+							userListRequests.incrementAndGet();
+							send(BinaryProtocol.USRS, "/USRS", "");
+							textField.setText("");
+						} else if(message.toUpperCase().startsWith("HISTORY")) {
+							// HISTORY, HISTORY <n> oder HISTORY #<seq>
+							send(BinaryProtocol.HIST, "/HIST", message.substring(7).trim());
+							textField.setText("");
+						} else if(message.toUpperCase().startsWith("JOIN ")) {
+							send(BinaryProtocol.ROOM_JOIN, "/JOIN", message.substring(5).trim());
+							textField.setText("");
+						} else if(message.toUpperCase().equals("LEAVE")) {
+							send(BinaryProtocol.ROOM_LEAVE, "/LEAV", "");
+							textField.setText("");
+						} else if(message.toUpperCase().equals("ROOMS")) {
+							send(BinaryProtocol.ROOMS, "/ROOM", "");
+							textField.setText("");
+						} else if(message.toUpperCase().equals("STATS")) {
+							send(BinaryProtocol.STAT, "/STAT", "");
+							textField.setText("");
+						} else if(message.startsWith("@") && message.indexOf(' ') > 1) {
+							// @<nick> <nachricht> geht nur an diesen Benutzer
+							send(BinaryProtocol.PRIVATE, "/PRIV", message.substring(1));
 							textField.setText("");
 						} else if(message.toUpperCase().equals("QUIT")) {
-							out.println("/QUIT" + user);
+							sendQuit();
 							textField.setText("");
 						} else {
-							out.println("/MSGE" + message);
+							send(BinaryProtocol.MSGE, "/MSGE", message);
 							textField.setText("");
 						}						
 					}
@@ -110,6 +149,47 @@ public class ChatClient {
 		});
 	}
 	
+	/**
+	 * Liest das naechste Frame im Binaerprotokoll und entpackt es, falls es komprimiert ist
+	 * @return das Frame inkl. Kopf
+	 * @throws IOException bei Verbindungsabbruch oder beschaedigten Daten
+	 */
+	ByteBuffer readFrame() throws IOException {
+		ByteBuffer frame = BinaryProtocol.read(frames);
+		return inflater == null ? frame : BinaryProtocol.inflate(frame, inflater);
+	}
+	
+	/**
+	 * Schickt einen Befehl im ausgehandelten Protokoll
+	 * @param opcode , Befehl im Binaerprotokoll
+	 * @param command , Befehl im Textprotokoll
+	 * @param text , Nutzdaten
+	 */
+	synchronized void send(byte opcode, String command, String text) {
+		if(binary) {
+			try {
+				BinaryProtocol.write(coalescing,
+						text.isEmpty() ? BinaryProtocol.empty(opcode) : BinaryProtocol.text(opcode, text));
+				coalescing.flush();
+			} catch(IOException e) {
+				System.err.println(e.toString());
+			}
+		} else {
+			out.println(command + text);
+		}
+	}
+	
+	/**
+	 * Meldet den Benutzer vom Chat ab
+	 */
+	void sendQuit() {
+		if(binary) {
+			send(BinaryProtocol.QUIT, "/QUIT", "");
+		} else {
+			send(BinaryProtocol.QUIT, "/QUIT", user);
+		}
+	}
+	
 	/**
 	 * Erstellt die Verbindung zum Server
 	 */
@@ -139,8 +219,11 @@ public class ChatClient {
 		
 		// Initialisiere In- und Out-Stream
 		try {
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out = new PrintWriter(socket.getOutputStream(), true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			// Zeilen werden im Coalescing-Fenster gesammelt und mit einem Write geschickt
+			coalescing = new CoalescingOutputStream(socket.getOutputStream(),
+					Long.getLong("chat.coalesceWindowMicros", 0), Integer.getInteger("chat.coalesceBytes", 8192));
+			out = new PrintWriter(new OutputStreamWriter(coalescing, StandardCharsets.UTF_8), true);
 		} catch(IOException e) {
 			System.err.println(e.toString());
 		}
@@ -155,14 +238,50 @@ public class ChatClient {
 	private void login() {
 		try {
 			boolean loggedIn = false;
+			boolean wantBinary = BinaryProtocol.OPTION.equals(System.getProperty("chat.protocol"));
 			
 			while(!loggedIn) {
-				String input = in.readLine();
+				byte command;
+				if(binary) {
+					command = BinaryProtocol.opcode(readFrame());
+				} else {
+					String input = in.readLine();
+					if(input.startsWith("/ERRO")) {
+						// Server voll oder zu viele Verbindungen von dieser Adresse
+						JOptionPane.showMessageDialog(frame, "Der Chat-Server lehnt die Verbindung ab: "
+								+ input.substring(5), "Achtung", JOptionPane.OK_OPTION);
+						frame.dispose();
+						return;
+					}
+					command = input.equals("/NAME") ? BinaryProtocol.NAME
+							: input.equals("/ACPT") ? BinaryProtocol.ACPT
+							: input.equals("/PING") ? BinaryProtocol.PING : 0;
+					if(input.startsWith("/OPTS")) {
+						// Antwort auf die Aushandlung; ab hier ggf. nur noch Frames
+						String options = input.substring(5);
+						if(options.startsWith(BinaryProtocol.OPTION)) {
+							frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+							binary = true;
+							if(options.equals(BinaryProtocol.OPTION + "," + BinaryProtocol.DEFLATE_OPTION)) {
+								inflater = new Inflater(true);
+							}
+						}
+						command = BinaryProtocol.NAME;
+					} else if(command == BinaryProtocol.NAME && wantBinary) {
+						wantBinary = false;
+						out.println("/OPTS" + BinaryProtocol.OPTION	// erst die Bestaetigung abwarten
+								+ ("false".equals(System.getProperty("chat.deflate")) ? ""
+										: "," + BinaryProtocol.DEFLATE_OPTION));
+						continue;
+					}
+				}
 				
-				if(input.equals("/NAME")) {
+				if(command == BinaryProtocol.NAME) {
 					user = getName();
-					out.println("/USER" + user);
-				} else if(input.equals("/ACPT")) {
+					send(BinaryProtocol.USER, "/USER", user);
+				} else if(command == BinaryProtocol.PING) {
+					send(BinaryProtocol.PONG, "/PONG", "");	// Heartbeat, sonst trennt der Server die Verbindung
+				} else if(command == BinaryProtocol.ACPT) {
 					loggedIn = true;
 					frame.setTitle(frame.getTitle() + " as " + user);	// passt Titel vom Client Fenster an
 					textField.setEditable(true);		// "aktiviert" das Eingabefeld
@@ -170,7 +289,7 @@ public class ChatClient {
 				}
 			}
 		
-			clientThreadIncoming = new ClientThreadIncoming(in, this);
+			clientThreadIncoming = binary ? new ClientThreadIncoming(frames, this) : new ClientThreadIncoming(in, this);
 			clientThreadIncoming.start();
 		} catch(IOException e) {
 			System.err.println("failed to login!");
@@ -189,6 +308,9 @@ public class ChatClient {
 		try {
 			out.close();
 			in.close();
+			if(frames != null) {
+				frames.close();
+			}
 			socket.close();
 		} catch(IOException e) {
 			System.err.println("failed to logout!");
@@ -1,10 +1,18 @@
 package client;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.swing.JOptionPane;
 
+import protocol.BinaryProtocol;
+
 /**
  * @author Marc Kaepke & Anna Steinhauer
  * @version 2.0
@@ -12,8 +20,12 @@ import javax.swing.JOptionPane;
 public class ClientThreadIncoming extends Thread {
 	
 	private BufferedReader in;
+	private DataInputStream frames;	// Eingabestream im Binaerprotokoll, sonst null
 	private ChatClient client;
 	
+	private final Map<Integer, String> users = new HashMap<Integer, String>();	// User-ID -> Nickname (Binaerprotokoll)
+	private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
+	
 	/**
 	 * Konstruktor
 	 * @param in, BufferedReader des Client
@@ -24,6 +36,16 @@ public class ClientThreadIncoming extends Thread {
 		this.client = client;
 	}
 	
+	/**
+	 * Konstruktor fuer das Binaerprotokoll
+	 * @param frames, Eingabestream des Client
+	 * @param client, für den der Thread der ingehenden Nachrichten gestartet wird
+	 */
+	public ClientThreadIncoming(DataInputStream frames, ChatClient client) {
+		this.frames = frames;
+		this.client = client;
+	}
+	
 	/**
 	 * Startet einen Thread, des die eingehenden Nachrichten verarbeitet.
 	 */
@@ -32,8 +54,12 @@ public class ClientThreadIncoming extends Thread {
 		while(!this.isInterrupted()) {
 			String input;
 			try {
-				input = in.readLine();
-				incomingMsg(input);
+				if(frames != null) {
+					incomingFrame(client.readFrame());
+				} else {
+					input = in.readLine();
+					incomingMsg(input);
+				}
 			} catch(IOException | NullPointerException e) {
 			    JOptionPane.showMessageDialog(client.frame, "Der Chat-Server ist nicht mehr erreichbar.", "Achtung", JOptionPane.OK_OPTION);
                 client.frame.dispose();
@@ -48,13 +74,71 @@ public class ClientThreadIncoming extends Thread {
 	private synchronized void incomingMsg(String message) {
 		if(message.startsWith("/MSGE")) {
 			message = extractMessage(message);
-			client.messageArea.append(message + "\n");
-			client.scrollPane.getVerticalScrollBar().setValue(client.scrollPane.getVerticalScrollBar().getMaximum());
+			show(message);
 		} else if(message.equals("/QUIT")) {
 			client.logout();
+		} else if(message.equals("/PING")) {
+			client.send(BinaryProtocol.PONG, "/PONG", "");	// Heartbeat des Servers beantworten
+		}
+	}
+	
+	/**
+	 * Verarbeitet eingehende Frames im Binaerprotokoll
+	 * @param frame, eingehendes Frame
+	 */
+	private synchronized void incomingFrame(ByteBuffer frame) {
+		ByteBuffer payload = BinaryProtocol.payload(frame);
+		switch(BinaryProtocol.opcode(frame)) {
+		case BinaryProtocol.CHAT:
+			int sender = payload.getInt();
+			String name = users.containsKey(sender) ? users.get(sender) : "#" + sender;
+			String time = sdf.format(new Date(payload.getLong()));
+			show("(" + time + ") " + name + ": \"" + BinaryProtocol.string(payload) + "\"");
+			break;
+		case BinaryProtocol.MSGE:
+			show(BinaryProtocol.string(payload));
+			break;
+		case BinaryProtocol.JOIN:
+			int id = payload.getInt();
+			users.put(id, BinaryProtocol.string(payload));
+			show("        " + users.get(id) + " joined");
+			break;
+		case BinaryProtocol.LEFT:
+			users.remove(payload.getInt());
+			break;
+		case BinaryProtocol.USRS:
+			users.clear();
+			StringBuilder list = new StringBuilder();
+			for(int count = payload.getInt(); count > 0; count--) {
+				int userId = payload.getInt();
+				String user = BinaryProtocol.string(payload, payload.getShort() & 0xFFFF);
+				users.put(userId, user);
+				list.append('[').append(user).append("] ");
+			}
+			// angezeigt wird nur die Antwort auf ein eigenes /USRS; die Listen nach ACPT und /JOIN ordnen nur die
+			// User-IDs zu
+			if(client.userListRequests.get() > 0) {
+				client.userListRequests.decrementAndGet();
+				show(users.size() == 1 ? "you are alone :(" : "        list of users:\n        " + list);
+			}
+			break;
+		case BinaryProtocol.QUIT:
+			client.logout();
+			break;
+		case BinaryProtocol.PING:
+			client.send(BinaryProtocol.PONG, "/PONG", "");
+			break;
 		}
 	}
 	
+	/**
+	 * Zeigt eine Zeile im Chat-Verlauf an
+	 */
+	private void show(String message) {
+		client.messageArea.append(message + "\n");
+		client.scrollPane.getVerticalScrollBar().setValue(client.scrollPane.getVerticalScrollBar().getMaximum());
+	}
+	
 	/**
 	 * Methode welche die Protokollbefehle von den Nachrichten trennt
 	 * @param message, welche vom Server eingeht
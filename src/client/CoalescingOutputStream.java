@@ -0,0 +1,133 @@
+package client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Ausgangsstream, der mehrere Zeilen zu einem Write zusammenfasst. Ein flush() (z.B. durch das
+ *          Autoflush des PrintWriters) schreibt nicht sofort, sondern erst nach Ablauf des Coalescing-Fensters oder
+ *          sobald das Byte-Budget erreicht ist. Mit einem Fenster von 0 wird wie bisher sofort geschrieben.
+ */
+public class CoalescingOutputStream extends OutputStream {
+
+	// ein gemeinsamer Timer-Thread fuer alle Streams des Prozesses
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "coalescing-flush");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final OutputStream out;
+	private final byte[] buf; // Byte-Budget
+	private final long windowMicros;
+	private int count; // belegte Bytes in buf
+	private boolean flushScheduled;
+	private IOException failure; // Fehler eines verzoegerten Flushs, wird beim naechsten Aufruf gemeldet
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(CoalescingOutputStream.this) {
+				flushScheduled = false;
+				try {
+					flushBuffer();
+				} catch(IOException e) {
+					failure = e;
+				}
+			}
+		}
+	};
+
+	/**
+	 * Konstruktor
+	 * @param out , der eigentliche Socket-Stream
+	 * @param windowMicros , Coalescing-Fenster in Mikrosekunden, 0 = sofort schreiben
+	 * @param budget , maximale Anzahl gepufferter Bytes
+	 */
+	public CoalescingOutputStream(OutputStream out, long windowMicros, int budget) {
+		this.out = out;
+		this.windowMicros = windowMicros;
+		this.buf = new byte[budget];
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		checkFailure();
+		if(count == buf.length) {
+			flushBuffer();
+		}
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkFailure();
+		if(len >= buf.length) {
+			// groesser als das Budget: direkt schreiben
+			flushBuffer();
+			out.write(b, off, len);
+			out.flush();
+			return;
+		}
+		if(len > buf.length - count) {
+			flushBuffer();
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Schreibt sofort, wenn kein Fenster konfiguriert ist; sonst wird der Flush um das Fenster verzoegert, damit
+	 * weitere Zeilen im selben Write landen.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkFailure();
+		if(windowMicros <= 0) {
+			flushBuffer();
+		} else if(count > 0 && !flushScheduled) {
+			flushScheduled = true;
+			TIMER.schedule(flushTask, windowMicros, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * Schreibt den Puffer sofort, unabhaengig vom Fenster
+	 */
+	public synchronized void flushNow() throws IOException {
+		flushBuffer();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+		out.flush();
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null) {
+			IOException e = failure;
+			failure = null;
+			throw e;
+		}
+	}
+}
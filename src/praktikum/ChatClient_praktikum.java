@@ -19,9 +19,11 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -29,8 +31,6 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 
-import com.sun.xml.internal.bind.api.impl.NameConverter.Standard;
-
 /**
  * @author Marc Kaepke & Anna Steinhauer
  * @version 2.0 Ein TCP-Client verbindet sich, mit anderen Clients, mit einem
@@ -59,16 +59,21 @@ public class ChatClient_praktikum implements ActionListener{
 	InetAddress serverIP;
 
 	ClientThreadIn clientThreadIn = null;
+	ChatThreadOut chatThreadOut = null; // schickt die eigenen Nachrichten an alle Benutzer
 	Socket socket = null;
 	DatagramSocket clientSocket = null;
 
-	Map<String, String> userList;
+	Map<String, String> userList; // Name -> IP, wird von UserListThread einzeln geaendert
+	MulticastGroup multicast; // Gruppe aller Clients, null = Nachrichten einzeln an jeden Benutzer
+	final AtomicLong userListVersion = new AtomicLong(); // wird nach jeder Aenderung von userList erhoeht
+	Reliability reliability; // null = Nachrichten ohne Bestaetigung; -Dchat.reliable=true schaltet sie ein
 
 	/**
 	 * Konstruktor
 	 */
 	public ChatClient_praktikum() {
-		userList = new HashMap<>();
+		userList = new ConcurrentHashMap<>();
+		multicast = MulticastGroup.fromProperties(PORT_UDP);
 		builtGUI();
 	}
 
@@ -208,7 +213,13 @@ public class ChatClient_praktikum implements ActionListener{
 			messageArea.append("BLAA\n");
 			
 			clientThreadIn = new ClientThreadIn(this);
+			chatThreadOut = new ChatThreadOut(this);
+			if (Boolean.getBoolean("chat.reliable")) {
+				reliability = new Reliability(ThreadLocalRandom.current().nextInt(), PORT_UDP, chatThreadOut,
+						clientThreadIn);
+			}
 			clientThreadIn.start();
+			chatThreadOut.start();
 		} catch (IOException e) {
 			System.err.println("failed to login!");
 		}
@@ -223,6 +234,9 @@ public class ChatClient_praktikum implements ActionListener{
 		frame.dispose();
 
 		clientThreadIn.interrupt();
+		if (chatThreadOut != null) {
+			chatThreadOut.interrupt();
+		}
 
 		try {
 			out.close();
@@ -299,8 +313,7 @@ public class ChatClient_praktikum implements ActionListener{
 			textField.setText("");
 			logout("You left the chat");
 		} else {
-			ChatThreadOut chatOut = new ChatThreadOut(this, message);
-			chatOut.start();
+			chatThreadOut.send(message);
 			textField.setText("");
 		}
 	}
@@ -1,43 +1,261 @@
 package praktikum;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-
-import javax.sound.midi.Synthesizer;
-
-public class ChatThreadOut extends Thread {
-
-	String msg = "";
-	ChatClient_praktikum client;
-	
-    public ChatThreadOut(ChatClient_praktikum client, String msg) {
-       this.client = client;
-       this.msg = msg;
-    }
-
-    /**
-     * Geht alle Nutzer in der Liste durch und schickt an deren Adressen ein UDP Paket.
-     */
-    public void run() {
-    	
-    	
-        DatagramSocket socket = null;       //udp socket
-        byte[] buf = new byte[1024];        //byte buffer
-        buf = msg.getBytes();     //fülle buffer mit eingabe
-
-        for (String address: client.userList.keySet()) {
-            try {
-                socket = new DatagramSocket();
-                DatagramPacket packet = new DatagramPacket(buf, buf.length, InetAddress.getByName(address), client.PORT_UDP);     //udp packet erzeugen
-                socket.send(packet);        //sende an jeden user
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Der einzige Sender eines Clients: ein langlebiger Thread mit einem nicht blockierenden
+ *          DatagramChannel, der die eingegebenen Nachrichten aus einer Warteschlange nimmt und an alle Benutzer der
+ *          Liste schickt. Jede Nachricht wird einmal kodiert; die Adressen werden pro Eintrag der Benutzerliste
+ *          einmal aufgeloest und zwischengespeichert. Ist der Sendepuffer des Sockets voll, wartet der Thread mit einem
+ *          Selector, bis wieder Platz ist, statt im send zu blockieren. Ist eine Multicast-Gruppe verfuegbar, geht
+ *          jede Nachricht genau einmal an die Gruppe und einzeln nur an die Benutzer, die nicht als Mitglied der Gruppe
+ *          bestaetigt sind (der Thread schickt dafuer die Proben, siehe MulticastGroup); sonst (oder wenn das Senden
+ *          an die Gruppe scheitert) an jeden Benutzer einzeln.
+ *
+ *          Mit -Dchat.reliable=true gehen die Nachrichten ueber client.reliability (Sequenznummern, ACKs,
+ *          Wiederholungen). Der Thread treibt dann auch deren Timer: er wartet nur bis zur naechsten faelligen
+ *          Wiederholung bzw. Bestaetigung auf neue Nachrichten und wird vom Empfangsthread geweckt, wenn ein Paket der
+ *          Schicht ankam. Pakete der Schicht warten nicht auf Platz im Sendepuffer, sie werden ohnehin wiederholt.
+ */
+public class ChatThreadOut extends Thread implements Reliability.Link {
+
+	private static final long WRITABLE_TIMEOUT = 1000; // ms, danach wird das Paket verworfen
+	private static final String WAKEUP = new String(""); // weckt den Thread fuer die Timer, Vergleich per Identitaet
+
+	private final ChatClient_praktikum client;
+	private final DatagramChannel channel; // unverbunden, fuer alle Empfaenger
+	private final Selector selector; // wartet auf Platz im Sendepuffer
+	private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(); // eingegebene Nachrichten
+	private final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>(); // IP -> aufgeloeste Adresse
+	private volatile long dropped; // Pakete, fuer die kein Platz im Sendepuffer wurde; nur gezaehlt
+
+	/**
+	 * Konstruktor, oeffnet den Kanal
+	 * @param client , liefert die Benutzerliste und den UDP-Port
+	 * @throws IOException wenn kein UDP-Socket geoeffnet werden kann
+	 */
+	public ChatThreadOut(ChatClient_praktikum client) throws IOException {
+		super("chat-out");
+		setDaemon(true);
+		this.client = client;
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_WRITE);
+		if(client.multicast != null) {
+			client.multicast.configureSender(channel);
+		}
+	}
+
+	/**
+	 * Reiht eine Nachricht ein; kehrt sofort zurueck (z.B. im Event Dispatch Thread)
+	 * @param msg , die Nachricht
+	 */
+	public void send(String msg) {
+		queue.add(msg);
+	}
+
+	/**
+	 * Weckt den Thread, damit er faellige Bestaetigungen verschickt (nach einem empfangenen Paket der
+	 * Zuverlaessigkeitsschicht)
+	 */
+	public void wakeup() {
+		if(queue.isEmpty()) {
+			queue.add(WAKEUP);
+		}
+	}
+
+	/**
+	 * Geht fuer jede Nachricht alle Nutzer in der Liste durch und schickt an deren Adressen ein UDP Paket.
+	 */
+	@Override
+	public void run() {
+		Reliability reliability = client.reliability;
+		try {
+			while(!this.isInterrupted()) {
+				long timeout = probe();
+				if(reliability != null) {
+					timeout = Math.min(timeout, reliability.poll(System.nanoTime()));
+				}
+				String msg = queue.poll(timeout, TimeUnit.NANOSECONDS);
+				if(msg == null || msg == WAKEUP) {
+					continue; // nur Timer
+				}
+				if(reliability != null) {
+					List<InetSocketAddress> recipients = recipients();
+					reliability.send(msg, recipients, group(), members(recipients), System.nanoTime());
+					continue;
+				}
+				ByteBuffer packet = ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8));
+				MulticastGroup multicast = client.multicast;
+				boolean grouped = multicast != null && multicast.isAvailable() && sendTo(packet, multicast.address());
+				long now = System.nanoTime();
+				for(String ip : client.userList.values()) {
+					InetSocketAddress address = address(ip);
+					if(grouped && !address.isUnresolved() && multicast.isMember(address.getAddress(), now)) {
+						continue; // hat das Paket der Gruppe
+					}
+					packet.rewind();
+					sendTo(packet, address);
+				}
+				prune();
+			}
+		} catch(InterruptedException e) {
+			// Client wird beendet
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * @return die aufgeloesten Adressen aller Benutzer der Liste
+	 */
+	private List<InetSocketAddress> recipients() {
+		List<InetSocketAddress> recipients = new ArrayList<>(client.userList.size());
+		for(String ip : client.userList.values()) {
+			InetSocketAddress address = address(ip);
+			if(!address.isUnresolved()) {
+				recipients.add(address);
+			}
+		}
+		prune();
+		return recipients;
+	}
+
+	/**
+	 * Schickt bei Bedarf eine Probe an die Multicast-Gruppe
+	 * @return Nanosekunden bis zur naechsten Probe; Long.MAX_VALUE = keine Gruppe
+	 */
+	private long probe() {
+		MulticastGroup multicast = client.multicast;
+		if(multicast == null || !multicast.isAvailable()) {
+			return Long.MAX_VALUE;
+		}
+		return multicast.probe(this, client.userListVersion.get(), System.nanoTime());
+	}
+
+	/**
+	 * @param recipients , Ergebnis von recipients()
+	 * @return die Empfaenger, die als Mitglied der Multicast-Gruppe bestaetigt sind; null = keine Gruppe
+	 */
+	private Set<InetSocketAddress> members(List<InetSocketAddress> recipients) {
+		MulticastGroup multicast = client.multicast;
+		if(multicast == null || !multicast.isAvailable()) {
+			return null;
+		}
+		long now = System.nanoTime();
+		Set<InetSocketAddress> members = new HashSet<>();
+		for(InetSocketAddress address : recipients) {
+			if(multicast.isMember(address.getAddress(), now)) {
+				members.add(address);
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * @return die Multicast-Gruppe, solange sie verfuegbar ist, sonst null
+	 */
+	private InetSocketAddress group() {
+		MulticastGroup multicast = client.multicast;
+		return multicast != null && multicast.isAvailable() ? multicast.address() : null;
+	}
+
+	/**
+	 * Vergisst die Adressen abgemeldeter Benutzer
+	 */
+	private void prune() {
+		if(addresses.size() > 2 * client.userList.size() + 16) {
+			addresses.keySet().retainAll(client.userList.values());
+		}
+	}
+
+	/**
+	 * Schickt ein Paket der Zuverlaessigkeitsschicht ohne zu warten; auch aus dem Empfangsthread (NACKs)
+	 */
+	@Override
+	public void send(ByteBuffer packet, InetSocketAddress to) {
+		try {
+			if(channel.send(packet, to) == 0) {
+				dropped++; // wird wiederholt
+			}
+		} catch(IOException e) {
+			if(to.getAddress().isMulticastAddress()) {
+				client.multicast.unavailable(e); // Wiederholungen gehen ohnehin einzeln
+			} else {
+				System.err.println("Error beim senden an " + to + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Schickt ein Paket; ist der Sendepuffer voll, wird bis zu WRITABLE_TIMEOUT auf Platz gewartet
+	 * @return false, wenn das Senden mit einem Fehler scheiterte (ein volles Sendepuffer zaehlt nicht dazu)
+	 */
+	private boolean sendTo(ByteBuffer packet, InetSocketAddress address) {
+		if(address.isUnresolved()) {
+			return true;
+		}
+		try {
+			while(channel.send(packet, address) == 0) {
+				if(selector.select(WRITABLE_TIMEOUT) == 0) {
+					dropped++;
+					System.err.println("Sendepuffer voll, Paket an " + address + " verworfen (" + dropped + ")");
+					return true;
+				}
+				selector.selectedKeys().clear();
+			}
+			return true;
+		} catch(IOException e) {
+			if(address.getAddress().isMulticastAddress()) {
+				client.multicast.unavailable(e); // ab jetzt einzeln
+			} else {
+				System.err.println("Error beim senden an " + address + ": " + e);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param ip , Adresse aus der Benutzerliste
+	 * @return die Adresse, beim ersten Mal aufgeloest und danach zwischengespeichert
+	 */
+	private InetSocketAddress address(String ip) {
+		InetSocketAddress address = addresses.get(ip);
+		if(address == null) {
+			address = new InetSocketAddress(ip, client.PORT_UDP);
+			if(!address.isUnresolved()) {
+				addresses.put(ip, address); // sonst beim naechsten Mal erneut versuchen
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Schliesst Kanal und Selector
+	 */
+	public void close() {
+		try {
+			selector.close();
+			channel.close();
+		} catch(IOException e) {
+			System.err.println("Error beim schliessen");
+		}
+	}
 }
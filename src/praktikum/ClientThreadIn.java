@@ -2,29 +2,56 @@ package praktikum;
 
 import java.awt.EventQueue;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-
-import javax.swing.JOptionPane;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Marc Kaepke & Anna Steinhauer
- * @version 2.0
+ * @version 2.0 Empfaengt die Chat-Nachrichten der anderen Benutzer per UDP. Gelesen wird ueber einen
+ *          DatagramChannel in einen einzigen, wiederverwendeten direkten Puffer; dekodiert werden nur die tatsaechlich
+ *          empfangenen Bytes. Der Absender wird ueber einen Index Adresse -> Nickname gefunden, der nur nach einer
+ *          Aenderung der Benutzerliste neu aufgebaut wird. Nachrichten gehen gesammelt an die Oberflaeche: solange
+ *          der Event Dispatch Thread die vorigen noch nicht angezeigt hat, werden neue nur angehaengt.
+ *
+ *          Die Groesse des Empfangspuffers im Betriebssystem kann mit -Dchat.udp.rcvbuf=<bytes> gesetzt werden. Ist
+ *          eine Multicast-Gruppe konfiguriert, tritt der Kanal ihr bei und empfaengt Gruppen- und Einzelpakete; Proben
+ *          anderer Clients beantwortet er, Antworten auf die eigenen merkt er in der MulticastGroup vor.
+ *          Pakete der Zuverlaessigkeitsschicht (-Dchat.reliable=true) gehen an client.reliability, die die Nachrichten
+ *          in Reihenfolge ueber deliver() zurueckgibt; Klartext-Pakete anderer Clients werden wie bisher angezeigt.
  */
-public class ClientThreadIn extends Thread {
+public class ClientThreadIn extends Thread implements Reliability.Listener {
+
+	private static final int MAX_DATAGRAM = 8192; // groessere Datagramme werden abgeschnitten und verworfen
 
 	private ChatClient_praktikum client;
-	private final int BUFFER_SIZE = 30;
-	private String ip = null;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM + 1); // ein Byte mehr erkennt Abschneiden
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final Map<InetAddress, String> senders = new HashMap<>(); // Adresse -> Nickname, nur dieser Thread
+	private long indexedVersion = -1; // Stand der Benutzerliste beim Aufbau von senders
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>(); // fertige Zeilen fuer die Oberflaeche
+	private final AtomicBoolean scheduled = new AtomicBoolean(); // Anzeige im Event Dispatch Thread ist eingereiht
+	private final AtomicLong dropped = new AtomicLong(); // abgeschnittene oder nicht dekodierbare Datagramme
 
 	/**
 	 * Konstruktor
-	 * 
-	 * @param in,
-	 *            BufferedReader des Client
+	 *
 	 * @param client,
 	 *            für den der Thread der ingehenden Nachrichten gestartet wird
 	 */
@@ -36,35 +63,113 @@ public class ClientThreadIn extends Thread {
 	 * Startet einen Thread, des die eingehenden Nachrichten verarbeitet.
 	 */
 	public void run() {
-		DatagramSocket socket = null; // udp socket
-		byte[] buf = new byte[1024]; // byte buffer
-		DatagramPacket packet = new DatagramPacket(buf, buf.length); // udp
-																		// socket
-		try {
-			socket = new DatagramSocket(60001);
-		} catch (SocketException e) {
+		MulticastGroup multicast = client.multicast;
+		Reliability reliability = client.reliability;
+		try (DatagramChannel channel = multicast != null ? DatagramChannel.open(multicast.family())
+				: DatagramChannel.open()) {
+			int receiveBuffer = Integer.getInteger("chat.udp.rcvbuf", 0);
+			if (receiveBuffer > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+			}
+			if (multicast != null) {
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // mehrere Clients pro Rechner
+			}
+			channel.bind(new InetSocketAddress(client.PORT_UDP));
+			if (multicast != null) {
+				multicast.join(channel);
+			}
+			while (!this.isInterrupted()) {
+				buffer.clear();
+				InetSocketAddress address = (InetSocketAddress) channel.receive(buffer); // blockiert
+				buffer.flip();
+				if (buffer.remaining() > MAX_DATAGRAM) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				if (multicast != null
+						&& multicast.receive(buffer, address, client.chatThreadOut, client.PORT_UDP, System.nanoTime())) {
+					continue; // Probe beantwortet bzw. Mitglied vorgemerkt
+				}
+				if (reliability != null && reliability.receive(buffer, address, System.nanoTime())) {
+					client.chatThreadOut.wakeup(); // Bestaetigung faellig
+					continue;
+				}
+				String msg;
+				try {
+					msg = decoder.decode(buffer).toString().trim();
+				} catch (CharacterCodingException e) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				pending.add(sender(address.getAddress()) + ":" + msg + "\n");
+				show();
+			}
+		} catch (ClosedByInterruptException e) {
+			// Client wird beendet
+		} catch (ClosedChannelException e) {
+			// Client wird beendet
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		while (true) {
-			try {
-				socket.receive(packet); // empfange packet
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			String msg = new String(packet.getData(), StandardCharsets.UTF_8);
-			ip = packet.getAddress().getHostAddress();
-			
-			String msg2 = msg.trim();
+	}
 
-			String user = client.userList.get(ip);
-			System.err.println(user + ":" + msg2.length());
-			EventQueue.invokeLater(new Runnable() {
-				public void run() {
-					client.messageArea.append(user + ":" + msg2 + "\n");
+	/**
+	 * Zeigt eine von der Zuverlaessigkeitsschicht in Reihenfolge zugestellte Nachricht an; nur in diesem Thread
+	 */
+	@Override
+	public void deliver(InetSocketAddress from, String message) {
+		pending.add(sender(from.getAddress()) + ":" + message.trim() + "\n");
+		show();
+	}
+
+	/**
+	 * @return Anzahl verworfener Datagramme (zu gross oder nicht dekodierbar); Verluste im Netz oder im
+	 *         Empfangspuffer des Betriebssystems sind hier nicht sichtbar
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @param address , Absender eines Datagramms
+	 * @return Nickname des Absenders oder dessen IP, wenn er nicht in der Benutzerliste steht
+	 */
+	private String sender(InetAddress address) {
+		long version = client.userListVersion.get();
+		if (version != indexedVersion) {
+			// Benutzerliste hat sich geaendert: Index einmal neu aufbauen
+			indexedVersion = version;
+			senders.clear();
+			for (Map.Entry<String, String> user : client.userList.entrySet()) {
+				try {
+					senders.put(InetAddress.getByName(user.getValue()), user.getKey());
+				} catch (UnknownHostException e) {
+					// ohne Eintrag, der Absender wird mit IP angezeigt
 				}
-			});
+			}
+		}
+		String user = senders.get(address);
+		return user != null ? user : address.getHostAddress();
+	}
 
+	/**
+	 * Reiht die Anzeige der wartenden Zeilen ein, sofern sie nicht schon eingereiht ist
+	 */
+	private void show() {
+		if (!scheduled.compareAndSet(false, true)) {
+			return;
 		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				scheduled.set(false); // was danach kommt, reiht eine neue Anzeige ein
+				StringBuilder lines = new StringBuilder();
+				String line;
+				while ((line = pending.poll()) != null) {
+					lines.append(line);
+				}
+				client.messageArea.append(lines.toString());
+			}
+		});
 	}
 
 }
@@ -0,0 +1,231 @@
+package praktikum;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Multicast-Gruppe des Chats. Ist sie konfiguriert, treten alle Clients ihr bei und jede Nachricht wird
+ *          genau einmal an die Gruppe geschickt statt einzeln an jeden Benutzer der Liste. Konfiguriert wird ueber
+ *          System-Properties:
+ *
+ *          -Dchat.multicast=<gruppe> z.B. 239.255.42.1; ohne diese Property wird wie bisher einzeln verschickt
+ *          -Dchat.multicast.ttl=<n> Reichweite in Routern, Standard 1 (nur das eigene Netz)
+ *          -Dchat.multicast.interface=<name> Netzwerkschnittstelle, z.B. "lo" fuer mehrere Clients auf einem Rechner
+ *
+ *          Scheitert beim Client selbst der Beitritt oder das Senden (keine multicastfaehige Schnittstelle, Gruppe
+ *          ungueltig), gilt die Gruppe als nicht verfuegbar und er verschickt wieder an jeden Benutzer einzeln. Da alle
+ *          Clients eines Rechners denselben Port binden (SO_REUSEADDR), erhaelt jeder von ihnen jedes Paket der Gruppe.
+ *
+ *          Ob ein anderer Client die Gruppenpakete erhaelt, weiss der Absender nicht von selbst: dessen Beitritt kann
+ *          gescheitert sein, oder er laeuft ohne -Dchat.multicast. Deshalb schickt jeder Absender alle PROBE_INTERVAL
+ *          (und sobald sich die Benutzerliste aendert) eine Probe an die Gruppe; wer sie erhaelt, antwortet einzeln.
+ *          Mitglied ist, wer innerhalb von MEMBER_TIMEOUT geantwortet hat. Eine Nachricht geht einmal an die Gruppe
+ *          und zusaetzlich einzeln an jeden Benutzer der Liste, der (noch) nicht bestaetigt ist; direkt nach einem
+ *          Beitritt kann sie daher einmal doppelt ankommen.
+ *
+ *          Paketformat: 0, 3 (Probe, an die Gruppe) bzw. 0, 4 (Antwort, einzeln an den UDP-Port des Absenders);
+ *          Klartext-Nachrichten beginnen nie mit 0, Pakete der Zuverlaessigkeitsschicht sind mindestens 6 Bytes lang.
+ */
+public class MulticastGroup {
+
+	private static final byte MAGIC = 0; // wie bei Reliability
+	private static final byte PROBE = 3;
+	private static final byte MEMBER = 4;
+	private static final long PROBE_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+	private static final long MEMBER_TIMEOUT = 3 * PROBE_INTERVAL; // ohne Antwort danach kein Mitglied mehr
+
+	private final InetSocketAddress group; // Gruppe und UDP-Port des Chats
+	private final NetworkInterface networkInterface;
+	private final int ttl;
+	private volatile boolean available = true; // false = Rueckfall auf einzelne Pakete
+	private final Map<InetAddress, Long> members = new ConcurrentHashMap<>(); // Mitglied -> letzte Antwort
+	private long probedAt; // letzte Probe (System.nanoTime()), nur Sendethread
+	private long probedVersion = -1; // Stand der Benutzerliste bei der letzten Probe, nur Sendethread
+
+	private MulticastGroup(InetSocketAddress group, NetworkInterface networkInterface, int ttl) {
+		this.group = group;
+		this.networkInterface = networkInterface;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Liest die Konfiguration aus den System-Properties
+	 * @param port , UDP-Port des Chats
+	 * @return die Gruppe oder null, wenn keine (gueltige) konfiguriert ist
+	 */
+	public static MulticastGroup fromProperties(int port) {
+		String address = System.getProperty("chat.multicast");
+		if(address == null || address.isEmpty()) {
+			return null;
+		}
+		try {
+			InetAddress group = InetAddress.getByName(address);
+			if(!group.isMulticastAddress()) {
+				System.err.println(address + " ist keine Multicast-Adresse, es wird einzeln verschickt");
+				return null;
+			}
+			NetworkInterface networkInterface = networkInterface(System.getProperty("chat.multicast.interface"));
+			if(networkInterface == null) {
+				System.err.println("keine multicastfaehige Schnittstelle, es wird einzeln verschickt");
+				return null;
+			}
+			return new MulticastGroup(new InetSocketAddress(group, port), networkInterface,
+					Integer.getInteger("chat.multicast.ttl", 1));
+		} catch(UnknownHostException | SocketException e) {
+			System.err.println("Multicast nicht verfuegbar (" + e + "), es wird einzeln verschickt");
+			return null;
+		}
+	}
+
+	/**
+	 * @param name , gewuenschte Schnittstelle oder null
+	 * @return die Schnittstelle; ohne Namen die erste aktive, multicastfaehige, die kein Loopback ist
+	 */
+	private static NetworkInterface networkInterface(String name) throws SocketException {
+		if(name != null && !name.isEmpty()) {
+			return NetworkInterface.getByName(name);
+		}
+		for(NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if(candidate.isUp() && candidate.supportsMulticast() && !candidate.isLoopback()) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Protokollfamilie der Gruppe; der Kanal fuer den Beitritt muss mit ihr geoeffnet werden
+	 */
+	public ProtocolFamily family() {
+		return group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+	}
+
+	/**
+	 * Tritt mit einem (bereits gebundenen) Empfangskanal der Gruppe bei; scheitert es, wird die Gruppe als nicht
+	 * verfuegbar markiert
+	 * @param channel , mit family() geoeffnet
+	 */
+	public void join(DatagramChannel channel) {
+		try {
+			channel.join(group.getAddress(), networkInterface);
+		} catch(IOException | UnsupportedOperationException e) {
+			unavailable(e);
+		}
+	}
+
+	/**
+	 * Stellt einen Sendekanal auf die Gruppe ein (TTL, Schnittstelle, eigene Pakete ebenfalls empfangen); scheitert
+	 * es, wird die Gruppe als nicht verfuegbar markiert
+	 * @param channel , Sendekanal
+	 */
+	public void configureSender(DatagramChannel channel) {
+		try {
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		} catch(IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			unavailable(e);
+		}
+	}
+
+	/**
+	 * Faellt dauerhaft auf einzelne Pakete zurueck
+	 * @param cause , Grund fuer die Meldung
+	 */
+	public void unavailable(Exception cause) {
+		if(available) {
+			available = false;
+			System.err.println("Multicast an " + group + " nicht verfuegbar (" + cause + "), es wird einzeln verschickt");
+		}
+	}
+
+	/**
+	 * @return true, solange an die Gruppe geschickt wird
+	 */
+	public boolean isAvailable() {
+		return available;
+	}
+
+	/**
+	 * Schickt eine Probe an die Gruppe, wenn die letzte PROBE_INTERVAL zurueckliegt oder sich die Benutzerliste
+	 * seitdem geaendert hat; vergisst dabei Mitglieder, die zu lange nicht geantwortet haben. Nur Sendethread.
+	 * @param link , verschickt das Paket
+	 * @param version , Stand der Benutzerliste
+	 * @param now , System.nanoTime()
+	 * @return Nanosekunden bis zur naechsten Probe
+	 */
+	public long probe(Reliability.Link link, long version, long now) {
+		if(version == probedVersion && now - probedAt < PROBE_INTERVAL) {
+			return PROBE_INTERVAL - (now - probedAt);
+		}
+		probedVersion = version;
+		probedAt = now;
+		link.send(ByteBuffer.wrap(new byte[] { MAGIC, PROBE }), group);
+		Iterator<Long> it = members.values().iterator();
+		while(it.hasNext()) {
+			if(now - it.next() >= MEMBER_TIMEOUT) {
+				it.remove();
+			}
+		}
+		return PROBE_INTERVAL;
+	}
+
+	/**
+	 * Verarbeitet ein Paket der Mitgliedschaftspruefung: beantwortet eine Probe bzw. merkt den Absender einer
+	 * Antwort als Mitglied vor; nur Empfangsthread
+	 * @param packet , empfangenes Datagramm; bleibt unveraendert
+	 * @param from , Absender
+	 * @param link , verschickt die Antwort
+	 * @param port , UDP-Port, auf dem alle Clients empfangen
+	 * @param now , System.nanoTime()
+	 * @return false, wenn es kein solches Paket ist
+	 */
+	public boolean receive(ByteBuffer packet, InetSocketAddress from, Reliability.Link link, int port, long now) {
+		if(packet.remaining() != 2 || packet.get(packet.position()) != MAGIC) {
+			return false;
+		}
+		byte type = packet.get(packet.position() + 1);
+		if(type == PROBE) {
+			link.send(ByteBuffer.wrap(new byte[] { MAGIC, MEMBER }), new InetSocketAddress(from.getAddress(), port));
+		} else if(type == MEMBER) {
+			members.put(from.getAddress(), now);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param address , Adresse eines Benutzers der Liste
+	 * @param now , System.nanoTime()
+	 * @return true, wenn er zuletzt innerhalb von MEMBER_TIMEOUT auf eine Probe geantwortet hat, die
+	 *         Gruppenpakete also erhaelt
+	 */
+	public boolean isMember(InetAddress address, long now) {
+		Long heard = members.get(address);
+		return heard != null && now - heard < MEMBER_TIMEOUT;
+	}
+
+	/**
+	 * @return Gruppe und Port
+	 */
+	public InetSocketAddress address() {
+		return group;
+	}
+}
@@ -0,0 +1,529 @@
+package praktikum;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Zuverlaessige, geordnete Zustellung ueber UDP, je Paar aus Absender und Empfaenger. Jede Nachricht
+ *          eines Clients bekommt eine Sequenznummer; der Empfaenger stellt die Nachrichten eines Absenders in
+ *          Reihenfolge zu (Puffer fuer vorzeitig angekommene) und bestaetigt kumulativ. Luecken meldet er sofort mit
+ *          selektiven NACKs, der Absender wiederholt die fehlenden Pakete dann ohne den Timer abzuwarten. Die
+ *          Wiederholungszeit (RTO) passt sich je Empfaenger der gemessenen Round-Trip-Time an (SRTT/RTTVAR nach RFC
+ *          6298, Karn: keine Messung an wiederholten Paketen, Verdopplung nach Ablauf). Bestaetigungen werden gesammelt
+ *          (hoechstens ACK_DELAY bzw. ACK_EVERY Pakete) und, wenn gerade Daten an denselben Client gehen, in deren Kopf
+ *          mitgeschickt.
+ *
+ *          Mit Multicast geht eine Nachricht einmal an die Gruppe (und einzeln an die Empfaenger, die nicht als
+ *          Mitglied bestaetigt sind); bestaetigt wird trotzdem je Empfaenger, und Wiederholungen gehen einzeln. Ein
+ *          Empfaenger beginnt den Strom eines Absenders immer mit einem einzelnen Paket (der Absender schickt einzeln,
+ *          bis der Empfaenger einmal bestaetigt hat), denn nur dessen Feld "base" gilt genau fuer ihn. Clients werden an ihrer IP erkannt, wie in der Benutzerliste: ein Client pro Rechner.
+ *          Der Sendezustand eines Empfaengers wird verworfen, sobald er nicht mehr zu den Empfaengern gehoert oder
+ *          eine Nachricht MAX_TRANSMISSIONS-mal wiederholt wurde, ohne dass er seit ihrer ersten Uebertragung
+ *          irgendetwas bestaetigt hat; schreibt man ihm spaeter wieder, beginnt er von vorn.
+ *
+ *          Die Klasse macht selbst kein I/O und liest keine Uhr: Pakete gehen ueber einen Link hinaus, Zeitpunkte
+ *          (System.nanoTime()) uebergibt der Aufrufer. So laesst sie sich auch in einem simulierten Netz betreiben
+ *          (siehe benchmark.ReliabilityBenchmark). Alle Methoden sind synchronisiert.
+ *
+ *          Paketformat (big endian); Klartext-Nachrichten aelterer Clients beginnen nie mit 0:
+ *          DATA 0, 1, int Absender-ID, byte Flags (1 = ACK-Block folgt, 2 = an die Gruppe), long Sequenznummer,
+ *          long aelteste noch unbestaetigte Sequenznummer, [ACK-Block], Nachricht (UTF-8)
+ *          ACK 0, 2, int Absender-ID, ACK-Block
+ *          ACK-Block int bestaetigte Absender-ID, long letzte der Reihe nach zugestellte Sequenznummer, long bis hierher
+ *          ist die NACK-Liste vollstaendig, byte Anzahl, je fehlender Nachricht long Sequenznummer
+ */
+public class Reliability {
+
+	/**
+	 * Verschickt fertige Pakete; darf Pakete verlieren (z.B. bei vollem Sendepuffer), sie werden wiederholt
+	 */
+	public interface Link {
+		void send(ByteBuffer packet, InetSocketAddress to);
+	}
+
+	/**
+	 * Nimmt die in Reihenfolge zugestellten Nachrichten entgegen
+	 */
+	public interface Listener {
+		void deliver(InetSocketAddress from, String message);
+	}
+
+	private static final byte MAGIC = 0;
+	private static final byte DATA = 1;
+	private static final byte ACK = 2;
+	private static final int FLAG_ACK = 1;
+	private static final int FLAG_GROUP = 2;
+	private static final int DATA_HEADER = 2 + 4 + 1 + 8 + 8;
+	private static final int MAX_NACKS = 32; // fehlende Nachrichten pro ACK
+	private static final int ACK_EVERY = 16; // spaetestens nach so vielen Paketen sofort bestaetigen
+	private static final long ACK_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+	private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final int MAX_TRANSMISSIONS = 10; // danach wird die Nachricht fuer diesen Empfaenger aufgegeben
+	private static final int MAX_IN_FLIGHT = 4096; // unbestaetigte Nachrichten pro Empfaenger
+	private static final int REORDER_LIMIT = 1024; // vorzeitig angekommene Nachrichten pro Absender
+	private static final long NONE = Long.MAX_VALUE;
+
+	/**
+	 * Eine unbestaetigte Nachricht an einen Empfaenger
+	 */
+	private static final class Flight {
+		private final long seq;
+		private final byte[] payload; // von allen Empfaengern geteilt
+		private long firstSentAt; // erste Uebertragung
+		private long sentAt; // letzte Uebertragung
+		private int transmissions;
+
+		Flight(long seq, byte[] payload) {
+			this.seq = seq;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Sendeseite: ein Empfaenger meiner Nachrichten
+	 */
+	private static final class Peer {
+		private final InetSocketAddress address;
+		private final TreeMap<Long, Flight> inFlight = new TreeMap<>();
+		private long srtt = -1; // geglaettete RTT, -1 = noch keine Messung
+		private long rttvar;
+		private long rto = INITIAL_RTO;
+		private boolean confirmed; // hat schon bestaetigt, erhaelt also Gruppenpakete
+		private long heardAt; // letztes ACK
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Empfangsseite: ein Absender, dessen Nachrichten ich zustelle
+	 */
+	private static final class Stream {
+		private final InetSocketAddress address;
+		private final int sender; // ID der Sitzung; aendert sie sich, hat der Client neu gestartet
+		private long next; // naechste erwartete Sequenznummer
+		private final TreeMap<Long, String> reorder = new TreeMap<>();
+		private int unacked; // seit dem letzten ACK empfangene Pakete
+		private long ackDue = NONE; // spaetester Zeitpunkt fuer das naechste ACK
+
+		Stream(InetSocketAddress address, int sender) {
+			this.address = address;
+			this.sender = sender;
+		}
+	}
+
+	private final int id; // zufaellige ID dieser Sitzung
+	private final int port; // UDP-Port aller Clients; Absender werden an IP und diesem Port erkannt
+	private final Link link;
+	private final Listener listener;
+	private long nextSeq;
+	private final Map<InetSocketAddress, Peer> peers = new HashMap<>();
+	private final Map<InetSocketAddress, Stream> streams = new HashMap<>();
+
+	private long messages; // eigene Nachrichten
+	private long packets; // Datenpakete inkl. Wiederholungen
+	private long retransmits;
+	private long acks; // eigene ACK-Pakete
+	private long piggybacked; // im Kopf von Datenpaketen mitgeschickte ACKs
+	private long duplicates; // doppelt empfangene Datenpakete
+	private long skipped; // Nachrichten, die der Absender aufgegeben hat
+	private long gaveUp; // eigene Nachrichten, die ein Empfaenger nie bestaetigt hat
+
+	/**
+	 * Konstruktor
+	 * @param id , ID dieser Sitzung (zufaellig, unterscheidet Neustarts eines Clients)
+	 * @param port , UDP-Port, auf dem alle Clients empfangen
+	 * @param link , verschickt die Pakete
+	 * @param listener , erhaelt die zugestellten Nachrichten
+	 */
+	public Reliability(int id, int port, Link link, Listener listener) {
+		this.id = id;
+		this.port = port;
+		this.link = link;
+		this.listener = listener;
+	}
+
+	/**
+	 * Verschickt eine Nachricht an alle Empfaenger und merkt sie fuer Wiederholungen vor
+	 * @param message , die Nachricht
+	 * @param recipients , Adressen der Empfaenger (IP und UDP-Port der Clients)
+	 * @param group , Multicast-Gruppe oder null; mit Gruppe geht die Nachricht einmal an die Gruppe, Wiederholungen
+	 *            einzeln
+	 * @param now , System.nanoTime()
+	 */
+	public void send(String message, Collection<InetSocketAddress> recipients, InetSocketAddress group, long now) {
+		send(message, recipients, group, null, now);
+	}
+
+	/**
+	 * Wie send(message, recipients, group, now); Empfaenger, die nicht zu members gehoeren, erhalten jede Nachricht
+	 * zusaetzlich einzeln
+	 * @param members , Empfaenger, die die Gruppenpakete erhalten (siehe MulticastGroup.isMember); null = alle
+	 */
+	public synchronized void send(String message, Collection<InetSocketAddress> recipients, InetSocketAddress group,
+			Collection<InetSocketAddress> members, long now) {
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+		long seq = nextSeq++;
+		messages++;
+		for(InetSocketAddress to : recipients) {
+			Peer peer = peers.get(to);
+			if(peer == null) {
+				peer = new Peer(to);
+				peers.put(to, peer);
+			}
+			if(peer.inFlight.size() >= MAX_IN_FLIGHT) {
+				peer.inFlight.pollFirstEntry();
+				gaveUp++;
+			}
+			Flight flight = new Flight(seq, payload);
+			peer.inFlight.put(seq, flight);
+			if(group == null || !peer.confirmed || (members != null && !members.contains(to))) {
+				transmit(peer, flight, now); // der erste Kontakt und Nicht-Mitglieder einzeln, mit genauem base
+			} else {
+				flight.firstSentAt = now;
+				flight.sentAt = now;
+				flight.transmissions = 1;
+			}
+		}
+		if(group != null) {
+			link.send(data(seq, seq, FLAG_GROUP, payload, null), group);
+			packets++;
+		}
+		if(peers.size() > recipients.size()) {
+			forget(recipients);
+		}
+	}
+
+	/**
+	 * Verwirft den Sendezustand aller Empfaenger, die nicht mehr dazugehoeren (aus der Benutzerliste entfernt)
+	 */
+	private void forget(Collection<InetSocketAddress> recipients) {
+		HashSet<InetSocketAddress> current = new HashSet<>(recipients);
+		Iterator<Peer> peerIterator = peers.values().iterator();
+		while(peerIterator.hasNext()) {
+			Peer peer = peerIterator.next();
+			if(!current.contains(peer.address)) {
+				gaveUp += peer.inFlight.size();
+				peerIterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Verarbeitet ein empfangenes Paket
+	 * @param packet , zwischen position und limit
+	 * @param from , Absender
+	 * @param now , System.nanoTime()
+	 * @return false, wenn es kein Paket dieser Schicht ist (Klartext eines aelteren Clients); dann ist packet
+	 *         unveraendert
+	 */
+	public synchronized boolean receive(ByteBuffer packet, InetSocketAddress from, long now) {
+		if(packet.remaining() < 6 || packet.get(packet.position()) != MAGIC) {
+			return false;
+		}
+		packet.get();
+		byte type = packet.get();
+		int sender = packet.getInt();
+		InetSocketAddress address = new InetSocketAddress(from.getAddress(), port);
+		if(type == DATA && packet.remaining() >= DATA_HEADER - 6) {
+			int flags = packet.get();
+			long seq = packet.getLong();
+			long base = packet.getLong();
+			if((flags & FLAG_ACK) != 0) {
+				ack(address, packet, now);
+			}
+			String message = StandardCharsets.UTF_8.decode(packet).toString();
+			data(address, sender, flags, seq, base, message, now);
+		} else if(type == ACK) {
+			ack(address, packet, now);
+		}
+		return true;
+	}
+
+	/**
+	 * Wiederholt unbestaetigte Nachrichten, deren RTO abgelaufen ist, und verschickt faellige ACKs
+	 * @param now , System.nanoTime()
+	 * @return Nanosekunden bis zum naechsten Aufruf; Long.MAX_VALUE = nichts ausstehend
+	 */
+	public synchronized long poll(long now) {
+		long next = NONE;
+		Iterator<Peer> peerIterator = peers.values().iterator();
+		while(peerIterator.hasNext()) {
+			Peer peer = peerIterator.next();
+			boolean expired = false;
+			boolean gone = false;
+			Iterator<Flight> flights = peer.inFlight.values().iterator();
+			while(flights.hasNext()) {
+				Flight flight = flights.next();
+				long deadline = flight.sentAt + peer.rto;
+				if(deadline - now > 0) {
+					next = Math.min(next, deadline);
+					continue;
+				}
+				if(flight.transmissions >= MAX_TRANSMISSIONS) {
+					if(!peer.confirmed || peer.heardAt - flight.firstSentAt < 0) {
+						gone = true; // seit der ersten Uebertragung kein ACK mehr
+						break;
+					}
+					flights.remove();
+					gaveUp++;
+					continue;
+				}
+				expired = true;
+				retransmits++;
+				transmit(peer, flight, now);
+				next = Math.min(next, now + peer.rto);
+			}
+			if(gone) {
+				gaveUp += peer.inFlight.size();
+				peerIterator.remove(); // Zustand und Timer des Empfaengers verwerfen
+				continue;
+			}
+			if(expired) {
+				peer.rto = Math.min(MAX_RTO, peer.rto * 2); // Backoff, bis wieder gemessen wird
+			}
+		}
+		for(Stream stream : streams.values()) {
+			if(stream.ackDue != NONE && stream.ackDue - now <= 0) {
+				link.send(ack(stream), stream.address);
+				acks++;
+			} else if(stream.ackDue != NONE) {
+				next = Math.min(next, stream.ackDue);
+			}
+		}
+		return next == NONE ? NONE : Math.max(0, next - now);
+	}
+
+	/**
+	 * Datenpaket an einen Empfaenger; ein faelliges ACK an denselben Client wird im Kopf mitgeschickt
+	 */
+	private void transmit(Peer peer, Flight flight, long now) {
+		Stream stream = streams.get(peer.address);
+		boolean piggyback = stream != null && stream.ackDue != NONE;
+		link.send(data(flight.seq, peer.inFlight.firstKey(), piggyback ? FLAG_ACK : 0, flight.payload,
+				piggyback ? stream : null), peer.address);
+		if(piggyback) {
+			piggybacked++;
+		}
+		if(flight.transmissions == 0) {
+			flight.firstSentAt = now;
+		}
+		flight.sentAt = now;
+		flight.transmissions++;
+		packets++;
+	}
+
+	private ByteBuffer data(long seq, long base, int flags, byte[] payload, Stream ack) {
+		List<Long> missing = ack != null ? missing(ack) : null;
+		ByteBuffer packet = ByteBuffer.allocate(DATA_HEADER + (ack != null ? ackLength(missing) : 0) + payload.length);
+		packet.put(MAGIC).put(DATA).putInt(id).put((byte) flags).putLong(seq).putLong(base);
+		if(ack != null) {
+			putAck(packet, ack, missing);
+		}
+		packet.put(payload);
+		packet.flip();
+		return packet;
+	}
+
+	private ByteBuffer ack(Stream stream) {
+		List<Long> missing = missing(stream);
+		ByteBuffer packet = ByteBuffer.allocate(6 + ackLength(missing));
+		packet.put(MAGIC).put(ACK).putInt(id);
+		putAck(packet, stream, missing);
+		packet.flip();
+		return packet;
+	}
+
+	private static int ackLength(List<Long> missing) {
+		return 4 + 8 + 8 + 1 + 8 * missing.size();
+	}
+
+	/**
+	 * Schreibt den ACK-Block eines Absenders und setzt dessen ACK-Zustand zurueck
+	 */
+	private void putAck(ByteBuffer packet, Stream stream, List<Long> missing) {
+		long upTo = missing.size() < MAX_NACKS ? highest(stream) : missing.get(missing.size() - 1);
+		packet.putInt(stream.sender).putLong(stream.next - 1).putLong(upTo).put((byte) missing.size());
+		for(long seq : missing) {
+			packet.putLong(seq);
+		}
+		stream.ackDue = NONE;
+		stream.unacked = 0;
+	}
+
+	/**
+	 * @return die fehlenden Sequenznummern vor der hoechsten empfangenen, hoechstens MAX_NACKS
+	 */
+	private static List<Long> missing(Stream stream) {
+		List<Long> missing = new ArrayList<>();
+		long highest = highest(stream);
+		for(long seq = stream.next; seq < highest && missing.size() < MAX_NACKS; seq++) {
+			if(!stream.reorder.containsKey(seq)) {
+				missing.add(seq);
+			}
+		}
+		return missing;
+	}
+
+	private static long highest(Stream stream) {
+		return stream.reorder.isEmpty() ? stream.next - 1 : stream.reorder.lastKey();
+	}
+
+	/**
+	 * Empfangsseite: stellt eine Nachricht in Reihenfolge zu bzw. puffert sie und plant das ACK
+	 */
+	private void data(InetSocketAddress address, int sender, int flags, long seq, long base, String message,
+			long now) {
+		Stream stream = streams.get(address);
+		if(stream == null || stream.sender != sender) {
+			if((flags & FLAG_GROUP) != 0) {
+				return; // base eines Gruppenpakets gilt nicht fuer jeden Empfaenger; warten auf ein einzelnes Paket
+			}
+			stream = new Stream(address, sender); // neuer Absender oder Neustart
+			stream.next = base;
+			streams.put(address, stream);
+		}
+		if(base > stream.next && (flags & FLAG_GROUP) == 0) {
+			skip(stream, base); // der Absender hat aeltere Nachrichten aufgegeben
+		}
+		long highest = highest(stream);
+		if(seq < stream.next || stream.reorder.containsKey(seq)) {
+			duplicates++;
+			stream.ackDue = now; // der Absender hat unser ACK offenbar nicht erhalten
+			return;
+		}
+		if(seq == stream.next) {
+			listener.deliver(address, message);
+			stream.next++;
+			drain(stream);
+		} else if(stream.reorder.size() < REORDER_LIMIT) {
+			stream.reorder.put(seq, message);
+			if(seq > highest + 1) {
+				stream.ackDue = now; // neue Luecke: sofort NACK
+			}
+		}
+		if(++stream.unacked >= ACK_EVERY) {
+			stream.ackDue = now;
+		} else if(stream.ackDue == NONE) {
+			stream.ackDue = now + ACK_DELAY;
+		}
+	}
+
+	/**
+	 * Stellt die gepufferten Nachrichten zu, die jetzt an der Reihe sind
+	 */
+	private void drain(Stream stream) {
+		String message;
+		while((message = stream.reorder.remove(stream.next)) != null) {
+			listener.deliver(stream.address, message);
+			stream.next++;
+		}
+	}
+
+	/**
+	 * Ueberspringt Nachrichten, die der Absender nicht mehr wiederholt; gepufferte werden noch zugestellt
+	 */
+	private void skip(Stream stream, long base) {
+		while(stream.next < base) {
+			String message = stream.reorder.remove(stream.next);
+			if(message != null) {
+				listener.deliver(stream.address, message);
+			} else {
+				skipped++;
+			}
+			stream.next++;
+		}
+		drain(stream);
+	}
+
+	/**
+	 * Sendeseite: verarbeitet einen ACK-Block eines Empfaengers
+	 */
+	private void ack(InetSocketAddress address, ByteBuffer packet, long now) {
+		if(packet.remaining() < 21) {
+			return;
+		}
+		int acked = packet.getInt();
+		long cumulative = packet.getLong();
+		long upTo = packet.getLong();
+		int count = packet.get() & 0xff;
+		List<Long> missing = new ArrayList<>(count);
+		for(int i = 0; i < count && packet.remaining() >= 8; i++) {
+			missing.add(packet.getLong());
+		}
+		Peer peer = peers.get(address);
+		if(acked != id || peer == null) {
+			return; // galt einer frueheren Sitzung
+		}
+		peer.confirmed = true;
+		peer.heardAt = now;
+		Flight sample = null; // juengste nur einmal uebertragene bestaetigte Nachricht
+		Iterator<Flight> flights = peer.inFlight.headMap(upTo, true).values().iterator();
+		while(flights.hasNext()) {
+			Flight flight = flights.next();
+			if(flight.seq > cumulative && missing.contains(flight.seq)) {
+				continue;
+			}
+			if(flight.transmissions == 1 && (sample == null || flight.sentAt - sample.sentAt > 0)) {
+				sample = flight;
+			}
+			flights.remove();
+		}
+		if(sample != null) {
+			rtt(peer, now - sample.sentAt);
+		}
+		long minGap = peer.srtt < 0 ? MIN_RTO : Math.max(MIN_RTO / 2, peer.srtt);
+		for(long seq : missing) {
+			Flight flight = peer.inFlight.get(seq);
+			if(flight != null && now - flight.sentAt >= minGap) { // nicht fuer jedes NACK erneut
+				retransmits++;
+				transmit(peer, flight, now);
+			}
+		}
+	}
+
+	/**
+	 * Aktualisiert SRTT, RTTVAR und RTO nach RFC 6298
+	 */
+	private static void rtt(Peer peer, long sample) {
+		if(peer.srtt < 0) {
+			peer.srtt = sample;
+			peer.rttvar = sample / 2;
+		} else {
+			peer.rttvar = (3 * peer.rttvar + Math.abs(peer.srtt - sample)) / 4;
+			peer.srtt = (7 * peer.srtt + sample) / 8;
+		}
+		peer.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, peer.srtt + 4 * peer.rttvar));
+	}
+
+	/**
+	 * @return Kennzahlen: eigene Nachrichten, Datenpakete, Wiederholungen, ACK-Pakete, mitgeschickte ACKs,
+	 *         Duplikate, uebersprungene und aufgegebene Nachrichten
+	 */
+	public synchronized long[] counters() {
+		return new long[] { messages, packets, retransmits, acks, piggybacked, duplicates, skipped, gaveUp };
+	}
+
+	/**
+	 * @return die Kennzahlen als Text
+	 */
+	public synchronized String summary() {
+		return "messages=" + messages + " packets=" + packets + " retransmits=" + retransmits + " acks=" + acks
+				+ " piggybacked=" + piggybacked + " duplicates=" + duplicates + " skipped=" + skipped + " gaveUp="
+				+ gaveUp;
+	}
+}
@@ -1,61 +1,199 @@
 package praktikum;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Haelt client.userList (Name -> IP) aktuell. Der Thread abonniert mit "USERS SUBSCRIBE" die
+ *          Aenderungen der Benutzerliste; der Server antwortet einmal mit der vollstaendigen, versionierten Liste und
+ *          schickt danach nur noch Beitritte und Abmeldungen:
+ *
+ *          USERV <version> name ip name ip ... vollstaendige Liste (Antwort auf das Abonnement)
+ *          UJOIN <version> name ip Benutzer ist beigetreten
+ *          ULEFT <version> name Benutzer hat sich abgemeldet
+ *
+ *          Jede Aenderung erhoeht die Version um genau eins und wird einzeln auf die Map angewendet. Fehlt eine Version
+ *          oder ist eine Zeile nicht lesbar, fordert der Thread die Liste neu an und verwirft bis dahin alle
+ *          Aenderungen. Eine leere Liste wird wie bisher ignoriert. Antwortet der Server auf das Abonnement nicht
+ *          innerhalb von 2 Sekunden mit "USERV ...", kennt er keine Abonnements und die Liste wird wie bisher alle 2
+ *          Sekunden abgefragt.
+ */
 public class UserListThread extends Thread {
 
+	private static final long POLL_INTERVAL = 2000; // ms, nur ohne Abonnement
+
 	BufferedReader in;
 	PrintWriter out;
-	Map<String, String> userList;
 	ChatClient_praktikum client;
-	
+	private long version = -1; // zuletzt angewendete Version, -1 = Liste wird (neu) angefordert
+
 	public UserListThread(ChatClient_praktikum client) {
 		this.in = client.in;
 		this.out = client.out;
 		this.client = client;
-		userList = new ConcurrentHashMap<>();
 	}
-	
+
 	@Override
 	public void run() {
-		
-		while(!this.isInterrupted()){
-			out.println("USERS");
-			
-			String input = null;
-			try {
-				input = in.readLine();
-				System.err.println(input);
-			} catch (IOException e) {
-				e.printStackTrace();
+		out.println("USERS SUBSCRIBE");
+		try {
+			String first = firstReply();
+			if(first == null || !first.startsWith("USERV ")) {
+				// Server ohne Abonnements
+				if(first != null && first.startsWith("USERS")) {
+					replace(parse(first.substring(Math.min(6, first.length()))));
+				}
+				poll();
+				return;
 			}
-			
-			if(input.startsWith("USERS")) {
-				input = input.substring(6);
-				if(input.length() > 1) {
-					String[] inputArray = input.split(" ");
-					for(int i = 1; i < inputArray.length; i += 2) {
-						userList.put(inputArray[i - 1], inputArray[i]);
-					}
-					
-					synchronized (client.userList) {
-						client.userList.clear();
-						client.userList.putAll(userList);
-					}
+			resync(first.substring(6));
+			while(!this.isInterrupted()) {
+				String input = in.readLine();
+				if(input == null) {
+					return; // Verbindung beendet
+				}
+				if(input.startsWith("USERV ")) {
+					resync(input.substring(6));
+				} else if(input.startsWith("UJOIN ") || input.startsWith("ULEFT ")) {
+					delta(input);
 				}
 			}
-			
-			
+		} catch(IOException e) {
+			System.err.println("Error bei Userlist");
+		}
+	}
+
+	/**
+	 * @return die erste Antwort auf das Abonnement; null, wenn innerhalb von POLL_INTERVAL keine kommt
+	 * @throws EOFException wenn die Verbindung beendet wurde
+	 */
+	private String firstReply() throws IOException {
+		Socket socket = client.socket;
+		if(socket != null) {
+			socket.setSoTimeout((int) POLL_INTERVAL);
+		}
+		try {
+			String input = in.readLine();
+			if(input == null) {
+				throw new EOFException();
+			}
+			return input;
+		} catch(SocketTimeoutException e) {
+			return null;
+		} finally {
+			if(socket != null && !socket.isClosed()) {
+				socket.setSoTimeout(0);
+			}
+		}
+	}
+
+	/**
+	 * Verwirft den Stand und fordert die vollstaendige Liste neu an
+	 */
+	private void resubscribe() {
+		version = -1;
+		out.println("USERS SUBSCRIBE");
+	}
+
+	/**
+	 * Wendet eine Aenderung an, wenn sie genau die naechste Version ist; sonst wird die Liste neu angefordert
+	 * @param input , "UJOIN <version> name ip" bzw. "ULEFT <version> name"
+	 */
+	private void delta(String input) {
+		String[] fields = input.split(" ");
+		if(fields.length < 3 || version < 0) {
+			return; // Liste ist bereits angefordert
+		}
+		long next;
+		try {
+			next = Long.parseLong(fields[1]);
+		} catch(NumberFormatException e) {
+			resubscribe(); // Zeile nicht lesbar, Stand unsicher
+			return;
+		}
+		if(next <= version) {
+			return; // bereits enthalten
+		}
+		if(next != version + 1) {
+			resubscribe();
+			return;
+		}
+		version = next;
+		if(input.startsWith("UJOIN ") && fields.length >= 4) {
+			client.userList.put(fields[2], fields[3]);
+		} else {
+			client.userList.remove(fields[2]);
+		}
+		client.userListVersion.incrementAndGet();
+	}
+
+	/**
+	 * Uebernimmt die vollstaendige Liste
+	 * @param input , "<version> name ip name ip ..."
+	 */
+	private void resync(String input) {
+		int idx = input.indexOf(' ');
+		try {
+			version = Long.parseLong(idx < 0 ? input : input.substring(0, idx));
+		} catch(NumberFormatException e) {
+			resubscribe();
+			return;
+		}
+		replace(parse(idx < 0 ? "" : input.substring(idx + 1)));
+	}
+
+	/**
+	 * Fragt die Liste alle 2 Sekunden vollstaendig ab (Server ohne Abonnements)
+	 */
+	private void poll() throws IOException {
+		while(!this.isInterrupted()) {
 			try {
-				sleep(2000);
-			} catch (InterruptedException e) {
-				System.err.println("Error bei Userlist");
+				sleep(POLL_INTERVAL);
+			} catch(InterruptedException e) {
+				return;
 			}
+			out.println("USERS");
+			String input = in.readLine();
+			if(input == null) {
+				return;
+			}
+			if(input.startsWith("USERS")) {
+				replace(parse(input.substring(Math.min(6, input.length()))));
+			}
+		}
+	}
+
+	/**
+	 * @param list , "name ip name ip ..."
+	 * @return Name -> IP
+	 */
+	private static Map<String, String> parse(String list) {
+		Map<String, String> users = new HashMap<>();
+		String[] inputArray = list.trim().split(" ");
+		for(int i = 1; i < inputArray.length; i += 2) {
+			users.put(inputArray[i - 1], inputArray[i]);
+		}
+		return users;
+	}
+
+	/**
+	 * Gleicht client.userList mit einer vollstaendigen Liste ab; nur geaenderte Eintraege werden geschrieben, Leser
+	 * sehen zu keinem Zeitpunkt eine leere Liste. Eine leere Liste wird ignoriert (wie bisher), der eigene Benutzer
+	 * steht immer darin.
+	 */
+	private void replace(Map<String, String> users) {
+		if(users.isEmpty() || client.userList.equals(users)) {
+			return;
 		}
+		client.userList.keySet().retainAll(users.keySet());
+		client.userList.putAll(users);
+		client.userListVersion.incrementAndGet();
 	}
 }
@@ -0,0 +1,369 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Binaeres Chat-Protokoll mit Laengenpraefix, wird von Server und Client benutzt. Ein Frame besteht aus
+ *          int Laenge (Opcode + Nutzdaten, big endian), einem Byte Opcode und den Nutzdaten. Nachrichten duerfen
+ *          daher beliebige Zeichen (auch Zeilenumbrueche) enthalten und muessen nicht nach einem Zeilenende
+ *          durchsucht werden; statt Nicknames werden kompakte User-IDs uebertragen.
+ *
+ *          Ausgehandelt wird das Protokoll im Textprotokoll: der Client antwortet auf /NAME mit "/OPTSbinary", der
+ *          Server bestaetigt mit "/OPTSbinary" (bzw. "/OPTS", wenn er ablehnt). Ab der Bestaetigung sprechen beide
+ *          Seiten nur noch Frames; der Client darf erst nach der Bestaetigung Frames schicken.
+ *
+ *          Mit "/OPTSbinary,deflate" bietet der Client zusaetzlich Kompression an; bestaetigt der Server
+ *          "/OPTSbinary,deflate", darf er ihm jedes Frame auch als DEFLATED schicken. Komprimiert wird jedes Frame fuer
+ *          sich (Deflate ohne zlib-Kopf, mit dem festen Woerterbuch DICTIONARY), damit der Server ein Frame einmal
+ *          komprimieren und dieselben Bytes an alle Empfaenger schicken kann.
+ *
+ *          Opcodes und Nutzdaten:
+ *          NAME S->C -, Nickname wird (erneut) angefordert
+ *          USER C->S Nickname (UTF-8)
+ *          ACPT S->C int eigene User-ID
+ *          MSGE C->S Nachricht (UTF-8); S->C fertig formatierte Zeile (Hinweise, Verlauf)
+ *          USRS C->S -; S->C int Anzahl, je Benutzer int User-ID, short Laenge, Nickname (UTF-8)
+ *          QUIT C->S -, Abmelden; S->C -, Abmeldung bestaetigt
+ *          CHAT S->C int User-ID, long Zeitstempel (ms), Nachricht (UTF-8)
+ *          JOIN S->C int User-ID, Nickname (UTF-8)
+ *          LEFT S->C int User-ID
+ *          HIST C->S Argument wie bei /HIST (UTF-8)
+ *          STAT C->S -, Kennzahlen abfragen (nur Admins); Antwort als MSGE-Frames
+ *          ROOM_JOIN C->S Name des Raums (UTF-8), wie /JOIN
+ *          ROOM_LEAVE C->S -, zurueck in den Standardraum, wie /LEAV
+ *          ROOMS C->S -, Liste der Raeume wie /ROOM; Antwort als MSGE-Frames
+ *          PING S->C -, Heartbeat; der Client antwortet mit PONG
+ *          PONG C->S -, Antwort auf PING
+ *          DEFLATED S->C int Laenge des inneren Frames (Opcode + Nutzdaten), dieses komprimiert
+ *          PRIVATE C->S "<nick> <nachricht>" (UTF-8), wie /PRIV; zugestellt als MSGE-Frame
+ */
+public final class BinaryProtocol {
+
+	public static final String OPTION = "binary"; // Name der Option in /OPTS
+	public static final String DEFLATE_OPTION = "deflate"; // Kompression, nur zusammen mit OPTION
+	public static final int HEADER = 5; // int Laenge + Opcode
+	public static final int MAX_LENGTH = 1 << 24; // groesste zulaessige Laenge (Opcode + Nutzdaten)
+
+	public static final byte NAME = 1;
+	public static final byte USER = 2;
+	public static final byte ACPT = 3;
+	public static final byte MSGE = 4;
+	public static final byte USRS = 5;
+	public static final byte QUIT = 6;
+	public static final byte CHAT = 7;
+	public static final byte JOIN = 8;
+	public static final byte LEFT = 9;
+	public static final byte HIST = 10;
+	public static final byte STAT = 11;
+	public static final byte ROOM_JOIN = 12;
+	public static final byte ROOM_LEAVE = 13;
+	public static final byte ROOMS = 14;
+	public static final byte PING = 15;
+	public static final byte PONG = 16;
+	public static final byte DEFLATED = 17;
+	public static final byte PRIVATE = 18;
+
+	/**
+	 * Voreingestelltes Woerterbuch fuer DEFLATED: typische Bestandteile von Chat-Zeilen und eingefuegten
+	 * Stacktraces, damit auch einzelne, mittelgrosse Frames gut komprimieren. Aendern bricht die Kompatibilitaet.
+	 */
+	private static final byte[] DICTIONARY = ("\n\tat java.util.concurrent.\n\tat java.lang.reflect.Method.invoke"
+			+ "(Method.java:\n\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)\n\tat org.apache."
+			+ "\n\tat org.springframework.\n\tat java.lang.Thread.run(Thread.java:\n\t... more\nCaused by: "
+			+ "java.lang.NullPointerException\njava.lang.IllegalStateException: Exception in thread \"main\" "
+			+ "ERROR WARN INFO DEBUG [main] .java:) joined disconnected list of users:   you are now in #main "
+			+ "history #").getBytes(StandardCharsets.US_ASCII);
+
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Legt ein Frame an und schreibt den Kopf; die Nutzdaten folgen ab der aktuellen Position
+	 * @param opcode , Befehl
+	 * @param payloadLength , Laenge der Nutzdaten
+	 */
+	public static ByteBuffer allocate(byte opcode, int payloadLength) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER + payloadLength);
+		frame.putInt(1 + payloadLength).put(opcode);
+		return frame;
+	}
+
+	/**
+	 * @return Frame ohne Nutzdaten
+	 */
+	public static ByteBuffer empty(byte opcode) {
+		ByteBuffer frame = allocate(opcode, 0);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * @return Frame mit einem Text als Nutzdaten
+	 */
+	public static ByteBuffer text(byte opcode, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = allocate(opcode, bytes.length);
+		frame.put(bytes).flip();
+		return frame;
+	}
+
+	/**
+	 * @return Frame mit einer User-ID als Nutzdaten (ACPT, LEFT)
+	 */
+	public static ByteBuffer id(byte opcode, int userId) {
+		ByteBuffer frame = allocate(opcode, 4);
+		frame.putInt(userId).flip();
+		return frame;
+	}
+
+	/**
+	 * @return JOIN-Frame
+	 */
+	public static ByteBuffer join(int userId, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = allocate(JOIN, 4 + bytes.length);
+		frame.putInt(userId).put(bytes).flip();
+		return frame;
+	}
+
+	/**
+	 * @return CHAT-Frame einer Nachricht
+	 */
+	public static ByteBuffer chat(int userId, long time, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return chat(userId, time, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return CHAT-Frame einer bereits UTF-8-kodierten Nachricht
+	 */
+	public static ByteBuffer chat(int userId, long time, byte[] text, int offset, int length) {
+		ByteBuffer frame = allocate(CHAT, 12 + length);
+		frame.putInt(userId).putLong(time).put(text, offset, length).flip();
+		return frame;
+	}
+
+	/**
+	 * Uebersetzt eine kodierte Zeile des Textprotokolls ("/XXXX...\n") in ein Frame. Unbekannte Befehle werden als
+	 * MSGE mit der ganzen Zeile uebertragen.
+	 * @param line , UTF-8 inkl. Zeilenumbruch zwischen position und limit
+	 * @return das Frame
+	 */
+	public static ByteBuffer fromTextLine(ByteBuffer line) {
+		int start = line.position();
+		int end = line.limit();
+		if(end > start && line.get(end - 1) == '\n') {
+			end--;
+		}
+		byte opcode = 0;
+		if(end - start >= 5) {
+			opcode = opcode(line, start);
+		}
+		if(opcode == 0) {
+			opcode = MSGE;
+		} else {
+			start += 5;
+		}
+		ByteBuffer frame = allocate(opcode, end - start);
+		ByteBuffer payload = line.duplicate();
+		payload.limit(end).position(start);
+		frame.put(payload).flip();
+		return frame;
+	}
+
+	/**
+	 * Erkennt den Befehl einer Textzeile anhand der ersten fuenf Bytes
+	 * @return Opcode oder 0, wenn unbekannt
+	 */
+	private static byte opcode(ByteBuffer line, int start) {
+		if(line.get(start) != '/') {
+			return 0;
+		}
+		int command = line.getInt(start + 1);
+		switch(command) {
+		case 0x4E414D45: // NAME
+			return NAME;
+		case 0x55534552: // USER
+			return USER;
+		case 0x41435054: // ACPT
+			return ACPT;
+		case 0x4D534745: // MSGE
+			return MSGE;
+		case 0x55535253: // USRS
+			return USRS;
+		case 0x51554954: // QUIT
+			return QUIT;
+		case 0x48495354: // HIST
+			return HIST;
+		case 0x53544154: // STAT
+			return STAT;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Prueft, ob ab der aktuellen Position ein vollstaendiges Frame im Puffer liegt
+	 * @return Laenge des Frames inkl. Kopf, 0 wenn noch unvollstaendig, -1 bei ungueltiger Laenge
+	 */
+	public static int frameLength(ByteBuffer buffer) {
+		if(buffer.remaining() < 4) {
+			return 0;
+		}
+		int length = buffer.getInt(buffer.position());
+		if(length < 1 || length > MAX_LENGTH) {
+			return -1;
+		}
+		return buffer.remaining() >= 4 + length ? 4 + length : 0;
+	}
+
+	/**
+	 * @param frame , Frame ab position
+	 * @return Opcode des Frames
+	 */
+	public static byte opcode(ByteBuffer frame) {
+		return frame.get(frame.position() + 4);
+	}
+
+	/**
+	 * @param frame , Frame ab position bis limit
+	 * @return die Nutzdaten als eigener Puffer (position 0)
+	 */
+	public static ByteBuffer payload(ByteBuffer frame) {
+		ByteBuffer payload = frame.duplicate();
+		payload.position(frame.position() + HEADER);
+		return payload.slice();
+	}
+
+	/**
+	 * Dekodiert die restlichen Bytes als UTF-8
+	 */
+	public static String string(ByteBuffer buffer) {
+		return string(buffer, buffer.remaining());
+	}
+
+	/**
+	 * Dekodiert length Bytes ab position als UTF-8 und rueckt die Position vor
+	 */
+	public static String string(ByteBuffer buffer, int length) {
+		String s;
+		if(buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+		} else {
+			byte[] bytes = new byte[length];
+			buffer.duplicate().get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+
+	/**
+	 * Liest ein Frame von einem blockierenden Stream
+	 * @return das Frame inkl. Kopf (position 0)
+	 * @throws IOException bei ungueltiger Laenge oder Verbindungsende
+	 */
+	public static ByteBuffer read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 1 || length > MAX_LENGTH) {
+			throw new IOException("ungueltige Frame-Laenge " + length);
+		}
+		byte[] frame = new byte[4 + length];
+		in.readFully(frame, 4, length);
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		buffer.putInt(0, length);
+		return buffer;
+	}
+
+	/**
+	 * Komprimiert ein Frame als DEFLATED
+	 * @param frame , Frame inkl. Kopf zwischen position und limit (bleibt unveraendert)
+	 * @param deflater , wiederverwendbar, ohne zlib-Kopf (nowrap); wird zurueckgesetzt
+	 * @return das DEFLATED-Frame oder null, wenn es nicht kleiner als das Original waere
+	 */
+	public static ByteBuffer deflate(ByteBuffer frame, Deflater deflater) {
+		int inner = frame.remaining() - 4;
+		byte[] input = new byte[inner];
+		ByteBuffer src = frame.duplicate();
+		src.position(src.position() + 4);
+		src.get(input);
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(input);
+		deflater.finish();
+		byte[] out = new byte[frame.remaining()]; // mehr darf es nicht werden, sonst lohnt es nicht
+		int length = HEADER + 4;
+		while(!deflater.finished()) {
+			if(length == out.length) {
+				return null;
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		ByteBuffer deflated = ByteBuffer.wrap(out, 0, length);
+		deflated.putInt(0, length - 4).put(4, DEFLATED).putInt(HEADER, inner);
+		return deflated;
+	}
+
+	/**
+	 * Entpackt ein DEFLATED-Frame; andere Frames werden unveraendert zurueckgegeben
+	 * @param frame , Frame inkl. Kopf ab position
+	 * @param inflater , wiederverwendbar, ohne zlib-Kopf (nowrap); wird zurueckgesetzt
+	 * @return das innere Frame inkl. Kopf (position 0)
+	 * @throws IOException bei beschaedigten Daten
+	 */
+	public static ByteBuffer inflate(ByteBuffer frame, Inflater inflater) throws IOException {
+		if(opcode(frame) != DEFLATED) {
+			return frame;
+		}
+		ByteBuffer payload = payload(frame);
+		int inner = payload.getInt();
+		if(inner < 1 || inner > MAX_LENGTH) {
+			throw new IOException("ungueltige Frame-Laenge " + inner);
+		}
+		byte[] input = new byte[payload.remaining()];
+		payload.get(input);
+		byte[] out = new byte[4 + inner];
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);
+		inflater.setInput(input);
+		try {
+			int length = 4;
+			while(length < out.length && !inflater.finished()) {
+				int n = inflater.inflate(out, length, out.length - length);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if(length != out.length) {
+				throw new IOException("DEFLATED-Frame unvollstaendig");
+			}
+		} catch(DataFormatException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(out);
+		buffer.putInt(0, inner);
+		return buffer;
+	}
+
+	/**
+	 * Schreibt ein Frame auf einen Stream (ohne flush)
+	 */
+	public static void write(OutputStream out, ByteBuffer frame) throws IOException {
+		if(frame.hasArray()) {
+			out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		} else {
+			byte[] bytes = new byte[frame.remaining()];
+			frame.duplicate().get(bytes);
+			out.write(bytes);
+		}
+	}
+}
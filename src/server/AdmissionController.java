@@ -0,0 +1,131 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Entscheidet im Acceptor ueber jede angenommene Verbindung, ohne je zu blockieren: der Acceptor nimmt
+ *          immer an, und ist der Server voll oder baut dieselbe Adresse zu schnell Verbindungen auf, bekommt der
+ *          Client sofort "/ERRO<Grund>" und die Verbindung wird geschlossen. Ueberlast fuehrt so zu einer schnellen,
+ *          billigen Absage statt zu Verbindungen, die im Backlog des Kernels haengen, bis der Client aufgibt.
+ */
+class AdmissionController {
+
+	static final String FULL = "server full"; // alle Verbindungsplaetze belegt
+	static final String RATE_LIMITED = "too many connections"; // zu viele Verbindungsaufbauten dieser Adresse
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+	private final Semaphore slots; // freie Verbindungsplaetze
+	private final double connectRate; // Verbindungsaufbauten pro Sekunde und Adresse, 0 = unbegrenzt
+	private final double connectBurst;
+	private final Map<InetAddress, TokenBucket> buckets = new HashMap<InetAddress, TokenBucket>(); // nur Acceptor
+	private long lastSweep = System.nanoTime();
+	private final ServerMetrics metrics;
+
+	/**
+	 * Konstruktor
+	 * @param config , liefert Verbindungslimit und Rate pro Adresse
+	 * @param metrics , zaehlt angenommene und abgewiesene Verbindungen
+	 */
+	AdmissionController(ServerConfig config, ServerMetrics metrics) {
+		this.slots = new Semaphore(config.getMaxConnections());
+		this.connectRate = config.getConnectRate();
+		this.connectBurst = config.getConnectBurst();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Laesst eine frisch angenommene Verbindung zu oder weist sie ab; nur vom Acceptor aufgerufen
+	 * @param channel , die angenommene Verbindung
+	 * @return true, wenn die Verbindung einen Platz belegt hat; sonst ist sie bereits beantwortet und geschlossen
+	 */
+	boolean admit(SocketChannel channel) {
+		String reason = null;
+		if(connectRate > 0 && !withinRate(channel)) {
+			reason = RATE_LIMITED;
+			metrics.rejectedRate.increment();
+		} else if(!slots.tryAcquire()) {
+			reason = FULL;
+			metrics.rejectedFull.increment();
+		}
+		if(reason == null) {
+			metrics.connectionsOpened.increment();
+			return true;
+		}
+		reject(channel, reason);
+		return false;
+	}
+
+	/**
+	 * Gibt den Platz einer abgebauten Verbindung wieder frei
+	 */
+	void release() {
+		metrics.connectionsClosed.increment();
+		slots.release();
+	}
+
+	/**
+	 * @return freie Verbindungsplaetze
+	 */
+	int available() {
+		return slots.availablePermits();
+	}
+
+	private boolean withinRate(SocketChannel channel) {
+		InetAddress address;
+		try {
+			address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+		} catch(IOException e) {
+			return true; // bereits getrennt, scheitert gleich beim Lesen
+		}
+		long now = System.nanoTime();
+		if(now - lastSweep > SWEEP_INTERVAL) {
+			sweep(now);
+		}
+		TokenBucket bucket = buckets.get(address);
+		if(bucket == null) {
+			bucket = new TokenBucket(connectRate, connectBurst, now);
+			buckets.put(address, bucket);
+		}
+		return bucket.tryAcquire(now);
+	}
+
+	/**
+	 * Vergisst Adressen, deren Bucket wieder voll ist; sie verhalten sich wie neue Adressen
+	 */
+	private void sweep(long now) {
+		for(Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext();) {
+			if(it.next().isFull(now)) {
+				it.remove();
+			}
+		}
+		lastSweep = now;
+	}
+
+	/**
+	 * Schickt die Absage und schliesst die Verbindung. Der Sendepuffer einer neuen Verbindung ist leer, die kurze
+	 * Zeile passt also immer hinein; geschrieben wird trotzdem nicht-blockierend, damit ein Client den Acceptor nie
+	 * aufhalten kann.
+	 */
+	private static void reject(SocketChannel channel, String reason) {
+		try {
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(("/ERRO" + reason + "\n").getBytes(StandardCharsets.US_ASCII)));
+		} catch(IOException e) {
+		}
+		try {
+			channel.close();
+		} catch(IOException e) {
+		}
+	}
+}
@@ -1,105 +1,443 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 
+import protocol.BinaryProtocol;
+
 /**
  * @author Marc Kaepke & Anna Steinhauer
  * @version 2.0 Ein Multi-Thread/Client Chat Raum Server (TCP Server-Socket).
  */
 public class ChatServer {
 	
-	private static final int PORT = 56789; // Port, als Konstante
-	
-	private List<String> users = new ArrayList<String>(); // Liste alles
-														  // Mitglieder im
-														  // Chat-Raum
-	private List<PrintWriter> writers = new ArrayList<PrintWriter>(); // Liste
-																	  // aller
-																	  // PrintWriters
-																	  // (out to
-																	  // client)
-	private List<String> session = new ArrayList<String>(); // Liste aller
-															// gesendeten
-															// Nachrichten;
-															// serverseitig
-	
-	private JFrame logFrame; // Server-Log Fenster
+	// Befehle des Textprotokolls, werden direkt auf den empfangenen Bytes verglichen
+	private static final byte[] QUIT = ascii("/QUIT");
+	private static final byte[] USRS = ascii("/USRS");
+	private static final byte[] HIST = ascii("/HIST");
+	private static final byte[] STAT = ascii("/STAT");
+	private static final byte[] JOIN = ascii("/JOIN");
+	private static final byte[] LEAV = ascii("/LEAV");
+	private static final byte[] ROOM = ascii("/ROOM");
+	private static final byte[] PONG = ascii("/PONG");
+	private static final byte[] PRIV = ascii("/PRIV");
+	private static final byte[] MSGE_OPEN = ascii("/MSGE(");
+	
+	static final int MAX_NICKNAME_LENGTH = 32; // laengster zulaessiger Nickname in Zeichen
+	
+	// Ergebnis von negotiate
+	static final int OPT_BINARY = 1; // Binaerprotokoll
+	static final int OPT_DEFLATE = 2; // grosse Frames komprimiert (nur mit OPT_BINARY)
+	private static final Frame QUIT_FRAME = Frame.of("/QUIT");
+	private static final Frame PING_FRAME = Frame.of("/PING", BinaryProtocol.empty(BinaryProtocol.PING));
+	private static final Frame THROTTLE_NOTICE = Frame.of("/MSGE        rate limit exceeded, slowing down");
+	private static final Frame DROP_NOTICE = Frame.of("/MSGE        rate limit exceeded, messages dropped");
+	
+	private final ServerConfig config; // Konfiguration (Port, Modus, ...)
+	
+	private final ServerMetrics metrics = new ServerMetrics(this); // Zaehler, Histogramme und Gauges
+	private final UserRegistry users = new UserRegistry(metrics.usersLock); // alle Mitglieder
+														   // im Chat
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>(); // alle Raeume
+	private final RoomShard[] shards; // verteilen die Nachrichten der Raeume, leer = im Thread des Absenders
+	private final Room defaultRoom; // Raum nach der Anmeldung
+	
+	private JFrame logFrame; // Server-Log Fenster, null im Headless-Modus
 	private JTextArea logTextArea; // Anzeigebereich des Logs
-	private JScrollPane scrollPane = new JScrollPane(logTextArea);
+	private JScrollPane scrollPane;
+	private final ServerLog log; // asynchrones Log (Datei und Fenster)
+	private final MessageJournal journal; // Verlauf aller /MSGE-Frames, null = kein Journal
+	private final Federation federation; // Verbund mit anderen Knoten, null = eigenstaendig
+	private int peerPort = -1; // Port fuer andere Knoten, -1 = keiner
 	
-	private Semaphore semaphore;
+	private final AdmissionController admission; // begrenzt Verbindungen insgesamt und pro Adresse
+	private final TimerWheel wheel; // Heartbeats aller Verbindungen, null = keine
+	private final Compressor compressor; // komprimiert grosse Frames, null = abgeschaltet
+	
+	private ServerSocketChannel listener; // TCP Server Socket, blockierend (PLATFORM/VIRTUAL)
+	private ThreadFactory handlerThreads; // Threads fuer Handler und deren Writer (PLATFORM/VIRTUAL)
+	private NioServer nioServer; // Event-Loops (NIO)
+	private ObjectName mbeanName; // Name der Kennzahlen in JMX, null = nicht registriert
 	
 	/**
-	 * Konstruktor Erzeugt die GUI
+	 * Konstruktor Erzeugt die GUI (ausser im Headless-Modus) und startet das Server-Log
 	 */
-	public ChatServer(int maxThreads) {
+	public ChatServer(ServerConfig config) throws IOException {
+		this.config = config;
+		
+		if(!config.isHeadless()) {
+			// Layout GUI
+			logFrame = new JFrame("Chat Server - Log");
+			logTextArea = new JTextArea(20, 40);
+			logTextArea.setEditable(false);
+			scrollPane = new JScrollPane(logTextArea);
+			logFrame.getContentPane().add(scrollPane, "Center");
+			logFrame.pack();
+			logFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+			logFrame.setVisible(true);
+		}
+		log = new ServerLog(config, logTextArea, scrollPane);
+		
+		String journalDir = config.getJournalDir();
+		journal = journalDir.isEmpty() || journalDir.equals("none") ? null
+				: new MessageJournal(new File(journalDir), config.getJournalSegmentBytes(), config.getJournalMaxSegments());
+		
+		admission = new AdmissionController(config, metrics);
+		if(config.getHeartbeatInterval() > 0) {
+			wheel = new TimerWheel(config.getTimerTick(), 512);
+			wheel.start();
+		} else {
+			wheel = null;
+		}
+		compressor = Compressor.create(config, metrics);
 		
-		// Layout GUI
-		logFrame = new JFrame("Chat Server - Log");
-		logTextArea = new JTextArea(20, 40);
-		logTextArea.setEditable(false);
-		scrollPane = new JScrollPane(logTextArea);
-		logFrame.getContentPane().add(scrollPane, "Center");
-		logFrame.pack();
-		logFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		logFrame.setVisible(true);
+		shards = new RoomShard[Math.max(0, config.getRoomShards())];
+		for(int i = 0; i < shards.length; i++) {
+			shards[i] = new RoomShard(this, i);
+			shards[i].start();
+		}
+		defaultRoom = room(Room.DEFAULT);
+		
+		federation = config.getPeerPort() >= 0 || !config.getPeers().isEmpty() ? new Federation(this, config, metrics)
+				: null;
+	}
+	
+	/**
+	 * Startet den Server im konfigurierten Modus. Die Verbindungen werden von einem eigenen Acceptor-Thread
+	 * angenommen, die Methode kehrt also sofort zurueck.
+	 * @return der tatsaechlich gebundene Port (relevant bei port=0)
+	 */
+	public int start() throws IOException {
+		int port;
+		if(config.getMode() == ServerConfig.Mode.NIO) {
+			nioServer = new NioServer(this, config);
+			port = nioServer.start();
+		} else {
+			handlerThreads = handlerThreadFactory(config.getMode());
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+			port = listener.socket().getLocalPort();
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					acceptLoop();
+				}
+			}, "acceptor");
+			acceptor.start();
+		}
+		if(federation != null) {
+			peerPort = federation.start(port);
+		}
+		if(config.isJmx()) {
+			registerMBean(port);
+		}
 		
-		semaphore = new Semaphore(maxThreads);
+		// Basis Infos werden dem Log beigefuegt
+		DateFormat dateformat = new SimpleDateFormat("yyyy/MM/dd");
+		Calendar cal = Calendar.getInstance();
+		log.info("Der Chat Server laeuft unter der IP: " + InetAddress.getLocalHost().getHostAddress() + ":" + port);
+		log.info("Modus: " + config.getMode() + ", max. Verbindungen: " + config.getMaxConnections() + ", Backlog: "
+				+ config.getAcceptBacklog() + ", Raum-Shards: " + shards.length);
+		if(config.getConnectRate() > 0) {
+			log.info("Verbindungsaufbauten pro Adresse: " + config.getConnectRate() + "/s, Burst "
+					+ config.getConnectBurst());
+		}
+		if(federation != null) {
+			log.info("Federation: Knoten " + federation.nodeId + ", Peer-Port " + peerPort + ", Peers "
+					+ config.getPeers());
+		}
+		if(journal != null) {
+			log.info("Journal: " + config.getJournalDir() + ", Nachrichten #" + journal.firstSequence() + " bis #"
+					+ (journal.nextSequence() - 1));
+		}
+		log.info("---" + dateformat.format(cal.getTime()) + "---\n");
+		return port;
 	}
 	
 	/**
-	 * Verbindet sich mit den Clients. Ein Port wird beobachtet und neue Handler-Threads gestartet
+	 * Beendet den Server: der Port wird geschlossen und alle Mitglieder des Chat-Raums getrennt
 	 */
-	private void startServer() {
+	public void stop() {
 		try {
-			ServerSocket listener = new ServerSocket(PORT); // TCP Server Socket
-			
-			// Basis Infos werden dem Log beigefuegt
-			DateFormat dateformat = new SimpleDateFormat("yyyy/MM/dd");
-			Calendar cal = Calendar.getInstance();
-			logTextArea.append("Der Chat Server laeuft unter der IP: ");
-			logTextArea.append(InetAddress.getLocalHost().getHostAddress() + "\n");
-			logTextArea.append("---" + dateformat.format(cal.getTime()) + "---\n\n");
-			
-			/*
-			 * Endlosschleife und nimmt jede eingehende Verbindungsanfrage (von Clients) an. Startet fuer jede
-			 * Verbindung einen Thread ("Handler").
-			 */
-			Socket connectionSocket; // TCP-Standard-Socket
+			if(listener != null) {
+				listener.close();
+			}
+		} catch(IOException e) {
+		}
+		if(nioServer != null) {
+			nioServer.stop();
+		}
+		if(federation != null) {
+			federation.stop();
+		}
+		if(mbeanName != null) {
 			try {
-				while(true) {
-					try {
-						semaphore.acquire();
-						connectionSocket = listener.accept(); // "Hand-Shake"
-						new Handler(connectionSocket).start(); // Handler-Thread
-															   // mit Socket
-					} catch(InterruptedException e) {
-						e.printStackTrace();
-					}
-					
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch(JMException e) {
+			}
+		}
+		for(RoomShard shard : shards) {
+			shard.shutdown();
+		}
+		if(wheel != null) {
+			wheel.shutdown();
+		}
+		List<Connection> members = new ArrayList<Connection>();
+		for(Room room : rooms.values()) {
+			synchronized(room.writers) {
+				members.addAll(room.writers);
+			}
+		}
+		for(Connection member : members) {
+			member.close();
+		}
+		if(journal != null) {
+			journal.close();
+		}
+		log.close();
+	}
+	
+	/**
+	 * Macht die Kennzahlen ueber JMX sichtbar (z.B. in jconsole unter "server"). Der Port im Namen unterscheidet
+	 * mehrere Server im selben Prozess.
+	 */
+	private void registerMBean(int port) {
+		try {
+			mbeanName = new ObjectName("server:type=ChatServer,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbeanName);
+		} catch(JMException e) {
+			mbeanName = null;
+			log.info("JMX: " + e);
+		}
+	}
+	
+	/**
+	 * PLATFORM/VIRTUAL: Endlosschleife, die jede eingehende Verbindungsanfrage (von Clients) annimmt und fuer jede
+	 * zugelassene Verbindung einen Handler startet. Abgewiesene Verbindungen werden sofort beantwortet und
+	 * geschlossen, der Acceptor wartet nie auf einen freien Platz.
+	 */
+	private void acceptLoop() {
+		SocketChannel connectionSocket; // TCP-Socket, blockierend
+		try {
+			while(true) {
+				connectionSocket = listener.accept(); // "Hand-Shake"
+				if(!admit(connectionSocket)) {
+					continue;
 				}
-			} finally {
-				listener.close(); // Verbindungsabbau
+				handlerThreads.newThread(new Handler(connectionSocket)).start(); // Handler mit Socket
 			}
 		} catch(IOException e) {
-			e.printStackTrace();
+			if(listener.isOpen()) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				listener.close(); // Verbindungsabbau
+			} catch(IOException e) {
+			}
 		}
-		
+	}
+	
+	/**
+	 * Liefert die Thread-Fabrik fuer die Handler. Im Modus VIRTUAL laeuft jeder Handler auf einem virtuellen Thread
+	 * (ab Java 21). Die Fabrik wird per Reflection erzeugt, damit der Server weiterhin mit aelteren JDKs uebersetzt
+	 * werden kann.
+	 * @param mode , PLATFORM oder VIRTUAL
+	 * @return Thread-Fabrik
+	 */
+	static ThreadFactory handlerThreadFactory(ServerConfig.Mode mode) {
+		if(mode == ServerConfig.Mode.VIRTUAL) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+				builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "handler-", 0L);
+				return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			} catch(ReflectiveOperationException e) {
+				throw new IllegalStateException("Virtuelle Threads benoetigen Java 21 oder neuer", e);
+			}
+		}
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "handler-" + count.getAndIncrement());
+			}
+		};
+	}
+	
+	/**
+	 * Laesst eine angenommene Verbindung zu oder weist sie mit "/ERRO<Grund>" ab; blockiert nie
+	 * @return true, wenn die Verbindung einen Platz belegt hat; sonst ist sie bereits geschlossen
+	 */
+	boolean admit(SocketChannel channel) {
+		return admission.admit(channel);
+	}
+	
+	/**
+	 * Gibt den Verbindungsplatz einer abgebauten Verbindung wieder frei
+	 */
+	void releaseConnection() {
+		admission.release();
+	}
+	
+	/**
+	 * Legt den Heartbeat einer neuen Verbindung an und startet ihn
+	 * @return der Heartbeat (bei jedem Lesen touch(), beim Abbau cancel()) oder null, wenn abgeschaltet
+	 */
+	Heartbeat heartbeat(Connection connection) {
+		if(wheel == null) {
+			return null;
+		}
+		Heartbeat heartbeat = new Heartbeat(this, wheel, connection,
+				TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatInterval()),
+				TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatTimeout()));
+		heartbeat.start();
+		return heartbeat;
+	}
+	
+	/**
+	 * Schickt einen Heartbeat; im Thread des TimerWheels
+	 */
+	void ping(Connection connection) {
+		metrics.pings.increment();
+		deliver(connection, PING_FRAME);
+	}
+	
+	/**
+	 * Baut eine Verbindung ab, die auf /PING nicht geantwortet hat; im Thread des TimerWheels
+	 */
+	void reapIdle(Connection connection) {
+		metrics.idleDisconnects.increment();
+		writeServerLog(String.valueOf(connection.getNickname()), " idle timeout");
+		connection.close();
+	}
+	
+	/**
+	 * @return freie Verbindungsplaetze
+	 */
+	int availableConnections() {
+		return admission.available();
+	}
+	
+	/**
+	 * @return Anzahl angemeldeter Benutzer
+	 */
+	int memberCount() {
+		return users.size();
+	}
+	
+	/**
+	 * Ermittelt die Tiefe der Ausgangs-Warteschlangen aller Mitglieder; kostet einen Durchlauf unter der Sperre und
+	 * wird daher nur beim Abruf der Kennzahlen aufgerufen
+	 * @return { groesste Tiefe, Summe }
+	 */
+	long[] queueDepths() {
+		long max = 0;
+		long total = 0;
+		for(Room room : rooms.values()) {
+			synchronized(room.writers) {
+				for(int i = 0; i < room.writers.size(); i++) {
+					int depth = room.writers.get(i).getQueueDepth();
+					max = Math.max(max, depth);
+					total += depth;
+				}
+			}
+		}
+		return new long[] { max, total };
+	}
+	
+	/**
+	 * @return Anzahl verbundener Knoten des Verbunds
+	 */
+	int peerCount() {
+		return federation == null ? 0 : federation.peerCount();
+	}
+	
+	/**
+	 * @return Zeile fuer /STAT mit Knoten und Verbindungen, null ohne Verbund
+	 */
+	String federationSummary() {
+		return federation == null ? null : "federation node=" + federation.nodeId + " peers=" + federation.peerCount()
+				+ " remoteNames=" + federation.remoteNameCount();
+	}
+	
+	/**
+	 * @return der gebundene Port fuer andere Knoten des Verbunds, -1 = keiner
+	 */
+	public int getPeerPort() {
+		return peerPort;
+	}
+	
+	/**
+	 * @return alle Raeume (Sicht auf das Verzeichnis)
+	 */
+	Collection<Room> getRooms() {
+		return rooms.values();
+	}
+	
+	/**
+	 * @return Anzahl der Shards, die die Nachrichten der Raeume verteilen
+	 */
+	int getRoomShards() {
+		return shards.length;
+	}
+	
+	/**
+	 * Liefert den Raum zum Namen und legt ihn bei Bedarf an. Ein neuer Raum kommt auf den Shard mit den wenigsten
+	 * Raeumen.
+	 */
+	private Room room(String name) {
+		Room room = rooms.get(name);
+		if(room == null) {
+			RoomShard shard = null;
+			for(RoomShard candidate : shards) {
+				if(shard == null || candidate.rooms.get() < shard.rooms.get()) {
+					shard = candidate;
+				}
+			}
+			Room created = new Room(name, shard, config.getRoomQueueSize());
+			room = rooms.putIfAbsent(name, created);
+			if(room == null) {
+				room = created;
+				if(shard != null) {
+					shard.rooms.incrementAndGet();
+				}
+			}
+		}
+		return room;
+	}
+	
+	/**
+	 * @return die Kennzahlen des Servers
+	 */
+	ServerMetrics getMetrics() {
+		return metrics;
 	}
 	
 	/**
@@ -109,25 +447,966 @@ public class ChatServer {
 		System.out.print("Chat Server wurde gestartet");
 		
 		// Erzeugt Server Instanz und startet diesen
-		new ChatServer(10).startServer();
+		new ChatServer(ServerConfig.load(args)).start();
+	}
+	
+	/**
+	 * Ergebnis einer Anmeldung
+	 */
+	interface Registration {
+		/**
+		 * @param id , die User-ID oder -1, wenn der Nickname vergeben oder unzulaessig ist
+		 */
+		void registered(int id);
+	}
+	
+	/**
+	 * Reserviert den Nickname, falls er zulaessig und im Chat-Raum noch nicht vergeben ist. Im Verbund muessen ausserdem alle
+	 * verbundenen Knoten zustimmen; das Ergebnis kommt dann spaeter aus dem Thread einer Peer-Verbindung, ohne
+	 * Verbund sofort im Thread des Aufrufers.
+	 * @param name , gewuenschter Nickname
+	 * @param connection , die den Nickname erhalten soll
+	 * @param registration , erhaelt das Ergebnis genau einmal
+	 */
+	void register(final String name, final Connection connection, final Registration registration) {
+		if(!isValidNickname(name)) {
+			registered(-1, registration);
+			return;
+		}
+		final int id = users.register(name, connection);
+		if(id < 0 || federation == null) {
+			registered(id, registration);
+			return;
+		}
+		if(federation.isRemote(name)) {
+			users.unregister(name, connection);
+			registered(-1, registration);
+			return;
+		}
+		federation.claim(name, new Federation.ClaimListener() {
+			@Override
+			public void claimed(boolean granted) {
+				if(!granted) {
+					users.unregister(name, connection);
+				}
+				registered(granted ? id : -1, registration);
+			}
+		});
+	}
+	
+	/**
+	 * @return true, wenn der Name als Nickname zulaessig ist (1 bis 32 Zeichen ohne Steuerzeichen); der Nickname wird
+	 *         unveraendert in die Zeilen des Textprotokolls kopiert, ein Zeilenumbruch darin wuerde dort eine eigene
+	 *         Zeile erzeugen
+	 */
+	static boolean isValidNickname(String name) {
+		if(name.isEmpty() || name.length() > MAX_NICKNAME_LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < name.length(); i++) {
+			if(name.charAt(i) < 0x20 || name.charAt(i) == 0x7f) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Wie register(name, connection, registration), wartet aber auf das Ergebnis; fuer die blockierenden Handler
+	 * @return die User-ID oder -1, wenn der Nickname vergeben oder unzulaessig ist
+	 */
+	int register(String name, Connection connection) {
+		final int[] result = new int[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		register(name, connection, new Registration() {
+			@Override
+			public void registered(int id) {
+				result[0] = id;
+				done.countDown();
+			}
+		});
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return result[0];
+	}
+	
+	private void registered(int id, Registration registration) {
+		if(id >= 0) {
+			metrics.logins.increment();
+		} else {
+			metrics.rejectedNicknames.increment();
+		}
+		registration.registered(id);
+	}
+	
+	/**
+	 * @return true, wenn der Nickname auf diesem Knoten reserviert ist
+	 */
+	boolean hasNickname(String name) {
+		return users.get(name) != null;
+	}
+	
+	/**
+	 * @return alle auf diesem Knoten reservierten Nicknames (Sicht)
+	 */
+	Collection<String> localNicknames() {
+		return users.names();
+	}
+	
+	/**
+	 * Beantwortet /OPTS im Handshake. Die Antwort geht noch im Textprotokoll raus; nimmt der Server "binary" an,
+	 * spricht die Verbindung danach das Binaerprotokoll. "deflate" wird nur zusammen mit "binary" und nur bei
+	 * eingeschalteter Kompression angenommen.
+	 * @param connection , die die Optionen anfragt
+	 * @param options , kommagetrennte Liste gewuenschter Optionen
+	 * @return die angenommenen Optionen (OPT_BINARY, OPT_DEFLATE)
+	 */
+	int negotiate(Connection connection, String options) {
+		int accepted = 0;
+		for(String option : options.split(",")) {
+			if(option.trim().equals(BinaryProtocol.OPTION)) {
+				accepted |= OPT_BINARY;
+			} else if(option.trim().equals(BinaryProtocol.DEFLATE_OPTION) && compressor != null) {
+				accepted |= OPT_DEFLATE;
+			}
+		}
+		if((accepted & OPT_BINARY) == 0) {
+			accepted = 0;
+		}
+		deliver(connection, "/OPTS" + ((accepted & OPT_BINARY) != 0 ? BinaryProtocol.OPTION : "")
+				+ ((accepted & OPT_DEFLATE) != 0 ? "," + BinaryProtocol.DEFLATE_OPTION : ""));
+		writeServerLog(connection.getNickname(), " /OPTS" + options);
+		return accepted;
+	}
+	
+	/**
+	 * @param options , Ergebnis von negotiate
+	 * @return der Compressor fuer die Verbindung oder null, wenn sie keine Kompression ausgehandelt hat
+	 */
+	Compressor compressorFor(int options) {
+		return (options & OPT_DEFLATE) != 0 ? compressor : null;
+	}
+	
+	/**
+	 * Bestaetigt einem Benutzer die Anmeldung und nimmt ihn in den Chat-Raum auf. Clients im Binaerprotokoll
+	 * erhalten mit der Bestaetigung ihre User-ID und die Zuordnung aller User-IDs zu Nicknames.
+	 * @param connection , des neuen Benutzers
+	 */
+	void accept(Connection connection) {
+		deliver(connection, Frame.of("/ACPT", BinaryProtocol.id(BinaryProtocol.ACPT, connection.getUserId())));
+		if(connection.isBinary()) {
+			deliver(connection, users.snapshot().table());
+		}
+		writeServerLog(connection.getNickname(), " /ACPT");
+		joinRoom(connection);
+	}
+	
+	/**
+	 * Nimmt einen akzeptierten Benutzer in den Standardraum auf und informiert die anderen Mitglieder.
+	 * @param connection , des neuen Benutzers
+	 */
+	void joinRoom(Connection connection) {
+		enter(connection, Room.DEFAULT);
+	}
+	
+	/**
+	 * Nimmt einen Benutzer in einen Raum auf und informiert dessen Mitglieder. Im Standardraum wird vorher der
+	 * Verlauf vorgespielt.
+	 * @param connection , des Benutzers, der noch in keinem Raum ist
+	 * @param name , Name des Raums; er wird bei Bedarf angelegt
+	 * @return false, wenn die Ausgangs-Warteschlange dabei uebergelaufen ist (der Benutzer wurde getrennt)
+	 */
+	private boolean enter(Connection connection, String name) {
+		Room room = room(name);
+		String label = room == defaultRoom ? "" : " #" + name;
+		// Informiert die Mitglieder, dass ein neuer Benutzer beigetreten ist; Clients im Binaerprotokoll erfahren
+		// dabei immer die neue User-ID
+		String notice = config.isJoinNotices() ? "/MSGE" + Handler.PLACEHOLDER + connection.getNickname() + " joined"
+				+ label : null;
+		if(notice != null || room.binaryMembers.get() > 0) {
+			publish(room, Frame.of(notice, BinaryProtocol.join(connection.getUserId(), connection.getNickname())));
+		}
+		writeServerLog(connection.getNickname(), " joined" + label);
+		if(connection.isBinary() && room != defaultRoom) {
+			// die User-IDs der Mitglieder, die schon im Raum sind
+			deliver(connection, users.snapshot().table());
+		}
+		
+		while(true) {
+			synchronized(room.writers) {
+				if(!room.closed) {
+					long locked = System.nanoTime();
+					// Verlauf und Aufnahme unter derselben Sperre wie das Journal im Broadcast: keine Nachricht fehlt
+					// oder kommt doppelt
+					if(room == defaultRoom && journal != null && config.getHistoryOnJoin() > 0
+							&& !replay(connection, journal.nextSequence() - config.getHistoryOnJoin(),
+									config.getHistoryOnJoin())) {
+						unlockWriters(locked);
+						disconnectSlowConsumer(connection);
+						return false;
+					}
+					room.writers.add(connection); // Fuegt die neue Verbindung der Liste
+												  // aller Mitglieder bei
+					if(connection.isBinary()) {
+						room.binaryMembers.incrementAndGet();
+					}
+					connection.setRoom(room);
+					unlockWriters(locked);
+					return true;
+				}
+			}
+			room = room(name); // inzwischen geleert und aufgeloest: neu anlegen
+		}
+	}
+	
+	/**
+	 * Entfernt eine Verbindung aus ihrem Raum; ein leerer Raum (ausser dem Standardraum) wird aufgeloest
+	 * @param connection , die den Raum verlaesst
+	 * @return der verlassene Raum oder null, wenn sie in keinem Raum war
+	 */
+	private Room exit(Connection connection) {
+		Room room = connection.getRoom();
+		if(room == null) {
+			return null;
+		}
+		synchronized(room.writers) {
+			long locked = System.nanoTime();
+			if(room.writers.remove(connection) && connection.isBinary()) { // entferne Verbindung vom
+																		   // abgemeldeten Benutzer
+				room.binaryMembers.decrementAndGet();
+			}
+			connection.setRoom(null);
+			if(room.writers.isEmpty() && room != defaultRoom && !room.closed) {
+				room.closed = true;
+				rooms.remove(room.name, room);
+				if(room.shard != null) {
+					room.shard.rooms.decrementAndGet();
+				}
+			}
+			unlockWriters(locked);
+		}
+		return room;
+	}
+	
+	/**
+	 * /JOIN und /LEAV: wechselt in einen anderen Raum
+	 * @param connection , des Benutzers
+	 * @param name , Name des neuen Raums
+	 */
+	private void changeRoom(Connection connection, String name) {
+		writeServerLog(connection.getNickname(), "/JOIN" + name);
+		if(!Room.isValidName(name)) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "usage: /JOIN<room> with up to " + Room.MAX_NAME_LENGTH
+					+ " letters, digits, '-' or '_'");
+			return;
+		}
+		Room current = connection.getRoom();
+		if(current != null && current.name.equals(name)) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "you are already in #" + name);
+			return;
+		}
+		Room left = exit(connection);
+		if(left != null) {
+			// Clients im Binaerprotokoll vergessen die User-ID; bei einem erneuten Treffen kommt sie mit JOIN wieder
+			String notice = config.isJoinNotices() ? "/MSGE" + Handler.PLACEHOLDER + connection.getNickname()
+					+ " left #" + left.name : null;
+			if(notice != null || left.binaryMembers.get() > 0) {
+				publish(left, Frame.of(notice, BinaryProtocol.id(BinaryProtocol.LEFT, connection.getUserId())));
+			}
+		}
+		if(enter(connection, name)) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "you are now in #" + name);
+		}
+	}
+	
+	/**
+	 * Schickt die Liste aller Raeume mit Mitgliedern und Nachrichtenrate
+	 */
+	private void listRooms(Connection connection) {
+		writeServerLog(connection.getNickname(), "/ROOM");
+		deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "list of rooms:");
+		for(Room room : rooms.values()) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + room.describe());
+		}
+	}
+	
+	/**
+	 * Zeichnet die Haltedauer der Sperre von writers auf; wird unmittelbar vor dem Verlassen des synchronized-Blocks
+	 * aufgerufen
+	 * @param locked , System.nanoTime() nach dem Betreten
+	 */
+	private void unlockWriters(long locked) {
+		metrics.writersLock.record(System.nanoTime() - locked);
+	}
+	
+	/**
+	 * Verarbeitet eine Protokollzeile eines angemeldeten Benutzers und antwortet bzw. verteilt die Nachricht
+	 * entsprechend -> nur an Client selbst oder an alle Clients im Chat. Die Befehle werden direkt auf den Bytes
+	 * erkannt, fuer eine Nachricht wird kein String erzeugt.
+	 * @param connection , von der die Zeile stammt
+	 * @param data , Puffer mit der empfangenen Zeile (ohne Zeilenende); nur waehrend des Aufrufs gueltig
+	 * @param offset , Anfang der Zeile
+	 * @param length , Laenge der Zeile
+	 * @param received , System.nanoTime(), als die Zeile vom Socket gelesen wurde
+	 */
+	void handleLine(Connection connection, byte[] data, int offset, int length, long received) {
+		// Wenn der Client den Chat verlassen will
+		if(matches(data, offset, length, QUIT) && equalsAt(data, offset + 5, length - 5, connection.getNicknameBytes())) {
+			quit(connection);
+		} else if(length == 5 && matches(data, offset, length, USRS)) {
+			listUsers(connection);
+		}
+		// Verlauf abrufen: /HIST<n> = die letzten n Nachrichten, /HIST#<seq> = alles ab Sequenznummer seq
+		else if(matches(data, offset, length, HIST)) {
+			history(connection, new String(data, offset + 5, length - 5, StandardCharsets.UTF_8).trim());
+		} else if(length == 5 && matches(data, offset, length, STAT)) {
+			stats(connection);
+		}
+		// Raeume: /JOIN<raum> wechselt den Raum, /LEAV zurueck in den Standardraum, /ROOM listet alle Raeume
+		else if(matches(data, offset, length, JOIN)) {
+			changeRoom(connection, new String(data, offset + 5, length - 5, StandardCharsets.UTF_8).trim());
+		} else if(length == 5 && matches(data, offset, length, LEAV)) {
+			changeRoom(connection, Room.DEFAULT);
+		} else if(length == 5 && matches(data, offset, length, ROOM)) {
+			listRooms(connection);
+		}
+		// Antwort auf /PING; der Eingang allein haelt die Verbindung am Leben
+		else if(length == 5 && matches(data, offset, length, PONG)) {
+			return;
+		}
+		// Private Nachricht: /PRIV<nick> <nachricht>
+		else if(matches(data, offset, length, PRIV)) {
+			privateMessage(connection, new String(data, offset + 5, length - 5, StandardCharsets.UTF_8));
+		}
+		// Wenn eine Nachricht an alle gehen soll
+		else {
+			int skip = Math.min(5, length);
+			message(connection, data, offset + skip, length - skip, received);
+		}
+	}
+	
+	/**
+	 * Prueft eine Zeile bzw. ein Frame eines angemeldeten Benutzers gegen die Limits seiner Verbindung, bevor sie
+	 * verarbeitet wird. Ueber dem Limit wird gezaehlt und der Client hoechstens einmal pro Sekunde benachrichtigt.
+	 * Nur vom Thread aufgerufen, der die Verbindung liest.
+	 * @param connection , von der die Zeile stammt
+	 * @param limiter , Limits der Verbindung
+	 * @param length , Laenge der Zeile bzw. des Frames
+	 * @param now , System.nanoTime()
+	 * @return 0 = verarbeiten, -1 = verwerfen, sonst Nanosekunden, die der Leser warten soll, bevor er die Zeile
+	 *         erneut prueft
+	 */
+	long limit(Connection connection, RateLimiter limiter, int length, long now) {
+		long wait = limiter.acquire(length, now);
+		if(wait == 0) {
+			return 0;
+		}
+		metrics.rateLimitHits.increment();
+		if(limiter.notice(now)) {
+			writeServerLog(connection.getNickname(), " rate limit exceeded");
+			deliver(connection, limiter.drop ? DROP_NOTICE : THROTTLE_NOTICE);
+		}
+		if(limiter.drop) {
+			metrics.rateLimitDrops.increment();
+			return -1;
+		}
+		return wait;
+	}
+	
+	/**
+	 * Verarbeitet ein Frame im Binaerprotokoll eines angemeldeten Benutzers. Unterschieden wird nur am Opcode, Text
+	 * wird erst dekodiert, wenn er gebraucht wird.
+	 * @param connection , von der das Frame stammt
+	 * @param data , Puffer mit dem empfangenen Frame (inkl. Kopf); nur waehrend des Aufrufs gueltig
+	 * @param offset , Anfang des Frames
+	 * @param length , Laenge des Frames
+	 * @param received , System.nanoTime(), als das Frame vom Socket gelesen wurde
+	 */
+	void handleFrame(Connection connection, byte[] data, int offset, int length, long received) {
+		int payload = offset + BinaryProtocol.HEADER;
+		int payloadLength = length - BinaryProtocol.HEADER;
+		switch(data[offset + 4]) {
+		case BinaryProtocol.QUIT:
+			quit(connection);
+			break;
+		case BinaryProtocol.USRS:
+			listUsers(connection);
+			break;
+		case BinaryProtocol.HIST:
+			history(connection, new String(data, payload, payloadLength, StandardCharsets.UTF_8).trim());
+			break;
+		case BinaryProtocol.MSGE:
+			message(connection, data, payload, payloadLength, received);
+			break;
+		case BinaryProtocol.STAT:
+			stats(connection);
+			break;
+		case BinaryProtocol.ROOM_JOIN:
+			changeRoom(connection, new String(data, payload, payloadLength, StandardCharsets.UTF_8).trim());
+			break;
+		case BinaryProtocol.ROOM_LEAVE:
+			changeRoom(connection, Room.DEFAULT);
+			break;
+		case BinaryProtocol.ROOMS:
+			listRooms(connection);
+			break;
+		case BinaryProtocol.PONG:
+			break;
+		case BinaryProtocol.PRIVATE:
+			privateMessage(connection, new String(data, payload, payloadLength, StandardCharsets.UTF_8));
+			break;
+		default:
+			writeServerLog(connection.getNickname(), " unknown opcode " + data[offset + 4]);
+		}
+	}
+	
+	/**
+	 * Der Client verlaesst den Chat
+	 */
+	private void quit(Connection connection) {
+		String name = connection.getNickname();
+		deliver(connection, QUIT_FRAME);
+		writeServerLog(name, " disconnected");
+		Room room = connection.getRoom();
+		if(config.isJoinNotices() && room != null) {
+			publish(room, Frame.of("/MSGE" + name + " (" + timestamp() + ") disconnected"));
+		}
+	}
+	
+	/**
+	 * Schickt eine private Nachricht an genau einen Benutzer, unabhaengig von dessen Raum. Der Empfaenger wird ueber
+	 * das Benutzerverzeichnis (ConcurrentHashMap) gefunden und die Nachricht direkt in seine Ausgangs-Warteschlange
+	 * eingereiht; die Sperre von writers wird nicht beruehrt, die Kosten haengen nicht von der Zahl der Benutzer ab.
+	 * Gehoert der Nickname einem anderen Knoten, wird die Nachricht nur an diesen weitergeleitet. Der Absender erhaelt
+	 * eine Kopie bzw. den Hinweis, dass der Empfaenger nicht angemeldet ist.
+	 * @param connection , Absender
+	 * @param argument , "<nick> <nachricht>"
+	 */
+	private void privateMessage(Connection connection, String argument) {
+		int idx = argument.indexOf(' ');
+		String target = idx < 0 ? argument.trim() : argument.substring(0, idx);
+		String text = idx < 0 ? "" : argument.substring(idx + 1).replace('\n', ' ').replace('\r', ' ');
+		if(target.isEmpty() || text.trim().isEmpty()) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "usage: /PRIV<nick> <message>");
+			return;
+		}
+		String name = connection.getNickname();
+		String time = timestamp();
+		Frame frame = Frame.of("/MSGE(" + time + ") " + name + " -> you: \"" + text + "\"");
+		Connection recipient = users.get(target);
+		if(recipient != null) {
+			deliver(recipient, frame);
+		} else if(federation == null || !federation.sendPrivate(target, frame)) {
+			metrics.privateUndeliverable.increment();
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + target + " is not online");
+			return;
+		}
+		metrics.privateMessages.increment();
+		deliver(connection, "/MSGE(" + time + ") you -> " + target + ": \"" + text + "\"");
+	}
+	
+	/**
+	 * Stellt eine private Nachricht eines anderen Knotens zu; ist der Empfaenger inzwischen abgemeldet, geht sie
+	 * verloren
+	 * @param target , Nickname des Empfaengers
+	 * @param frame , die fertige Zeile
+	 */
+	void privateRelayed(String target, Frame frame) {
+		Connection recipient = users.get(target);
+		if(recipient != null) {
+			deliver(recipient, frame);
+		} else {
+			metrics.privateUndeliverable.increment();
+		}
+	}
+	
+	/**
+	 * Schickt die (zwischengespeicherte) Liste aller Mitglieder
+	 */
+	private void listUsers(Connection connection) {
+		writeServerLog(connection.getNickname(), "/USRS");
+		UserRegistry.Snapshot snapshot = users.snapshot();
+		for(Frame frame : snapshot.frames()) {
+			deliver(connection, frame);
+		}
+		deliver(connection, snapshot.table());
+	}
+	
+	/**
+	 * Schickt die Kennzahlen des Servers; nur fuer die in "admins" eingetragenen Nicknames
+	 */
+	private void stats(Connection connection) {
+		writeServerLog(connection.getNickname(), "/STAT");
+		if(!config.getAdmins().contains(connection.getNickname())) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "/STAT is restricted to admins");
+			return;
+		}
+		for(String line : metrics.report()) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + line);
+		}
+	}
+	
+	/**
+	 * Verteilt eine Nachricht an alle Mitglieder des Raums. Die Zeile "/MSGE(hh:mm) <name>: \"<text>\"" wird direkt
+	 * aus den empfangenen Bytes in ein Array passender Groesse kodiert; dieses eine Frame ist die einzige Allokation
+	 * pro Nachricht und wird von Log, Journal und allen Empfaengern geteilt. Clients im Binaerprotokoll erhalten
+	 * User-ID und Zeitstempel statt der formatierten Zeile. Kodiert wird im Thread des Absenders ohne Sperre,
+	 * verteilt im Shard des Raums.
+	 * @param connection , des Absenders
+	 * @param data , Puffer mit der Nachricht (UTF-8); darf im Binaerprotokoll Zeilenumbrueche enthalten
+	 * @param offset , Anfang der Nachricht
+	 * @param length , Laenge der Nachricht
+	 * @param received , System.nanoTime(), als die Nachricht vom Socket gelesen wurde
+	 */
+	private void message(Connection connection, byte[] data, int offset, int length, long received) {
+		Room room = connection.getRoom();
+		if(room == null) {
+			return; // bereits getrennt
+		}
+		metrics.messagesIn.increment();
+		byte[] name = connection.getNicknameBytes();
+		byte[] time = MinuteClock.now().bytes;
+		byte[] line = new byte[MSGE_OPEN.length + time.length + 2 + name.length + 3 + length + 2];
+		int pos = put(line, 0, MSGE_OPEN);
+		pos = put(line, pos, time);
+		line[pos++] = ')';
+		line[pos++] = ' ';
+		pos = put(line, pos, name);
+		line[pos++] = ':';
+		line[pos++] = ' ';
+		line[pos++] = '"';
+		for(int i = 0; i < length; i++) {
+			byte b = data[offset + i];
+			line[pos++] = b == '\n' || b == '\r' ? (byte) ' ' : b; // im Textprotokoll bleibt es eine Zeile
+		}
+		line[pos++] = '"';
+		line[pos] = '\n';
+		
+		// Tritt ein Client im Binaerprotokoll erst bis zum Verteilen bei, erhaelt er die aus der Zeile abgeleitete Form
+		Frame frame = room.binaryMembers.get() > 0 ? Frame.of(line,
+				BinaryProtocol.chat(connection.getUserId(), System.currentTimeMillis(), data, offset, length))
+				: Frame.line(line);
+		if(room.shard != null) {
+			connection.submit(room, frame, received);
+		} else {
+			dispatch(room, frame, received, connection);
+		}
+	}
+	
+	/**
+	 * Verteilt eine Chat-Nachricht an die Mitglieder eines Raums; im Shard des Raums bzw. ohne Shards im Thread des
+	 * Absenders
+	 * @param room , der Raum
+	 * @param frame , die kodierte Nachricht
+	 * @param received , System.nanoTime(), als die Nachricht vom Socket gelesen wurde
+	 */
+	void dispatch(Room room, Frame frame, long received) {
+		dispatch(room, frame, received, null);
+	}
+	
+	/**
+	 * Wie dispatch(room, frame, received); ohne Shards verteilt der Absender selbst und wird bei BACKPRESSURE gebremst
+	 * @param origin , Absender, wenn er selbst verteilt, sonst null
+	 */
+	private void dispatch(Room room, Frame frame, long received, Connection origin) {
+		Congestion congestion;
+		synchronized(room.writers) {
+			long locked = System.nanoTime();
+			log.logLine(frame);
+			congestion = broadcastLocked(room, frame);
+			long now = System.nanoTime(); // zwei Zeitmessungen pro Nachricht genuegen fuer alle drei Histogramme
+			room.countMessage(now);
+			metrics.broadcast.record(now - locked);
+			metrics.readToBroadcast.record(now - received);
+			metrics.writersLock.record(now - locked);
+		}
+		settle(congestion, origin, room.shard != null ? room : null);
+		if(federation != null) {
+			federation.relay(room, frame);
+		}
+	}
+	
+	/**
+	 * Verteilt einen Broadcast eines anderen Knotens an die Mitglieder des gleichnamigen Raums; gibt es den Raum hier
+	 * nicht, hat er hier auch keine Mitglieder. Wird nicht weitergeleitet.
+	 * @param name , Name des Raums
+	 * @param frame , die Zeile (Textform)
+	 */
+	void relayed(String name, Frame frame) {
+		Room room = rooms.get(name);
+		if(room == null) {
+			return;
+		}
+		Congestion congestion;
+		synchronized(room.writers) {
+			long locked = System.nanoTime();
+			log.logLine(frame);
+			congestion = broadcastLocked(room, frame);
+			long now = System.nanoTime();
+			room.countMessage(now);
+			metrics.writersLock.record(now - locked);
+		}
+		settle(congestion);
+	}
+	
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * @return true, wenn die Zeile mit dem Befehl beginnt
+	 */
+	private static boolean matches(byte[] data, int offset, int length, byte[] command) {
+		return length >= command.length && equalsAt(data, offset, command.length, command);
+	}
+	
+	/**
+	 * @return true, wenn die length Bytes ab offset genau expected entsprechen
+	 */
+	private static boolean equalsAt(byte[] data, int offset, int length, byte[] expected) {
+		if(expected == null || length != expected.length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(data[offset + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int put(byte[] line, int pos, byte[] bytes) {
+		System.arraycopy(bytes, 0, line, pos, bytes.length);
+		return pos + bytes.length;
+	}
+	
+	/**
+	 * Beantwortet eine Anfrage nach dem Verlauf
+	 * @param connection , Empfaenger
+	 * @param argument , "<n>", "#<seq>" oder leer (so viel wie erlaubt)
+	 */
+	private void history(Connection connection, String argument) {
+		writeServerLog(connection.getNickname(), "/HIST" + argument);
+		if(journal == null) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "history is disabled");
+			return;
+		}
+		long fromSeq;
+		int count = config.getHistoryMax();
+		try {
+			if(argument.startsWith("#")) {
+				fromSeq = Long.parseLong(argument.substring(1));
+			} else {
+				if(!argument.isEmpty()) {
+					count = Math.max(0, Integer.parseInt(argument));
+				}
+				fromSeq = journal.nextSequence() - count;
+			}
+		} catch(NumberFormatException e) {
+			deliver(connection, "/MSGE" + Handler.PLACEHOLDER + "usage: /HIST<n> or /HIST#<seq>");
+			return;
+		}
+		boolean ok;
+		synchronized(defaultRoom.writers) {
+			long locked = System.nanoTime();
+			ok = replay(connection, fromSeq, count);
+			unlockWriters(locked);
+		}
+		if(!ok) {
+			disconnectSlowConsumer(connection);
+		}
+	}
+	
+	/**
+	 * Spielt Nachrichten aus dem Journal vor. Die Frames sind Sichten auf die gemappten Segmente und werden ohne Kopie
+	 * in die Ausgangs-Warteschlange gelegt. Muss unter der Sperre von writers des Standardraums aufgerufen werden.
+	 * @param connection , Empfaenger
+	 * @param fromSeq , erste Sequenznummer
+	 * @param count , gewuenschte Anzahl, hoechstens historyMax
+	 * @return false, wenn die Warteschlange uebergelaufen ist
+	 */
+	private boolean replay(Connection connection, long fromSeq, int count) {
+		List<Frame> frames = journal.read(fromSeq, Math.min(count, config.getHistoryMax()));
+		if(frames.isEmpty()) {
+			return true;
+		}
+		long first = Math.max(fromSeq, journal.firstSequence());
+		if(!connection.send(Frame.of("/MSGE" + Handler.PLACEHOLDER + "history #" + first + " - #"
+				+ (first + frames.size() - 1) + ":"))) {
+			return false;
+		}
+		for(Frame frame : frames) {
+			if(!connection.send(frame)) {
+				return false;
+			}
+		}
+		metrics.messagesOut.add(frames.size() + 1);
+		return true;
+	}
+	
+	/**
+	 * Schickt eine Zeile an einen einzelnen Client
+	 * @param connection , Empfaenger
+	 * @param line , die Protokollzeile
+	 */
+	void deliver(Connection connection, String line) {
+		deliver(connection, Frame.of(line));
+	}
+	
+	/**
+	 * Schickt ein fertig kodiertes Frame an einen einzelnen Client
+	 * @param connection , Empfaenger
+	 * @param frame , das Frame
+	 */
+	void deliver(Connection connection, Frame frame) {
+		if(connection.send(frame)) {
+			metrics.messagesOut.increment();
+		} else {
+			disconnectSlowConsumer(connection);
+		}
+	}
+	
+	/**
+	 * Schickt ein fertig kodiertes Frame an alle Mitglieder des Standardraums
+	 * @param frame , das zu verteilende Frame
+	 */
+	void broadcast(Frame frame) {
+		broadcast(defaultRoom, frame);
+	}
+	
+	/**
+	 * Schickt ein Frame im Thread des Aufrufers an alle Mitglieder eines Raums (Hinweise zu Beitritt und Abmeldung).
+	 * Die Zeile wird genau einmal kodiert und das Frame nur in die Ausgangs-Warteschlangen eingereiht, ein langsamer
+	 * Client haelt den Broadcast also nicht auf. Clients, deren Warteschlange ueberlaeuft, werden nach dem Durchlauf
+	 * getrennt.
+	 * @param room , der Raum
+	 * @param frame , das zu verteilende Frame
+	 */
+	void broadcast(Room room, Frame frame) {
+		Congestion congestion;
+		synchronized(room.writers) {
+			long locked = System.nanoTime();
+			congestion = broadcastLocked(room, frame);
+			long duration = System.nanoTime() - locked;
+			metrics.broadcast.record(duration);
+			metrics.writersLock.record(duration);
+		}
+		settle(congestion);
+	}
+	
+	/**
+	 * Wie broadcast(room, frame), leitet den Broadcast aber auch an die anderen Knoten des Verbunds weiter
+	 * @param room , der Raum
+	 * @param frame , das zu verteilende Frame
+	 */
+	private void publish(Room room, Frame frame) {
+		broadcast(room, frame);
+		if(federation != null) {
+			federation.relay(room, frame);
+		}
+	}
+	
+	/**
+	 * Clients, die bei einem Broadcast nicht mitgekommen sind; wird nur angelegt, wenn es welche gibt
+	 */
+	private static final class Congestion {
+		private List<Connection> overflowed; // Warteschlange uebergelaufen, werden getrennt
+		private List<Connection> backedUp; // in der Reserve (BACKPRESSURE), der Sender wartet auf sie
+	}
+	
+	/**
+	 * Reiht das Frame bei allen Writern des Raums ein; im Standardraum wird es vorher im Journal abgelegt. Muss unter
+	 * der Sperre von writers des Raums aufgerufen werden; gewartet wird hier nie, auch nicht bei BACKPRESSURE.
+	 * @param room , der Raum
+	 * @param frame , das zu verteilende Frame
+	 * @return die Clients, die nicht mitgekommen sind, oder null; nach dem Freigeben der Sperre an settle uebergeben
+	 */
+	private Congestion broadcastLocked(Room room, Frame frame) {
+		Congestion congestion = null;
+		if(room == defaultRoom && journal != null && frame.isText()) {
+			try {
+				journal.append(frame);
+			} catch(IOException e) {
+				log.info("Journal: " + e);
+			}
+		}
+		List<Connection> writers = room.writers;
+		int sent = 0;
+		for(int i = 0; i < writers.size(); i++) { // ohne Iterator
+			Connection writer = writers.get(i);
+			if(writer.send(frame)) {
+				sent++;
+				if(writer.isBackedUp()) {
+					if(congestion == null) {
+						congestion = new Congestion();
+					}
+					if(congestion.backedUp == null) {
+						congestion.backedUp = new ArrayList<Connection>();
+					}
+					congestion.backedUp.add(writer);
+				}
+			} else {
+				if(congestion == null) {
+					congestion = new Congestion();
+				}
+				if(congestion.overflowed == null) {
+					congestion.overflowed = new ArrayList<Connection>();
+				}
+				congestion.overflowed.add(writer);
+			}
+		}
+		metrics.messagesOut.add(sent);
+		return congestion;
+	}
+	
+	/**
+	 * Nach einem Broadcast, ausserhalb der Sperre: trennt alle Clients, deren Warteschlange uebergelaufen ist, und
+	 * wartet bei BACKPRESSURE, bis die Clients in der Reserve nachgekommen sind (hoechstens backpressureTimeout
+	 * insgesamt, danach werden sie getrennt). Eine Event-Loop und ein Shard warten nicht; fuer sie faengt die Reserve
+	 * den Rueckstau auf.
+	 * @param congestion , Ergebnis von broadcastLocked, darf null sein
+	 */
+	private void settle(Congestion congestion) {
+		settle(congestion, null, null);
+	}
+	
+	/**
+	 * Wie settle(congestion); hat der Absender selbst verteilt, wird statt dessen er gebremst (Connection.backOff),
+	 * in der NIO-Engine ohne die Event-Loop anzuhalten. Hat der Shard eines Raums verteilt, haelt er nur diesen Raum
+	 * an (Room.backOff) und bedient die anderen weiter; die Eingangs-Warteschlange des Raums fuellt sich und dessen
+	 * Absender werden gebremst.
+	 * @param origin , Absender, wenn er selbst verteilt hat, sonst null
+	 * @param room , Raum, dessen Shard verteilt hat, sonst null
+	 */
+	private void settle(Congestion congestion, Connection origin, Room room) {
+		if(congestion == null) {
+			return;
+		}
+		if(congestion.overflowed != null) {
+			for(Connection connection : congestion.overflowed) {
+				disconnectSlowConsumer(connection);
+			}
+		}
+		if(congestion.backedUp == null) {
+			return;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getBackpressureTimeout());
+		if(origin != null) {
+			origin.backOff(congestion.backedUp, deadline);
+		} else if(room != null) {
+			room.backOff(congestion.backedUp, deadline);
+		} else if(!NioServer.onEventLoop() && !(Thread.currentThread() instanceof RoomShard)) {
+			for(Connection connection : congestion.backedUp) {
+				if(!connection.awaitDrained(deadline)) {
+					disconnectSlowConsumer(connection);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Trennt einen Client, dessen Ausgangs-Warteschlange uebergelaufen ist
+	 * @param connection , der langsame Client
+	 */
+	void disconnectSlowConsumer(Connection connection) {
+		metrics.slowConsumers.increment();
+		writeServerLog(connection.getNickname(), " slow consumer, disconnected (queue " + connection.getQueueDepth()
+				+ ", dropped " + connection.getDroppedMessages() + ")");
+		connection.close();
+	}
+	
+	/**
+	 * Entfernt einen Benutzer und seine Verbindung aus dem Chat-Raum
+	 * @param connection , die abgebaut wurde
+	 */
+	void leave(Connection connection) {
+		if(connection.getNickname() != null) {
+			users.unregister(connection.getNickname(), connection); // entferne den Benutzer aus
+																	// der Chat-Mitglieder-Liste
+			if(federation != null) {
+				federation.release(connection.getNickname());
+			}
+		}
+		Room room = exit(connection);
+		if(room != null && connection.getUserId() >= 0 && room.binaryMembers.get() > 0) {
+			// Clients im Binaerprotokoll geben die User-ID frei
+			broadcast(room, Frame.binaryOnly(BinaryProtocol.id(BinaryProtocol.LEFT, connection.getUserId())));
+		}
+		if(connection.getDroppedMessages() > 0) {
+			writeServerLog(connection.getNickname(), " left, " + connection.getDroppedMessages() + " messages dropped");
+		}
+	}
+	
+	/**
+	 * Methode welche die Protokollbefehle von den Nachrichten trennt
+	 * @param message, welche vom Server eingeht
+	 * @return nur die Nachricht ohne Protokollbefehle
+	 */
+	static String extractMessage(String message) {
+		return message.substring(5);
+	}
+	
+	/**
+	 * @return aktuelle Uhrzeit im Format HH:mm
+	 */
+	private static String timestamp() {
+		return MinuteClock.now().text;
+	}
+	
+	/**
+	 * Uebergibt die Nachricht an das asynchrone Server-Log (Datei und ggf. Log-Fenster). Blockiert nie; ist der
+	 * Log-Puffer voll, wird die Nachricht verworfen und gezaehlt.
+	 * (hh:mm) <name> : <message>
+	 * @param name , des Users
+	 * @param message , die eigentliche Nachricht
+	 */
+	void writeServerLog(String name, String message) {
+		log.log(name, message);
+	}
+	
+	/**
+	 * @return Anzahl der verworfenen Log-Eintraege (Log-Puffer war voll)
+	 */
+	long getLogDropped() {
+		return log.getDropped();
 	}
 	
 	/**
 	 * Jeder Client besitzt seinen eigenen Handler-Thread; verwaltet die Verbindung (Socket) zum Chat-Server und
-	 * uebertraegt die Nachrichten.
-	 */
-	private class Handler extends Thread {
-		private String name; // Client Benutzername
-		private Socket socket; // TCP-Standard-Socket
-		private BufferedReader in; // Eingangsstream vom Client
-		private PrintWriter out; // Ausgangsstream zum Client
-		private final String PLACEHOLDER = "        ";
+	 * uebertraegt die Nachrichten. Laeuft im Modus PLATFORM auf einem Plattform-Thread und im Modus VIRTUAL auf einem
+	 * virtuellen Thread.
+	 */
+	private class Handler implements Runnable, Connection {
+		private static final String PLACEHOLDER = "        ";
+		private volatile String name; // Client Benutzername
+		private volatile byte[] nameBytes; // Benutzername als UTF-8
+		private volatile int userId = -1; // User-ID im Chat-Raum
+		private volatile boolean binary; // Binaerprotokoll ausgehandelt
+		private volatile Compressor compressor; // "deflate" ausgehandelt, sonst null
+		private volatile Room room; // aktueller Raum
+		private final SocketChannel channel; // TCP-Socket, blockierend
+		private InputReader reader; // Eingang vom Client (Zeilen bzw. Frames)
+		private final OutboundQueue outbound = new OutboundQueue(config); // wartende Frames
+		private final RateLimiter limiter = RateLimiter.create(config); // Eingangs-Limits, null = keine
+		private final Heartbeat heartbeat; // erkennt tote Verbindungen, null = abgeschaltet
+		private Thread writer; // schreibt die Warteschlange auf den Socket
 		
 		/**
 		 * Konstruktor
 		 */
-		public Handler(Socket socket) {
-			this.socket = socket;
+		public Handler(SocketChannel channel) {
+			this.channel = channel;
+			this.heartbeat = heartbeat(this);
 		}
 		
 		/**
@@ -136,142 +1415,251 @@ public class ChatServer {
 		 */
 		public void run() {
 			try {
-				// Erzeugt den In- und Out-Stream des Clients
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				out = new PrintWriter(socket.getOutputStream(), true);
+				// Liest direkt vom Kanal in einen festen Puffer; geschrieben wird ebenfalls direkt auf den Kanal
+				reader = new InputReader(channel, config.getMaxLineLength(), metrics.bytesIn, heartbeat);
+				writer = handlerThreads.newThread(new Runnable() {
+					@Override
+					public void run() {
+						writeLoop();
+					}
+				});
+				writer.start();
 				
 				/**
 				 * Server fordert zur Eingabe des Nicknames auf. Der Nickname darf im Chat-Raum noch nicht vergeben
-				 * sein.
+				 * sein. Vorher kann der Client mit /OPTS das Binaerprotokoll aushandeln.
 				 */
-				while(true) {
-					out.println("/NAME");
-					
-					name = in.readLine();
-					if(name == null) {
-						return;
-					}
-					if(!name.startsWith("/USER")) {
-						return;
+				deliver(this, "/NAME");
+				while(name == null) {
+					String input;
+					if(binary) {
+						int length = reader.readFrame();
+						if(reader.buffer()[reader.start() + 4] == BinaryProtocol.PONG) {
+							continue;
+						}
+						if(reader.buffer()[reader.start() + 4] != BinaryProtocol.USER) {
+							return;
+						}
+						input = new String(reader.buffer(), reader.start() + BinaryProtocol.HEADER,
+								length - BinaryProtocol.HEADER, StandardCharsets.UTF_8);
+					} else {
+						int length = reader.readLine();
+						if(length < 0) {
+							return;
+						}
+						input = new String(reader.buffer(), reader.start(), length, StandardCharsets.UTF_8);
+						if(input.startsWith("/OPTS")) {
+							// bereits gelesene Frames bleiben im selben Puffer liegen
+							int options = negotiate(this, extractMessage(input));
+							compressor = compressorFor(options);
+							binary = (options & OPT_BINARY) != 0;
+							continue;
+						}
+						if(input.equals("/PONG")) {
+							continue;
+						}
+						if(!input.startsWith("/USER")) {
+							return;
+						}
+						input = extractMessage(input);
 					}
-					name = extractMessage(name);
-					writeServerLog(name, " /NAME");
+					writeServerLog(input, " /NAME");
 					
-					synchronized(users) {
-						if(!users.contains(name)) {
-							users.add(name);
-							break;
-						}
+					int id = register(input, this);
+					if(id >= 0) {
+						userId = id;
+						nameBytes = input.getBytes(StandardCharsets.UTF_8);
+						name = input;
+					} else {
+						deliver(this, "/NAME");
 					}
 				}
 				
 				// Der neue Benutzer wird "akzeptiert" -> Server schickt
 				// Bestaetigung an Client
-				out.println("/ACPT");
-				writeServerLog(name, " /ACPT");
-				
-				// Informiert die Chat-Mitgliedern, dass ein neuer Benutzer
-				// beigetreten ist
-				for(PrintWriter writer : writers) {
-					writer.println("/MSGE" + PLACEHOLDER + name + " joined");
-				}
-				writeServerLog(name, " joined");
-				
-				synchronized(writers) {
-					writers.add(out); // Fuegt den neuen WriterStream der Liste
-									  // aller Mitglieder-Streams bei
-				}
-				
-				Calendar cal = Calendar.getInstance();
-				SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
+				accept(this);
 				
 				/*
 				 * Nimmt die Nachrichten des Clients entgegen und antwortet bzw. verteilt die Nachrichten entsprechend
-				 * -> nur an Client selbst oder an alle Clients im Chat
 				 */
 				while(true) {
-					String input = in.readLine();
-					if(input == null) {
-						return;
-						// Wenn der Client den Chat verlassen will
-					} else if(input.equals("/QUIT" + name)) {
-						out.println("/QUIT");
-						writeServerLog(name, " disconnected");
-						synchronized(writers) {
-							for(PrintWriter writer : writers) {
-								writer.println("/MSGE" + name + " (" + sdf.format(cal.getTime()) + ") disconnected");
-							}
+					if(binary) {
+						int length = reader.readFrame();
+						if(withinLimits(length)) {
+							handleFrame(this, reader.buffer(), reader.start(), length, System.nanoTime());
 						}
-					} else if(input.equals("/USRS")) {
-						synchronized(users) {
-							writeServerLog(name, input);
-							if(writers.size() == 1) {
-								out.println("/MSGEyou are alone :(");
-							} else {
-								out.println("/MSGE" + PLACEHOLDER + "list of users:");
-								String allUsers = "";
-								for(String user : users) {
-									if(!user.equals(name)) {
-										allUsers += "[" + user + "] ";
-									}
-								}
-								out.println("/MSGE" + PLACEHOLDER + allUsers);
-							}
+					} else {
+						int length = reader.readLine();
+						if(length < 0) {
+							return;
 						}
-					}
-					// Wenn eine Nachricht an alle gehen soll
-					else {
-						synchronized(writers) {
-							input = extractMessage(input);
-							writeServerLog(name, "\"" + input + "\"");
-							for(PrintWriter writer : writers) {
-								writer.println("/MSGE" + "(" + sdf.format(cal.getTime()) + ") " + name + ": " + "\"" + input + "\"");
-							}
+						if(withinLimits(length)) {
+							handleLine(this, reader.buffer(), reader.start(), length, System.nanoTime());
 						}
 					}
 				}
+			} catch(EOFException e) {
+				// Verbindung im Binaerprotokoll beendet
 			} catch(IOException e) {
 				System.out.println(e);
 			} finally {
 				// Wenn der Client down ist ...
-				if(name != null) {
-					users.remove(name); // entferne den Benutzer aus der
-										// Chat-Mitglieder-Liste
-				}
-				if(out != null) {
-					writers.remove(out); // entferne PrintWriter vom
-										 // abgemeldeten Benutzer
+				if(heartbeat != null) {
+					heartbeat.cancel();
 				}
+				leave(this);
+				close();
+				releaseConnection();
+			}
+		}
+		
+		/**
+		 * Wendet die Limits der Verbindung an. Im Modus THROTTLE schlaeft der Handler, bis die Zeile erlaubt ist; da
+		 * er solange nicht liest, bremst TCP den Client.
+		 * @param length , Laenge der gelesenen Zeile bzw. des Frames
+		 * @return false, wenn die Zeile verworfen wird
+		 */
+		private boolean withinLimits(int length) throws InterruptedIOException {
+			if(limiter == null) {
+				return true;
+			}
+			long wait;
+			while((wait = limit(this, limiter, length, System.nanoTime())) > 0) {
 				try {
-					socket.close(); // Verbindungsabbau
-				} catch(IOException e) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch(InterruptedException e) {
+					throw new InterruptedIOException();
 				}
-				semaphore.release();
 			}
+			return wait == 0;
+		}
+		
+		@Override
+		public String getNickname() {
+			return name;
+		}
+		
+		@Override
+		public byte[] getNicknameBytes() {
+			return nameBytes;
+		}
+		
+		@Override
+		public int getUserId() {
+			return userId;
+		}
+		
+		@Override
+		public boolean isBinary() {
+			return binary;
+		}
+		
+		@Override
+		public Room getRoom() {
+			return room;
+		}
+		
+		@Override
+		public void setRoom(Room room) {
+			this.room = room;
 		}
 		
 		/**
-		 * Methode welche die Protokollbefehle von den Nachrichten trennt
-		 * @param message, welche vom Server eingeht
-		 * @return nur die Nachricht ohne Protokollbefehle
+		 * Schreibt die Ausgangs-Warteschlange auf den Socket, bis die Verbindung abgebaut wird. Nach dem ersten Frame
+		 * wird bis zum Ende des Coalescing-Fensters gesammelt: die Frames werden in einen festen Schreibpuffer
+		 * kopiert, der geschrieben wird, sobald er voll ist bzw. das Fenster endet. Pro Frame wird dabei nichts
+		 * allokiert.
 		 */
-		private String extractMessage(String message) {
-			return message.substring(5);
+		private void writeLoop() {
+			long window = TimeUnit.MICROSECONDS.toNanos(config.getCoalesceWindowMicros());
+			ByteBuffer out = ByteBuffer.allocateDirect(config.getCoalesceBytes());
+			try {
+				while(channel.isOpen()) {
+					Frame frame = outbound.take();
+					long deadline = System.nanoTime() + window;
+					while(frame != null) {
+						int from = 0;
+						while(from < frame.length()) {
+							from += frame.copyTo(out, from);
+							if(!out.hasRemaining()) {
+								write(out);
+							}
+						}
+						long wait = deadline - System.nanoTime();
+						frame = wait > 0 ? outbound.poll(wait, TimeUnit.NANOSECONDS) : outbound.poll();
+					}
+					write(out);
+				}
+			} catch(InterruptedException e) {
+				// Verbindung wurde abgebaut
+			} catch(IOException e) {
+				close();
+			}
 		}
 		
 		/**
-		 * Schreibt die Nachricht in eine Session-ArrayList und zeigt sie anschliessend im Server-Log-Fenster an.
-		 * (hh:mm) <name> : <message>
-		 * @param name , des Users
-		 * @param message , die eigentliche Nachricht
+		 * Schreibt den Schreibpuffer vollstaendig; auch ein blockierender Kanal darf weniger schreiben als angeboten
 		 */
-		private void writeServerLog(String name, String message) {
-			Calendar cal = Calendar.getInstance();
-			SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
-			
-			session.add("(" + sdf.format(cal.getTime()) + ") " + name + ": " + message);
-			logTextArea.append(session.get(session.size() - 1) + "\n");
-			scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum());
+		private void write(ByteBuffer out) throws IOException {
+			out.flip();
+			int bytes = out.remaining();
+			while(out.hasRemaining()) {
+				channel.write(out);
+			}
+			metrics.bytesOut.add(bytes);
+			out.clear();
+		}
+		
+		@Override
+		public boolean send(Frame frame) {
+			frame = frame.encodedFor(binary, compressor);
+			return frame == null || outbound.offer(frame);
+		}
+		
+		@Override
+		public boolean isBackedUp() {
+			return outbound.isBackedUp();
+		}
+		
+		@Override
+		public boolean awaitDrained(long deadline) {
+			return outbound.awaitDrained(deadline);
+		}
+		
+		@Override
+		public void backOff(List<Connection> backedUp, long deadline) {
+			for(Connection connection : backedUp) {
+				if(!connection.awaitDrained(deadline)) {
+					disconnectSlowConsumer(connection);
+				}
+			}
+		}
+		
+		@Override
+		public void submit(Room room, Frame frame, long received) {
+			room.submit(frame, received); // eigener Thread, darf warten
+		}
+		
+		@Override
+		public int getQueueDepth() {
+			return outbound.depth();
+		}
+		
+		@Override
+		public long getDroppedMessages() {
+			return outbound.dropped();
+		}
+		
+		@Override
+		public void close() {
+			try {
+				channel.close(); // Verbindungsabbau
+			} catch(IOException e) {
+			}
+			if(writer != null) {
+				writer.interrupt();
+			}
+			outbound.clear();
 		}
 	}
 }
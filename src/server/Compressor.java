@@ -0,0 +1,76 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Kompression grosser Binaer-Frames fuer Clients, die "deflate" ausgehandelt haben. Es gibt eine
+ *          Instanz pro Server; komprimiert wird pro Frame und nicht pro Verbindung, das Ergebnis haengt am Frame
+ *          (siehe Frame.encodedFor) und wird von allen komprimierenden Empfaengern eines Broadcasts geteilt. Deflater
+ *          halten nativen Speicher und sind teuer anzulegen, daher liegen sie in einem Pool statt in ThreadLocals
+ *          (bei virtuellen Threads waeren das beliebig viele).
+ */
+class Compressor {
+
+	private final int threshold; // kleinere Frames werden nie komprimiert
+	private final int level;
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>(); // freie Deflater
+	private final ServerMetrics metrics;
+
+	/**
+	 * Konstruktor
+	 * @param config , liefert Schwelle und Kompressionsstufe
+	 * @param metrics , zaehlt komprimierte Frames und gesparte Bytes
+	 */
+	Compressor(ServerConfig config, ServerMetrics metrics) {
+		this.threshold = config.getCompressThreshold();
+		this.level = config.getCompressLevel();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param config , Konfiguration des Servers
+	 * @param metrics , Kennzahlen des Servers
+	 * @return der Compressor oder null, wenn Kompression abgeschaltet ist
+	 */
+	static Compressor create(ServerConfig config, ServerMetrics metrics) {
+		return config.getCompressThreshold() > 0 ? new Compressor(config, metrics) : null;
+	}
+
+	/**
+	 * @param length , Laenge eines Binaer-Frames inkl. Kopf
+	 * @return true, wenn sich ein Versuch lohnt
+	 */
+	boolean worthTrying(int length) {
+		return length >= threshold;
+	}
+
+	/**
+	 * Komprimiert ein Binaer-Frame
+	 * @param frame , Frame inkl. Kopf zwischen position und limit (bleibt unveraendert)
+	 * @return das DEFLATED-Frame oder null, wenn es nicht kleiner wird
+	 */
+	ByteBuffer deflate(ByteBuffer frame) {
+		Deflater deflater = deflaters.poll();
+		if(deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		try {
+			ByteBuffer deflated = BinaryProtocol.deflate(frame, deflater);
+			metrics.compressAttempts.increment();
+			if(deflated != null) {
+				metrics.compressedFrames.increment();
+				metrics.compressedBytesIn.add(frame.remaining());
+				metrics.compressedBytesOut.add(deflated.remaining());
+			}
+			return deflated;
+		} finally {
+			deflaters.add(deflater);
+		}
+	}
+}
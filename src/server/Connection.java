@@ -0,0 +1,99 @@
+package server;
+
+import java.util.List;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Eine Client-Verbindung aus Sicht des Chat-Raums. Wird sowohl vom blockierenden Handler-Thread als
+ *          auch von der NIO-Engine implementiert, damit beide dasselbe Protokoll und denselben Raum nutzen.
+ */
+interface Connection {
+
+	/**
+	 * @return Nickname des Clients, null solange er nicht angemeldet ist
+	 */
+	String getNickname();
+
+	/**
+	 * @return Nickname als UTF-8 (nicht veraendern), null solange der Client nicht angemeldet ist
+	 */
+	byte[] getNicknameBytes();
+
+	/**
+	 * @return User-ID im Chat-Raum, -1 solange der Client nicht angemeldet ist
+	 */
+	int getUserId();
+
+	/**
+	 * @return true, wenn der Client das Binaerprotokoll ausgehandelt hat
+	 */
+	boolean isBinary();
+
+	/**
+	 * @return der Raum, in dem der Client ist; null vor dem Beitritt und nach dem Verlassen
+	 */
+	Room getRoom();
+
+	/**
+	 * Nur vom ChatServer unter der Sperre von writers des Raums gesetzt
+	 * @param room , der neue Raum oder null
+	 */
+	void setRoom(Room room);
+
+	/**
+	 * Reiht ein kodiertes Frame in die Ausgangs-Warteschlange des Clients ein. Darf von beliebigen Threads
+	 * aufgerufen werden und blockiert nie, auch nicht bei BACKPRESSURE (siehe isBackedUp); geschrieben wird vom
+	 * Writer der Verbindung. Eingereiht wird die Kodierung fuer das Protokoll des Clients; gibt es keine, wird nichts
+	 * geschickt.
+	 * @param frame , die kodierte Protokollzeile; wird mit anderen Empfaengern geteilt
+	 * @return false, wenn die Warteschlange uebergelaufen ist und die Verbindung getrennt werden muss
+	 */
+	boolean send(Frame frame);
+
+	/**
+	 * @return true, wenn Frames in der Reserve der Ausgangs-Warteschlange warten (nur BACKPRESSURE)
+	 */
+	boolean isBackedUp();
+
+	/**
+	 * Wartet, bis der Client seine Ausgangs-Warteschlange wieder unter die Kapazitaet abgearbeitet hat. Nie unter
+	 * einer Sperre und nie in einer Event-Loop aufrufen.
+	 * @param deadline , System.nanoTime(), bis zu dem hoechstens gewartet wird
+	 * @return false, wenn der Client bis dahin nicht nachgekommen ist und getrennt werden muss
+	 */
+	boolean awaitDrained(long deadline);
+
+	/**
+	 * Bremst den Client, nachdem ein Broadcast seiner Nachricht andere Clients in die Reserve ihrer Ausgangs-
+	 * Warteschlange gebracht hat (BACKPRESSURE): er wird erst weiter gelesen, wenn sie nachgekommen sind; wer bis
+	 * deadline nicht nachkommt, wird getrennt. Ausserhalb jeder Sperre aufrufen.
+	 * @param backedUp , die Clients in der Reserve
+	 * @param deadline , System.nanoTime()
+	 */
+	void backOff(List<Connection> backedUp, long deadline);
+
+	/**
+	 * Reicht eine Chat-Nachricht an den Shard des Raums weiter. Ein eigener Thread (Handler) wartet bei voller
+	 * Eingangs-Warteschlange; eine Event-Loop darf das nicht, sie haelt die Nachricht zurueck und liest von diesem
+	 * Client nicht weiter, bis der Shard Platz gemacht hat.
+	 * @param room , Raum mit Shard
+	 * @param frame , die kodierte Nachricht
+	 * @param received , System.nanoTime() beim Lesen vom Socket
+	 */
+	void submit(Room room, Frame frame, long received);
+
+	/**
+	 * @return aktueller Fuellstand der Ausgangs-Warteschlange
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return Anzahl der wegen Ueberlaufs verworfenen Nachrichten
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * Baut die Verbindung ab
+	 */
+	void close();
+}
@@ -0,0 +1,733 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Verbund mehrerer Chat-Server-Knoten. Jeder Knoten haelt zu jedem anderen genau eine
+ *          Server-zu-Server-Verbindung (PeerLink, Vollvermaschung): er baut sie zu den Adressen in "peers" selbst
+ *          auf und nimmt die der anderen auf "peerPort" an. Ueber die Verbindungen laufen Zeilen wie im
+ *          Textprotokoll:
+ *
+ *          /NODE<id> <epoch> <nonce> Handshake, beide Seiten zuerst
+ *          /AUTH<hmac> Beweis, dass der Knoten peerSecret kennt (nur wenn gesetzt)
+ *          /NICK<nick> Nickname gehoert dem sendenden Knoten (Abgleich nach dem Handshake)
+ *          /CLAM<n> <nick> Anfrage n: darf der sendende Knoten den Nickname vergeben?
+ *          /GRNT<n>, /DENY<n> Antwort auf Anfrage n
+ *          /FREE<nick> Nickname des sendenden Knotens ist wieder frei
+ *          /RELY<seq> <raum> <zeile> Broadcast (Chat-Nachricht, Beitritt, Abmeldung) fuer die Mitglieder des Raums
+ *          /PRIV<nick> <zeile> private Nachricht an einen Benutzer des empfangenden Knotens
+ *
+ *          Ein Nickname wird erst vergeben, wenn er lokal reserviert ist und alle verbundenen Knoten zugestimmt
+ *          haben; fragen zwei Knoten gleichzeitig nach demselben Namen, lehnen beide ab. Jeder Knoten leitet nur
+ *          seine eigenen Broadcasts weiter (keine Weiterleitung ueber Dritte). Die Sequenznummern erkennen Duplikate,
+ *          wenn zwei Knoten sich gleichzeitig verbinden und kurzzeitig beide Verbindungen Nachrichten tragen. Bei
+ *          einer Netztrennung bleibt jeder Teil verfuegbar; die Nicknames des getrennten Knotens werden frei.
+ *
+ *          Auf peerPort werden nur Rechner aus peerAllow angenommen (siehe ServerConfig). Von anderen Knoten kommen
+ *          nur /MSGE-Zeilen an Clients durch; andere Zeilen, Steuerzeichen und Sequenznummern, die keine Zahl sind
+ *          oder weit vor dem Fenster liegen, werden verworfen und als "rejected" gezaehlt.
+ */
+class Federation {
+
+	/**
+	 * Ergebnis einer Anfrage nach einem Nickname; wird ggf. im Thread einer Peer-Verbindung aufgerufen
+	 */
+	interface ClaimListener {
+		void claimed(boolean granted);
+	}
+
+	private static final long RECONNECT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final long TICK_MILLIS = 100;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+	private static final byte[] NICK = ascii("/NICK");
+	private static final byte[] CLAM = ascii("/CLAM");
+	private static final byte[] GRNT = ascii("/GRNT");
+	private static final byte[] DENY = ascii("/DENY");
+	private static final byte[] FREE = ascii("/FREE");
+	private static final byte[] RELY = ascii("/RELY");
+	private static final byte[] PRIV = ascii("/PRIV");
+	private static final byte[] MSGE = ascii("/MSGE");
+	private static final int MAX_SEQ_DIGITS = 18; // kein Ueberlauf von long
+
+	private final ChatServer server;
+	private final ServerConfig config;
+	private final ServerMetrics metrics;
+	volatile String nodeId; // Name dieses Knotens, gesetzt in start()
+	final long epoch = System.currentTimeMillis(); // Startzeit, unterscheidet Neustarts fuer die Duplikaterkennung
+	private final long claimTimeout; // ns
+
+	private final CopyOnWriteArrayList<PeerLink> links = new CopyOnWriteArrayList<PeerLink>(); // nach dem Handshake
+	private final ConcurrentHashMap<String, String> remoteNames = new ConcurrentHashMap<String, String>(); // Nickname
+																										   // -> Knoten
+	private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<Long, Claim>(); // offene Anfragen
+	private final AtomicLong nextClaim = new AtomicLong();
+	private final AtomicLong nextSeq = new AtomicLong(); // Sequenznummer der weitergeleiteten Broadcasts
+	private final Map<String, Window> windows = new HashMap<String, Window>(); // je Knoten, Sperre: this
+
+	// Aufbau der Verbindungen, nur Thread "federation"
+	private final List<InetSocketAddress> peers;
+	private final Map<InetSocketAddress, PeerLink> dialed = new HashMap<InetSocketAddress, PeerLink>();
+	private final Map<InetSocketAddress, Long> nextAttempt = new HashMap<InetSocketAddress, Long>();
+	private final Map<InetSocketAddress, String> addressNodes = new ConcurrentHashMap<InetSocketAddress, String>();
+
+	private ServerSocketChannel listener; // Verbindungen anderer Knoten, null = keine
+	private Set<InetAddress> allowed; // duerfen auf peerPort verbinden, null = alle
+	private boolean allowLoopback; // zusaetzlich alle Loopback-Adressen
+	private volatile boolean running = true;
+
+	/**
+	 * Konstruktor
+	 * @param server , dessen Raeume und Nicknames verbunden werden
+	 * @param config , liefert Ports, Peers und Zeitlimits
+	 * @param metrics , zaehlt weitergeleitete Nachrichten und Duplikate
+	 */
+	Federation(ChatServer server, ServerConfig config, ServerMetrics metrics) {
+		this.server = server;
+		this.config = config;
+		this.metrics = metrics;
+		this.peers = config.getPeers();
+		this.claimTimeout = TimeUnit.MILLISECONDS.toNanos(config.getPeerClaimTimeout());
+	}
+
+	/**
+	 * Oeffnet ggf. den Port fuer andere Knoten und startet den Thread, der die Verbindungen aufbaut. Bis dahin
+	 * werden Nicknames ohne Rueckfrage vergeben.
+	 * @param clientPort , Port der Clients; Teil des Standardnamens des Knotens
+	 * @return der gebundene Port fuer andere Knoten oder -1
+	 */
+	int start(int clientPort) throws IOException {
+		String id = config.getNodeId();
+		nodeId = id.isEmpty() ? InetAddress.getLocalHost().getHostName() + ":" + clientPort : id;
+		int port = -1;
+		if(config.getPeerPort() >= 0) {
+			allowed = allowedAddresses();
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(config.getPeerPort()));
+			port = listener.socket().getLocalPort();
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					acceptLoop();
+				}
+			}, "peer-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+		Thread maintenance = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, "federation");
+		maintenance.setDaemon(true);
+		maintenance.start();
+		return port;
+	}
+
+	/**
+	 * Trennt alle Verbindungen zu anderen Knoten
+	 */
+	void stop() {
+		running = false;
+		try {
+			if(listener != null) {
+				listener.close();
+			}
+		} catch(IOException e) {
+		}
+		for(PeerLink link : links) {
+			link.close();
+		}
+	}
+
+	/**
+	 * @return Adressen aus peerAllow; ohne peerAllow die der konfigurierten Peers (und Loopback) bzw. mit peerSecret
+	 *         null = alle
+	 */
+	private Set<InetAddress> allowedAddresses() throws UnknownHostException {
+		List<String> hosts = config.getPeerAllow();
+		if(hosts.contains("*") || (hosts.isEmpty() && !config.getPeerSecret().isEmpty())) {
+			return null;
+		}
+		Set<InetAddress> addresses = new HashSet<InetAddress>();
+		if(hosts.isEmpty()) {
+			for(InetSocketAddress peer : peers) {
+				if(!peer.isUnresolved()) {
+					addresses.add(peer.getAddress());
+				}
+			}
+			allowLoopback = true;
+		}
+		for(String host : hosts) {
+			addresses.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+		}
+		return addresses;
+	}
+
+	private void acceptLoop() {
+		try {
+			while(true) {
+				SocketChannel channel = listener.accept();
+				InetAddress remote = channel.socket().getInetAddress();
+				if(allowed != null && !allowed.contains(remote) && !(allowLoopback && remote.isLoopbackAddress())) {
+					metrics.peerRejects.increment();
+					server.writeServerLog(nodeId, " federation: Verbindung von " + remote.getHostAddress()
+							+ " abgewiesen (nicht in peerAllow)");
+					channel.close();
+					continue;
+				}
+				channel.socket().setTcpNoDelay(true);
+				new PeerLink(this, channel, null, config, metrics).start();
+			}
+		} catch(IOException e) {
+			if(listener.isOpen()) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Baut fehlende Verbindungen auf (hoechstens einmal pro Sekunde je Adresse) und beendet ueberfaellige Anfragen
+	 */
+	private void maintain() {
+		while(running) {
+			long now = System.nanoTime();
+			for(Claim claim : claims.values()) {
+				if(now - claim.deadline >= 0) {
+					claim.expire();
+				}
+			}
+			for(InetSocketAddress address : peers) {
+				PeerLink link = dialed.get(address);
+				Long next = nextAttempt.get(address);
+				String node = addressNodes.get(address);
+				if(nodeId.equals(node)) {
+					continue; // die eigene Adresse
+				}
+				if((link == null || !link.isOpen()) && !isConnected(node)
+						&& (next == null || now - next >= 0)) {
+					nextAttempt.put(address, now + RECONNECT_INTERVAL);
+					dialed.put(address, connect(address));
+				}
+			}
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return die gestartete Verbindung oder null, wenn der Knoten nicht erreichbar ist
+	 */
+	private PeerLink connect(InetSocketAddress address) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+			channel.socket().setTcpNoDelay(true);
+			PeerLink link = new PeerLink(this, channel, address, config, metrics);
+			link.start();
+			return link;
+		} catch(IOException e) {
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch(IOException ignored) {
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return true, wenn eine Verbindung zum Knoten besteht
+	 */
+	private boolean isConnected(String node) {
+		return node != null && link(node) != null;
+	}
+
+	private PeerLink link(String node) {
+		for(PeerLink link : links) {
+			if(link.node.equals(node)) {
+				return link;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Meldet eine Verbindung nach dem Handshake an. Bestehen zwei Verbindungen zum selben Knoten (beide haben
+	 * gleichzeitig gewaehlt), bleibt auf beiden Seiten die, die der Knoten mit der kleineren ID aufgebaut hat; nach
+	 * einem Neuaufbau durch denselben Knoten die neue.
+	 * @return false, wenn die Verbindung nicht gebraucht wird (sie wird dann geschlossen)
+	 */
+	synchronized boolean linkUp(PeerLink link) {
+		if(link.address != null) {
+			addressNodes.put(link.address, link.node);
+		}
+		if(link.node.equals(nodeId)) {
+			server.writeServerLog(nodeId, " federation: Verbindung zu sich selbst verworfen");
+			return false;
+		}
+		PeerLink existing = link(link.node);
+		if(existing != null && !existing.dialer().equals(link.dialer())
+				&& existing.dialer().compareTo(link.dialer()) < 0) {
+			return false;
+		}
+		Window window = windows.get(link.node);
+		if(window == null || window.epoch != link.epoch) {
+			window = new Window(link.epoch); // neuer Knoten oder Neustart
+			windows.put(link.node, window);
+		}
+		if(existing == null) {
+			window.rebase(); // der Knoten hat in der Zwischenzeit womoeglich an andere weitergeleitet
+		}
+		link.window = window;
+		links.add(link);
+		if(existing != null) {
+			existing.close(); // die neue ist bereits angemeldet: die Nicknames des Knotens bleiben bekannt
+		} else {
+			server.writeServerLog(nodeId, " federation: verbunden mit " + link.node);
+		}
+		for(String name : server.localNicknames()) {
+			link.send(Frame.of("/NICK" + name));
+		}
+		return true;
+	}
+
+	/**
+	 * Meldet eine abgebaute Verbindung ab. Ist der Knoten danach nicht mehr erreichbar, werden seine Nicknames frei
+	 * und offene Anfragen warten nicht mehr auf ihn.
+	 */
+	void linkDown(PeerLink link) {
+		synchronized(this) {
+			if(!links.remove(link)) {
+				return; // nie angemeldet
+			}
+			if(link(link.node) == null) {
+				for(Iterator<String> it = remoteNames.values().iterator(); it.hasNext();) {
+					if(it.next().equals(link.node)) {
+						it.remove();
+					}
+				}
+				server.writeServerLog(nodeId, " federation: getrennt von " + link.node);
+			}
+		}
+		for(Claim claim : claims.values()) {
+			claim.answer(link, true);
+		}
+	}
+
+	/**
+	 * Ein Knoten hat den Handshake nicht bestanden oder eine unzulaessige Zeile geschickt
+	 * @param reason , fuer das Log
+	 */
+	void rejected(PeerLink link, String reason) {
+		metrics.peerRejects.increment();
+		server.writeServerLog(nodeId, " federation: " + link + " abgewiesen: " + reason);
+	}
+
+	/**
+	 * Die Ausgangs-Warteschlange einer Verbindung ist uebergelaufen
+	 */
+	void overflow(PeerLink link) {
+		metrics.peerOverflows.increment();
+		server.writeServerLog(nodeId, " federation: Warteschlange zu " + link + " uebergelaufen, Verbindung getrennt");
+	}
+
+	/**
+	 * @return Anzahl verbundener Knoten
+	 */
+	int peerCount() {
+		return links.size();
+	}
+
+	/**
+	 * @return Anzahl der bekannten Nicknames anderer Knoten
+	 */
+	int remoteNameCount() {
+		return remoteNames.size();
+	}
+
+	/**
+	 * @return true, wenn der Nickname auf einem anderen Knoten vergeben ist
+	 */
+	boolean isRemote(String nickname) {
+		return remoteNames.containsKey(nickname);
+	}
+
+	/**
+	 * Fragt alle verbundenen Knoten, ob der (lokal bereits reservierte) Nickname vergeben werden darf. Ohne
+	 * verbundene Knoten wird sofort zugestimmt.
+	 * @param nickname , gewuenschter Nickname
+	 * @param listener , erhaelt das Ergebnis genau einmal
+	 */
+	void claim(String nickname, ClaimListener listener) {
+		if(nickname.indexOf('\n') >= 0 || nickname.indexOf('\r') >= 0) {
+			listener.claimed(false); // nicht als Zeile zwischen den Knoten darstellbar
+			return;
+		}
+		List<PeerLink> targets = new ArrayList<PeerLink>(links);
+		if(targets.isEmpty()) {
+			listener.claimed(true);
+			return;
+		}
+		Claim claim = new Claim(nextClaim.incrementAndGet(), nickname, listener, new HashSet<PeerLink>(targets));
+		claims.put(claim.id, claim);
+		Frame request = Frame.of("/CLAM" + claim.id + " " + nickname);
+		for(PeerLink link : targets) {
+			if(!link.send(request)) {
+				claim.answer(link, true); // getrennt: stimmt nicht mehr mit
+			}
+		}
+	}
+
+	/**
+	 * Gibt einen Nickname dieses Knotens im Verbund frei (Abmeldung)
+	 */
+	void release(String nickname) {
+		if(links.isEmpty()) {
+			return;
+		}
+		Frame free = Frame.of("/FREE" + nickname);
+		for(PeerLink link : links) {
+			link.send(free);
+		}
+	}
+
+	/**
+	 * Leitet einen Broadcast an alle verbundenen Knoten weiter. Die Zeile wird einmal mit Kopf kodiert, alle
+	 * Verbindungen teilen sich das Frame. Nur die Textform wird weitergeleitet; Clients im Binaerprotokoll erhalten
+	 * auf den anderen Knoten die daraus abgeleitete Form, da User-IDs nur pro Knoten gelten.
+	 * @param room , Raum des Broadcasts
+	 * @param frame , der Broadcast
+	 */
+	void relay(Room room, Frame frame) {
+		if(links.isEmpty() || !frame.isText()) {
+			return;
+		}
+		ByteBuffer line = frame.buffer();
+		byte[] seq = Long.toString(nextSeq.incrementAndGet()).getBytes(StandardCharsets.US_ASCII);
+		byte[] bytes = new byte[RELY.length + seq.length + 1 + room.nameBytes.length + 1 + line.remaining()];
+		int pos = put(bytes, 0, RELY);
+		pos = put(bytes, pos, seq);
+		bytes[pos++] = ' ';
+		pos = put(bytes, pos, room.nameBytes);
+		bytes[pos++] = ' ';
+		line.get(bytes, pos, line.remaining());
+		Frame relay = Frame.line(bytes);
+		for(PeerLink link : links) {
+			link.send(relay);
+		}
+		metrics.relayedOut.increment();
+	}
+
+	/**
+	 * Leitet eine private Nachricht an den Knoten weiter, dem der Nickname gehoert
+	 * @param nickname , Empfaenger
+	 * @param frame , die fertige Zeile
+	 * @return false, wenn der Nickname keinem verbundenen Knoten gehoert
+	 */
+	boolean sendPrivate(String nickname, Frame frame) {
+		PeerLink link = link(remoteNames.get(nickname));
+		if(link == null || !frame.isText()) {
+			return false;
+		}
+		byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer line = frame.buffer();
+		byte[] bytes = new byte[PRIV.length + name.length + 1 + line.remaining()];
+		int pos = put(bytes, 0, PRIV);
+		pos = put(bytes, pos, name);
+		bytes[pos++] = ' ';
+		line.get(bytes, pos, line.remaining());
+		link.send(Frame.line(bytes));
+		return true;
+	}
+
+	/**
+	 * Verarbeitet eine Zeile eines anderen Knotens; im Thread der Verbindung
+	 * @param data , Puffer mit der Zeile (ohne Zeilenende); nur waehrend des Aufrufs gueltig
+	 */
+	void onLine(PeerLink link, byte[] data, int offset, int length) {
+		if(length < 5) {
+			return;
+		}
+		if(matches(data, offset, RELY)) {
+			relayed(link, data, offset + 5, length - 5);
+			return;
+		}
+		String argument = new String(data, offset + 5, length - 5, StandardCharsets.UTF_8);
+		if(matches(data, offset, PRIV)) {
+			int idx = argument.indexOf(' ');
+			int lineStart = offset + 5;
+			while(lineStart < offset + length && data[lineStart] != ' ') {
+				lineStart++;
+			}
+			if(idx > 0 && isNotice(data, lineStart + 1, offset + length)) {
+				server.privateRelayed(argument.substring(0, idx), Frame.of(argument.substring(idx + 1)));
+			} else {
+				rejected(link, "ungueltige Zeile /PRIV");
+			}
+		} else if(matches(data, offset, CLAM)) {
+			int idx = argument.indexOf(' ');
+			if(idx <= 0 || !ChatServer.isValidNickname(argument.substring(idx + 1))) {
+				rejected(link, "ungueltige Zeile /CLAM");
+				return;
+			}
+			String nickname = argument.substring(idx + 1);
+			String owner = server.hasNickname(nickname) ? nodeId : remoteNames.putIfAbsent(nickname, link.node);
+			boolean granted = owner == null || owner.equals(link.node);
+			link.send(Frame.of((granted ? "/GRNT" : "/DENY") + argument.substring(0, idx)));
+		} else if(matches(data, offset, GRNT) || matches(data, offset, DENY)) {
+			Long id;
+			try {
+				id = Long.valueOf(argument);
+			} catch(NumberFormatException e) {
+				rejected(link, "ungueltige Zeile " + (matches(data, offset, GRNT) ? "/GRNT" : "/DENY"));
+				return;
+			}
+			Claim claim = claims.get(id);
+			if(claim != null) {
+				claim.answer(link, matches(data, offset, GRNT));
+			}
+		} else if(matches(data, offset, FREE)) {
+			remoteNames.remove(argument, link.node);
+		} else if(matches(data, offset, NICK)) {
+			String owner = remoteNames.putIfAbsent(argument, link.node);
+			if(server.hasNickname(argument) || (owner != null && !owner.equals(link.node))) {
+				// nur nach einer Netztrennung moeglich: beide behalten den Namen
+				server.writeServerLog(argument, " federation: Nickname auch auf " + link.node + " vergeben");
+			}
+		}
+	}
+
+	/**
+	 * /RELY<seq> <raum> <zeile>: verteilt die Zeile an die Mitglieder des Raums, sofern sie nicht schon ueber eine
+	 * andere Verbindung ankam. Nur eine /MSGE-Zeile mit gueltiger Sequenznummer wird angenommen.
+	 */
+	private void relayed(PeerLink link, byte[] data, int offset, int length) {
+		int end = offset + length;
+		long seq = 0;
+		int pos = offset;
+		for(; pos < end && data[pos] != ' '; pos++) {
+			if(data[pos] < '0' || data[pos] > '9' || pos - offset >= MAX_SEQ_DIGITS) {
+				rejected(link, "ungueltige Sequenznummer");
+				return;
+			}
+			seq = seq * 10 + (data[pos] - '0');
+		}
+		int roomStart = ++pos;
+		while(pos < end && data[pos] != ' ') {
+			pos++;
+		}
+		if(pos >= end || !isNotice(data, pos + 1, end)) {
+			rejected(link, "ungueltige Zeile /RELY");
+			return;
+		}
+		if(!link.window.isPlausible(seq)) {
+			rejected(link, "Sequenznummer " + seq + " ausserhalb des Fensters");
+			return;
+		}
+		if(!link.window.accept(seq)) {
+			metrics.relayDuplicates.increment();
+			return;
+		}
+		String room = new String(data, roomStart, pos - roomStart, StandardCharsets.UTF_8);
+		pos++;
+		byte[] line = new byte[end - pos + 1];
+		System.arraycopy(data, pos, line, 0, end - pos);
+		line[line.length - 1] = '\n';
+		metrics.relayedIn.increment();
+		server.relayed(room, Frame.line(line));
+	}
+
+	/**
+	 * @return true, wenn data[from, end) eine /MSGE-Zeile ohne Zeilenumbruch ist; nur solche Zeilen gehen an Clients
+	 */
+	private static boolean isNotice(byte[] data, int from, int end) {
+		if(end - from < MSGE.length || !matches(data, from, MSGE)) {
+			return false;
+		}
+		for(int i = from; i < end; i++) {
+			if(data[i] == '\n' || data[i] == '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(byte[] data, int offset, byte[] command) {
+		for(int i = 0; i < command.length; i++) {
+			if(data[offset + i] != command[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int put(byte[] line, int pos, byte[] bytes) {
+		System.arraycopy(bytes, 0, line, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Offene Anfrage nach einem Nickname: wartet auf die Antworten aller Knoten, die beim Absenden verbunden waren
+	 */
+	private final class Claim {
+		private final Long id;
+		private final String nickname;
+		private final ClaimListener listener;
+		private final Set<PeerLink> waiting; // Sperre: this
+		private final long deadline; // System.nanoTime()
+		private boolean denied; // Sperre: this
+		private boolean done; // Sperre: this
+
+		Claim(long id, String nickname, ClaimListener listener, Set<PeerLink> waiting) {
+			this.id = id;
+			this.nickname = nickname;
+			this.listener = listener;
+			this.waiting = waiting;
+			this.deadline = System.nanoTime() + claimTimeout;
+		}
+
+		/**
+		 * Antwort eines Knotens; eine Ablehnung entscheidet sofort
+		 */
+		void answer(PeerLink link, boolean granted) {
+			synchronized(this) {
+				if(done || !waiting.remove(link)) {
+					return;
+				}
+				denied |= !granted;
+				if(!denied && !waiting.isEmpty()) {
+					return;
+				}
+				done = true;
+			}
+			finish();
+		}
+
+		/**
+		 * Zeitlimit erreicht: wer nicht geantwortet hat, gilt als einverstanden
+		 */
+		void expire() {
+			synchronized(this) {
+				if(done) {
+					return;
+				}
+				done = true;
+				server.writeServerLog(nickname, " federation: keine Antwort von " + waiting);
+			}
+			finish();
+		}
+
+		private void finish() {
+			claims.remove(id);
+			if(denied) {
+				release(nickname); // die Knoten, die schon zugestimmt haben, geben ihn wieder frei
+			}
+			listener.claimed(!denied);
+		}
+	}
+
+	/**
+	 * Duplikaterkennung fuer die Broadcasts eines Knotens: hoechste gesehene Sequenznummer und eine Bitmaske der
+	 * WINDOW vorherigen (wie das Anti-Replay-Fenster von IPsec). Broadcasts verschiedener Raeume koennen sich beim
+	 * Absender ueberholen, deshalb genuegt die hoechste Nummer allein nicht.
+	 */
+	static final class Window {
+		private static final int WINDOW = 4096;
+		private static final long MAX_AHEAD = 64L * WINDOW; // groesster Sprung nach vorn ueber eine Verbindung
+
+		final long epoch;
+		private final long[] seen = new long[WINDOW / 64];
+		private long highest;
+		private boolean rebase = true; // naechste Nummer darf beliebig weit vorn liegen
+
+		Window(long epoch) {
+			this.epoch = epoch;
+		}
+
+		/**
+		 * Nach einer Verbindung ohne parallele Verbindung zum selben Knoten: der Knoten hat inzwischen womoeglich viele
+		 * Nummern an andere Knoten vergeben
+		 */
+		synchronized void rebase() {
+			rebase = true;
+		}
+
+		/**
+		 * @return false fuer Nummern, die der Absender nicht vergeben haben kann (nicht positiv oder weit vor der
+		 *         hoechsten gesehenen); sie duerfen das Fenster nicht verschieben
+		 */
+		synchronized boolean isPlausible(long seq) {
+			return seq > 0 && (rebase || seq - highest <= MAX_AHEAD);
+		}
+
+		/**
+		 * @return true, wenn seq zum ersten Mal gesehen wird; zu alte Nummern gelten als Duplikat
+		 */
+		synchronized boolean accept(long seq) {
+			rebase = false;
+			if(seq > highest) {
+				if(seq - highest >= WINDOW) {
+					Arrays.fill(seen, 0);
+				} else {
+					for(long s = highest + 1; s < seq; s++) {
+						clear(s);
+					}
+				}
+				highest = seq;
+				set(seq);
+				return true;
+			}
+			if(highest - seq >= WINDOW || isSet(seq)) {
+				return false;
+			}
+			set(seq);
+			return true;
+		}
+
+		private boolean isSet(long seq) {
+			int bit = (int) (seq % WINDOW);
+			return (seen[bit >>> 6] & (1L << bit)) != 0;
+		}
+
+		private void set(long seq) {
+			int bit = (int) (seq % WINDOW);
+			seen[bit >>> 6] |= 1L << bit;
+		}
+
+		private void clear(long seq) {
+			int bit = (int) (seq % WINDOW);
+			seen[bit >>> 6] &= ~(1L << bit);
+		}
+	}
+}
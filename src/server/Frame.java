@@ -0,0 +1,197 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Eine fertig kodierte Protokollzeile (UTF-8, mit Zeilenumbruch). Ein Broadcast kodiert die Zeile genau
+ *          einmal; alle Empfaenger teilen sich dieselben, nie veraenderten Bytes, die Writer kopieren sie nur in
+ *          ihren Schreibpuffer. Die Kodierung fuer das Binaerprotokoll wird ebenfalls hoechstens einmal erzeugt:
+ *          entweder explizit mitgegeben oder beim ersten binaeren Empfaenger aus der Zeile abgeleitet. Genauso
+ *          wird ein grosses Binaer-Frame hoechstens einmal komprimiert, beim ersten Empfaenger mit "deflate".
+ */
+final class Frame {
+
+	private final byte[] array; // Bytes auf dem Heap oder null
+	private final int offset;
+	private final ByteBuffer view; // Bytes ausserhalb des Heaps (z.B. Journal-Segment) oder null
+	private final int length; // -1 = nur Binaerprotokoll
+	private final boolean deriveBinary; // Binaerform bei Bedarf aus der Zeile ableiten
+	private volatile Frame binary; // Kodierung fuer das Binaerprotokoll
+	private volatile Frame deflated; // komprimierte Binaerform, this = Kompression lohnt nicht
+
+	private Frame(byte[] array, int offset, int length, ByteBuffer view, Frame binary, boolean deriveBinary) {
+		this.array = array;
+		this.offset = offset;
+		this.length = length;
+		this.view = view;
+		this.binary = binary;
+		this.deriveBinary = deriveBinary;
+	}
+
+	/**
+	 * Kodiert eine Protokollzeile
+	 * @param line , ohne Zeilenumbruch
+	 * @return das Frame
+	 */
+	static Frame of(String line) {
+		byte[] bytes = encode(line);
+		return new Frame(bytes, 0, bytes.length, null, null, true);
+	}
+
+	/**
+	 * Kodiert eine Protokollzeile mit eigener Binaerform
+	 * @param line , ohne Zeilenumbruch; null = nichts fuer Clients im Textprotokoll
+	 * @param binary , fertiges Binaer-Frame; null = nichts fuer Clients im Binaerprotokoll
+	 * @return das Frame
+	 */
+	static Frame of(String line, ByteBuffer binary) {
+		return of(line == null ? null : encode(line), binary);
+	}
+
+	/**
+	 * Uebernimmt eine bereits kodierte Protokollzeile ohne Kopie
+	 * @param line , UTF-8 inkl. Zeilenumbruch, wird danach nicht mehr veraendert; null = nichts fuer das
+	 *            Textprotokoll
+	 * @param binary , fertiges Binaer-Frame; null = nichts fuer Clients im Binaerprotokoll
+	 * @return das Frame
+	 */
+	static Frame of(byte[] line, ByteBuffer binary) {
+		return new Frame(line, 0, line == null ? -1 : line.length, null, binary == null ? null : wrapBinary(binary),
+				false);
+	}
+
+	/**
+	 * Uebernimmt eine bereits kodierte Protokollzeile ohne Kopie; die Binaerform wird erst beim ersten binaeren
+	 * Empfaenger aus der Zeile abgeleitet
+	 * @param line , UTF-8 inkl. Zeilenumbruch, wird danach nicht mehr veraendert
+	 * @return das Frame
+	 */
+	static Frame line(byte[] line) {
+		return new Frame(line, 0, line.length, null, null, true);
+	}
+
+	/**
+	 * @param binary , fertiges Binaer-Frame
+	 * @return ein Frame nur fuer Clients im Binaerprotokoll
+	 */
+	static Frame binaryOnly(ByteBuffer binary) {
+		return of((byte[]) null, binary);
+	}
+
+	/**
+	 * Verpackt bereits kodierte Bytes ohne Kopie, z.B. eine Sicht auf ein Journal-Segment
+	 * @param bytes , Protokollzeile inkl. Zeilenumbruch zwischen position und limit
+	 * @return das Frame
+	 */
+	static Frame wrap(ByteBuffer bytes) {
+		return new Frame(null, 0, bytes.remaining(), bytes.asReadOnlyBuffer(), null, true);
+	}
+
+	private static Frame wrapBinary(ByteBuffer binary) {
+		if(binary.hasArray()) {
+			return new Frame(binary.array(), binary.arrayOffset() + binary.position(), binary.remaining(), null, null,
+					false);
+		}
+		return new Frame(null, 0, binary.remaining(), binary.asReadOnlyBuffer(), null, false);
+	}
+
+	/**
+	 * Liefert die Kodierung fuer das Protokoll eines Empfaengers
+	 * @param binaryProtocol , true fuer das Binaerprotokoll
+	 * @return das zu schreibende Frame oder null, wenn es fuer dieses Protokoll nichts zu schreiben gibt
+	 */
+	Frame encodedFor(boolean binaryProtocol) {
+		if(!binaryProtocol) {
+			return length < 0 ? null : this;
+		}
+		Frame b = binary;
+		if(b == null && deriveBinary) {
+			b = wrapBinary(BinaryProtocol.fromTextLine(buffer())); // mehrfach harmlos
+			binary = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Liefert die Kodierung fuer das Protokoll eines Empfaengers, fuer Empfaenger mit "deflate" grosse Frames
+	 * komprimiert
+	 * @param binaryProtocol , true fuer das Binaerprotokoll
+	 * @param compressor , null = Empfaenger hat keine Kompression ausgehandelt
+	 * @return das zu schreibende Frame oder null, wenn es fuer dieses Protokoll nichts zu schreiben gibt
+	 */
+	Frame encodedFor(boolean binaryProtocol, Compressor compressor) {
+		Frame b = encodedFor(binaryProtocol);
+		if(compressor == null || b == null || !binaryProtocol || !compressor.worthTrying(b.length)) {
+			return b;
+		}
+		Frame d = b.deflated;
+		if(d == null) {
+			ByteBuffer bytes = compressor.deflate(b.buffer()); // mehrfach harmlos
+			d = bytes == null ? b : wrapBinary(bytes);
+			b.deflated = d;
+		}
+		return d;
+	}
+
+	/**
+	 * @return true, wenn es eine Kodierung fuer das Textprotokoll gibt
+	 */
+	boolean isText() {
+		return length >= 0;
+	}
+
+	/**
+	 * Kopiert einen Teil der Bytes in einen Schreibpuffer, soweit dort Platz ist. Das Frame selbst bleibt
+	 * unveraendert und kann gleichzeitig von anderen Writern kopiert werden.
+	 * @param dst , Schreibpuffer
+	 * @param from , Position innerhalb des Frames
+	 * @return Anzahl kopierter Bytes
+	 */
+	int copyTo(ByteBuffer dst, int from) {
+		int n = Math.min(dst.remaining(), length - from);
+		if(array != null) {
+			dst.put(array, offset + from, n);
+		} else {
+			ByteBuffer src = view.duplicate();
+			src.position(src.position() + from);
+			src.limit(src.position() + n);
+			dst.put(src);
+		}
+		return n;
+	}
+
+	/**
+	 * @return eine schreibgeschuetzte Sicht auf die Bytes
+	 */
+	ByteBuffer buffer() {
+		if(array != null) {
+			return ByteBuffer.wrap(array, offset, length).asReadOnlyBuffer();
+		}
+		return view.duplicate();
+	}
+
+	/**
+	 * @return Laenge in Bytes (inkl. Zeilenumbruch)
+	 */
+	int length() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		if(length < 0) {
+			return "[binary frame]";
+		}
+		ByteBuffer bytes = buffer();
+		bytes.limit(bytes.limit() - 1);
+		return StandardCharsets.UTF_8.decode(bytes).toString();
+	}
+
+	private static byte[] encode(String line) {
+		return (line + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+}
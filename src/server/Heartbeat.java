@@ -0,0 +1,75 @@
+package server;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Heartbeat einer Verbindung: hat der Server heartbeatInterval lang nichts vom Client gelesen, schickt
+ *          er /PING (bzw. ein PING-Frame). Kommt danach heartbeatTimeout lang nichts, auch kein /PONG, gilt die
+ *          Verbindung als tot (z.B. halb offen nach einem Absturz des Clients) und wird abgebaut; Verbindungsplatz und
+ *          Raum werden dabei wie bei einem normalen Abbau freigegeben. Der Leser vermerkt nur den Zeitpunkt des
+ *          letzten Lesens (ein volatiler Schreibzugriff auf die grobe Uhr des TimerWheels); alles andere laeuft im
+ *          Thread des Wheels, ein eigener Zeitgeber-Thread oder SO_TIMEOUT pro Verbindung ist nicht noetig.
+ */
+class Heartbeat extends TimerWheel.Task {
+
+	private final ChatServer server;
+	private final TimerWheel wheel;
+	private final Connection connection;
+	private final long interval; // Nanosekunden ohne Eingang bis zum PING
+	private final long timeout; // Nanosekunden nach dem PING bis zum Abbau
+	private volatile long lastRead; // TimerWheel.now() beim letzten Lesen
+	private long pingSent; // TimerWheel.now() beim PING, 0 = keiner offen; nur Wheel-Thread
+
+	/**
+	 * Konstruktor
+	 * @param server , schickt den PING und zaehlt abgebaute Verbindungen
+	 * @param wheel , auf dem der Heartbeat laeuft
+	 * @param connection , die ueberwachte Verbindung
+	 * @param interval , Nanosekunden ohne Eingang bis zum PING
+	 * @param timeout , Nanosekunden nach dem PING bis zum Abbau
+	 */
+	Heartbeat(ChatServer server, TimerWheel wheel, Connection connection, long interval, long timeout) {
+		this.server = server;
+		this.wheel = wheel;
+		this.connection = connection;
+		this.interval = interval;
+		this.timeout = timeout;
+		this.lastRead = wheel.now();
+	}
+
+	/**
+	 * Beginnt die Ueberwachung
+	 */
+	void start() {
+		wheel.schedule(this, interval);
+	}
+
+	/**
+	 * Vermerkt einen Eingang vom Client; vom lesenden Thread bei jedem Lesen aufgerufen
+	 */
+	void touch() {
+		lastRead = wheel.now();
+	}
+
+	@Override
+	void expired() {
+		long now = wheel.now();
+		if(pingSent != 0 && lastRead - pingSent < 0) {
+			// seit dem PING nichts gelesen
+			if(now - pingSent >= timeout) {
+				server.reapIdle(connection);
+				return;
+			}
+			wheel.schedule(this, pingSent + timeout - now);
+			return;
+		}
+		pingSent = 0;
+		long idle = now - lastRead;
+		if(idle >= interval) {
+			pingSent = now;
+			server.ping(connection);
+			wheel.schedule(this, timeout);
+		} else {
+			wheel.schedule(this, interval - idle);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Liest Zeilen bzw. Frames des Binaerprotokolls von einem blockierenden Kanal in einen festen,
+ *          wiederverwendeten Puffer. Eine gelesene Zeile bleibt bis zum naechsten Aufruf ab start() in buffer()
+ *          liegen; es wird weder ein String noch ein neuer Puffer erzeugt. Da beide Protokolle denselben Puffer
+ *          benutzen, gehen beim Wechsel nach /OPTS keine bereits gelesenen Bytes verloren.
+ */
+class InputReader {
+
+	private final ReadableByteChannel channel;
+	private final byte[] buf;
+	private final ByteBuffer bb; // Sicht des Kanals auf buf
+	private int start; // erstes noch nicht geliefertes Byte
+	private int end; // Ende der gelesenen Bytes
+	private int lineStart; // Anfang der zuletzt gelieferten Zeile bzw. des Frames
+	private final LongAdder bytesRead; // zaehlt alle vom Kanal gelesenen Bytes
+	private final Heartbeat heartbeat; // erfaehrt von jedem Lesen, null = keiner
+
+	/**
+	 * Konstruktor
+	 * @param channel , blockierender Kanal
+	 * @param capacity , maximale Laenge einer Zeile bzw. eines Frames
+	 * @param bytesRead , Zaehler fuer die gelesenen Bytes
+	 */
+	InputReader(ReadableByteChannel channel, int capacity, LongAdder bytesRead) {
+		this(channel, capacity, bytesRead, null);
+	}
+
+	/**
+	 * Konstruktor
+	 * @param channel , blockierender Kanal
+	 * @param capacity , maximale Laenge einer Zeile bzw. eines Frames
+	 * @param bytesRead , Zaehler fuer die gelesenen Bytes
+	 * @param heartbeat , wird bei jedem Lesen vom Kanal benachrichtigt; null = keiner
+	 */
+	InputReader(ReadableByteChannel channel, int capacity, LongAdder bytesRead, Heartbeat heartbeat) {
+		this.channel = channel;
+		this.bytesRead = bytesRead;
+		this.heartbeat = heartbeat;
+		this.buf = new byte[capacity];
+		this.bb = ByteBuffer.wrap(buf);
+	}
+
+	/**
+	 * Liest die naechste Zeile
+	 * @return Laenge der Zeile ohne Zeilenende, -1 bei Verbindungsende
+	 * @throws IOException wenn die Zeile laenger als der Puffer ist
+	 */
+	int readLine() throws IOException {
+		int scan = start;
+		while(true) {
+			for(; scan < end; scan++) {
+				if(buf[scan] == '\n') {
+					lineStart = start;
+					start = scan + 1;
+					int length = scan - lineStart;
+					if(length > 0 && buf[scan - 1] == '\r') {
+						length--;
+					}
+					return length;
+				}
+			}
+			int shift = start;
+			if(!fill()) {
+				return -1;
+			}
+			scan -= shift;
+		}
+	}
+
+	/**
+	 * Liest das naechste Frame des Binaerprotokolls
+	 * @return Laenge des Frames inkl. Kopf
+	 * @throws EOFException bei Verbindungsende
+	 * @throws IOException bei ungueltiger Laenge
+	 */
+	int readFrame() throws IOException {
+		while(end - start < 4) {
+			if(!fill()) {
+				throw new EOFException();
+			}
+		}
+		int length = ((buf[start] & 0xFF) << 24) | ((buf[start + 1] & 0xFF) << 16) | ((buf[start + 2] & 0xFF) << 8)
+				| (buf[start + 3] & 0xFF);
+		if(length < 1 || length > BinaryProtocol.MAX_LENGTH || 4 + length > buf.length) {
+			throw new IOException("ungueltige Frame-Laenge " + length);
+		}
+		while(end - start < 4 + length) {
+			if(!fill()) {
+				throw new EOFException();
+			}
+		}
+		lineStart = start;
+		start += 4 + length;
+		return 4 + length;
+	}
+
+	/**
+	 * @return der Puffer mit der zuletzt gelieferten Zeile bzw. dem Frame (nicht veraendern)
+	 */
+	byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return Anfang der zuletzt gelieferten Zeile bzw. des Frames in buffer()
+	 */
+	int start() {
+		return lineStart;
+	}
+
+	/**
+	 * Schiebt die ungelesenen Bytes an den Anfang und liest vom Kanal nach
+	 * @return false bei Verbindungsende
+	 */
+	private boolean fill() throws IOException {
+		if(start > 0) {
+			System.arraycopy(buf, start, buf, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		if(end == buf.length) {
+			throw new IOException("Zeile laenger als " + buf.length + " Bytes");
+		}
+		bb.limit(buf.length).position(end);
+		int n = channel.read(bb);
+		if(n < 0) {
+			return false;
+		}
+		end += n;
+		bytesRead.add(n);
+		if(heartbeat != null) {
+			heartbeat.touch();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,144 @@
+package server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Histogramm fuer Latenzen nach dem Vorbild von HdrHistogram: jede Zweierpotenz ist in 128 gleich
+ *          breite Unterbereiche geteilt, der relative Fehler eines Perzentils liegt also unter 1% ueber den ganzen
+ *          Wertebereich von long. Aufzeichnen kostet ein Inkrement ohne Sperre und darf von beliebig vielen Threads
+ *          gleichzeitig erfolgen; Auswertungen waehrenddessen sind nur naeherungsweise konsistent.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 7;
+	private static final int SUB = 1 << SUB_BITS; // Unterbereiche je Zweierpotenz
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Zeichnet einen Wert auf; negative Werte zaehlen als 0
+	 * @param value , z.B. eine Dauer in Nanosekunden
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while(value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * @return Anzahl aufgezeichneter Werte
+	 */
+	public long count() {
+		return total.get();
+	}
+
+	/**
+	 * @return groesster aufgezeichneter Wert
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mittelwert, 0 ohne Werte
+	 */
+	public double mean() {
+		long n = total.get();
+		return n == 0 ? 0 : sum.get() / (double) n;
+	}
+
+	/**
+	 * @param percentile , zwischen 0 und 100
+	 * @return der kleinste Wert, unter dem (bzw. gleich dem) mindestens percentile Prozent der Werte liegen; 0 ohne
+	 *         Werte
+	 */
+	public long percentile(double percentile) {
+		long n = total.get();
+		if(n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(highestEquivalent(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Addiert alle Werte eines anderen Histogramms
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if(c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		total.addAndGet(other.total.get());
+		sum.addAndGet(other.sum.get());
+		long m = max.get();
+		long o = other.max.get();
+		while(o > m && !max.compareAndSet(m, o)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Setzt das Histogramm zurueck. Gleichzeitig aufgezeichnete Werte koennen dabei teilweise verloren gehen.
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * @param unit , Teiler fuer die Ausgabe, z.B. 1e6 fuer Nanosekunden -> Millisekunden
+	 * @return "n=.. p50=.. p99=.. p99.9=.. max=.."
+	 */
+	public String summary(double unit) {
+		return String.format(Locale.ROOT, "n=%d p50=%.3f p99=%.3f p99.9=%.3f max=%.3f", count(), percentile(50) / unit,
+				percentile(99) / unit, percentile(99.9) / unit, max() / unit);
+	}
+
+	private static int index(long value) {
+		if(value < 2 * SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	/**
+	 * @return der groesste Wert, der in denselben Unterbereich faellt
+	 */
+	private static long highestEquivalent(int index) {
+		if(index < 2 * SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		long lowest = (long) (index % SUB + SUB) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,262 @@
+package server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Append-only Journal aller verteilten /MSGE-Frames. Die Frames werden mit fortlaufender Sequenznummer in
+ *          memory-mapped Segmentdateien geschrieben (<basis-sequenz>.seg); ist ein Segment voll, wird ein neues
+ *          begonnen und die aeltesten Segmente ueber der Aufbewahrungsgrenze geloescht. Beim Abspielen werden die
+ *          Frames direkt als Sicht auf die gemappten Segmente geliefert, ohne Kopie in den Heap.
+ *
+ *          Satzformat: int Laenge, long Sequenznummer, Laenge Bytes Frame (UTF-8 inkl. Zeilenumbruch). Eine Laenge
+ *          von 0 markiert das Ende der Daten im Segment.
+ */
+class MessageJournal {
+
+	private static final int HEADER = 12; // int Laenge + long Sequenznummer
+	private static final int INDEX_INTERVAL = 64; // jeder 64. Satz wird im Index vermerkt
+	private static final String SUFFIX = ".seg";
+
+	private final File dir;
+	private final int segmentBytes;
+	private final int maxSegments;
+	private final List<Segment> segments = new ArrayList<Segment>(); // aufsteigend nach Basis-Sequenz
+	private long nextSeq; // Sequenznummer des naechsten Frames
+
+	/**
+	 * Ein Segment; nur das letzte wird beschrieben
+	 */
+	private static class Segment {
+		private final File file;
+		private final long baseSeq; // Sequenznummer des ersten Satzes
+		private MappedByteBuffer map;
+		private int end; // Position hinter dem letzten Satz
+		private long count; // Anzahl Saetze
+		private int[] index = new int[16]; // Position jedes INDEX_INTERVAL-ten Satzes
+		private int indexSize;
+
+		Segment(File file, long baseSeq) {
+			this.file = file;
+			this.baseSeq = baseSeq;
+		}
+
+		void added(int position) {
+			if(count % INDEX_INTERVAL == 0) {
+				if(indexSize == index.length) {
+					index = Arrays.copyOf(index, indexSize * 2);
+				}
+				index[indexSize++] = position;
+			}
+			count++;
+		}
+	}
+
+	/**
+	 * Oeffnet das Journal und stellt den Stand aus vorhandenen Segmenten wieder her
+	 * @param dir , Verzeichnis der Segmente
+	 * @param segmentBytes , Groesse eines Segments
+	 * @param maxSegments , Anzahl aufbewahrter Segmente
+	 */
+	MessageJournal(File dir, int segmentBytes, int maxSegments) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = Math.max(1, maxSegments);
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Journal-Verzeichnis kann nicht angelegt werden: " + dir);
+		}
+		recover();
+	}
+
+	/**
+	 * Haengt ein Frame an
+	 * @param frame , das verteilte Frame
+	 * @return die vergebene Sequenznummer
+	 */
+	synchronized long append(Frame frame) throws IOException {
+		int length = frame.length();
+		if(HEADER + length + 4 > segmentBytes) {
+			throw new IOException("Frame groesser als ein Journal-Segment: " + length); // vor roll(): nichts loeschen
+		}
+		Segment segment = segments.get(segments.size() - 1);
+		if(segment.end + HEADER + length + 4 > segment.map.capacity()) {
+			segment = roll();
+		}
+		long seq = nextSeq++;
+		int position = segment.end;
+		MappedByteBuffer map = segment.map;
+		map.putLong(position + 4, seq);
+		map.position(position + HEADER);
+		frame.copyTo(map, 0);
+		map.putInt(position, length); // Laenge zuletzt: ein unvollstaendiger Satz bleibt unsichtbar
+		segment.end = position + HEADER + length;
+		segment.added(position);
+		return seq;
+	}
+
+	/**
+	 * Liest Frames ab einer Sequenznummer
+	 * @param fromSeq , erste gewuenschte Sequenznummer (wird auf die aelteste vorhandene angehoben)
+	 * @param max , maximale Anzahl Frames
+	 * @return die Frames als Sichten auf die gemappten Segmente
+	 */
+	synchronized List<Frame> read(long fromSeq, int max) {
+		List<Frame> frames = new ArrayList<Frame>();
+		fromSeq = Math.max(fromSeq, firstSequence());
+		if(fromSeq >= nextSeq || max <= 0) {
+			return frames;
+		}
+
+		int s = segments.size() - 1;
+		while(s > 0 && segments.get(s).baseSeq > fromSeq) {
+			s--;
+		}
+		Segment segment = segments.get(s);
+		long offset = fromSeq - segment.baseSeq;
+		int position = segment.index[(int) (offset / INDEX_INTERVAL)];
+		for(long skip = offset % INDEX_INTERVAL; skip > 0; skip--) {
+			position += HEADER + segment.map.getInt(position);
+		}
+
+		while(frames.size() < max) {
+			if(position >= segment.end) {
+				if(++s == segments.size()) {
+					break;
+				}
+				segment = segments.get(s);
+				position = 0;
+				continue;
+			}
+			int length = segment.map.getInt(position);
+			ByteBuffer view = segment.map.duplicate();
+			view.limit(position + HEADER + length);
+			view.position(position + HEADER);
+			frames.add(Frame.wrap(view.slice()));
+			position += HEADER + length;
+		}
+		return frames;
+	}
+
+	/**
+	 * @return Sequenznummer des aeltesten vorhandenen Frames
+	 */
+	synchronized long firstSequence() {
+		return segments.get(0).baseSeq;
+	}
+
+	/**
+	 * @return Sequenznummer, die das naechste Frame erhaelt
+	 */
+	synchronized long nextSequence() {
+		return nextSeq;
+	}
+
+	/**
+	 * Schreibt die Segmente auf die Platte
+	 */
+	synchronized void close() {
+		for(Segment segment : segments) {
+			if(!segment.map.isReadOnly()) {
+				segment.map.force();
+			}
+		}
+	}
+
+	/**
+	 * Liest vorhandene Segmente ein, baut den Index auf und setzt die naechste Sequenznummer
+	 */
+	private void recover() throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		if(files == null || files.length == 0) {
+			segments.add(open(new File(dir, name(0)), 0, true));
+			nextSeq = 0;
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.getName().compareTo(b.getName()); // Namen sind nullgefuellt
+			}
+		});
+		for(int i = 0; i < files.length; i++) {
+			String fileName = files[i].getName();
+			long baseSeq = Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+			Segment segment = open(files[i], baseSeq, i == files.length - 1);
+			scan(segment);
+			segments.add(segment);
+		}
+		Segment last = segments.get(segments.size() - 1);
+		nextSeq = last.baseSeq + last.count;
+	}
+
+	/**
+	 * Durchlaeuft die Saetze eines Segments bis zur Endemarke
+	 */
+	private void scan(Segment segment) {
+		MappedByteBuffer map = segment.map;
+		int position = 0;
+		while(position + HEADER <= map.capacity()) {
+			int length = map.getInt(position);
+			if(length <= 0 || position + HEADER + length > map.capacity()
+					|| map.getLong(position + 4) != segment.baseSeq + segment.count) {
+				break; // Ende der Daten bzw. unvollstaendiger Satz
+			}
+			segment.added(position);
+			position += HEADER + length;
+		}
+		segment.end = position;
+	}
+
+	/**
+	 * Beginnt ein neues Segment und loescht die aeltesten ueber der Aufbewahrungsgrenze
+	 */
+	private Segment roll() throws IOException {
+		Segment last = segments.get(segments.size() - 1);
+		last.map.force();
+		Segment segment = open(new File(dir, name(nextSeq)), nextSeq, true);
+		segments.add(segment);
+		while(segments.size() > maxSegments) {
+			Segment oldest = segments.remove(0);
+			oldest.map = null; // die Abbildung verschwindet mit der Garbage Collection
+			if(!oldest.file.delete()) {
+				System.err.println("Journal-Segment kann nicht geloescht werden: " + oldest.file);
+			}
+		}
+		return segment;
+	}
+
+	private Segment open(File file, long baseSeq, boolean writable) throws IOException {
+		Segment segment = new Segment(file, baseSeq);
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(writable) {
+				segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+			} else {
+				segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		} finally {
+			raf.close(); // die Abbildung bleibt auch nach dem Schliessen gueltig
+		}
+		return segment;
+	}
+
+	private static String name(long baseSeq) {
+		return String.format("%020d%s", baseSeq, SUFFIX);
+	}
+}
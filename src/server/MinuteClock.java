@@ -0,0 +1,58 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Uhr mit Minutenaufloesung fuer die Zeitstempel "HH:mm" der Nachrichten. Die Darstellung wird nur
+ *          beim Minutenwechsel neu erzeugt und sonst von allen Threads geteilt; ein Aufruf kostet also weder ein
+ *          SimpleDateFormat noch einen Calendar.
+ */
+final class MinuteClock {
+
+	private static volatile Minute current = new Minute(Long.MIN_VALUE, "00:00");
+
+	/**
+	 * Eine Minute mit fertig kodierter Darstellung
+	 */
+	static final class Minute {
+		private final long minute; // Minuten seit 1970 (UTC)
+		final String text; // "HH:mm" in lokaler Zeit
+		final byte[] bytes; // dieselbe Darstellung als ASCII, nicht veraendern
+
+		private Minute(long minute, String text) {
+			this.minute = minute;
+			this.text = text;
+			this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private MinuteClock() {
+	}
+
+	/**
+	 * @return die aktuelle Minute
+	 */
+	static Minute now() {
+		long millis = System.currentTimeMillis();
+		long minute = millis / 60000;
+		Minute m = current;
+		if(m.minute != minute) {
+			m = new Minute(minute, format(millis)); // mehrere Threads duerfen das gleichzeitig tun
+			current = m;
+		}
+		return m;
+	}
+
+	private static String format(long millis) {
+		long local = millis + TimeZone.getDefault().getOffset(millis);
+		int minuteOfDay = (int) ((local / 60000) % (24 * 60));
+		if(minuteOfDay < 0) {
+			minuteOfDay += 24 * 60;
+		}
+		int hours = minuteOfDay / 60;
+		int minutes = minuteOfDay % 60;
+		return (hours < 10 ? "0" : "") + hours + ":" + (minutes < 10 ? "0" : "") + minutes;
+	}
+}
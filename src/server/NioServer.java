@@ -0,0 +1,877 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Nicht-blockierende Server-Engine. Ein Acceptor nimmt Verbindungen an und verteilt sie reihum auf
+ *          wenige Event-Loops; jede Event-Loop bedient mit einem Selector beliebig viele Verbindungen. Es wird
+ *          dasselbe Protokoll wie vom Handler-Thread gesprochen (NAME, USER, ACPT, MSGE, USRS und QUIT, als Zeilen
+ *          oder im Binaerprotokoll). Im Normalbetrieb wird pro Nachricht nichts allokiert: Zeilen und Frames werden
+ *          direkt im Lesepuffer ausgewertet, zu schreibende Verbindungen werden intrusiv in eine lock-freie Liste der
+ *          Event-Loop eingehaengt und die Frames in einen festen Schreibpuffer der Event-Loop kopiert.
+ */
+class NioServer {
+
+	private static final long DRAIN_CHECK = TimeUnit.MILLISECONDS.toNanos(1); // Takt von NioConnection.checkDrained
+
+	private final ChatServer server;
+	private final ServerConfig config;
+	private final EventLoop[] loops;
+	private ServerSocketChannel listener;
+	private final long coalesceNanos; // Coalescing-Fenster der Writer
+	private final int coalesceBytes; // Byte-Budget eines Writes
+
+	/**
+	 * Konstruktor
+	 * @param server , dessen Chat-Raum bedient wird
+	 * @param config , Konfiguration (Port, Anzahl Event-Loops, ...)
+	 */
+	NioServer(ChatServer server, ServerConfig config) {
+		this.server = server;
+		this.config = config;
+		this.loops = new EventLoop[Math.max(1, config.getEventLoops())];
+		this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(config.getCoalesceWindowMicros());
+		this.coalesceBytes = config.getCoalesceBytes();
+	}
+
+	/**
+	 * Bindet den Port, startet die Event-Loops und einen Acceptor-Thread
+	 * @return der gebundene Port
+	 */
+	int start() throws IOException {
+		for(int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "nio-acceptor");
+		acceptor.start();
+		return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Schliesst den Port und beendet die Event-Loops
+	 */
+	void stop() {
+		try {
+			listener.close();
+		} catch(IOException e) {
+		}
+		for(EventLoop loop : loops) {
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Nimmt Verbindungen an und verteilt die zugelassenen reihum auf die Event-Loops
+	 */
+	private void acceptLoop() {
+		try {
+			int next = 0;
+			while(true) {
+				SocketChannel channel = listener.accept(); // "Hand-Shake", blockierend
+				if(!server.admit(channel)) {
+					continue;
+				}
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		} catch(IOException e) {
+			if(listener.isOpen()) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				listener.close(); // Verbindungsabbau
+			} catch(IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return true, wenn der aufrufende Thread eine Event-Loop ist; sie darf nie auf andere Verbindungen warten
+	 */
+	static boolean onEventLoop() {
+		return Thread.currentThread() instanceof EventLoop;
+	}
+
+	/**
+	 * Ein Thread mit eigenem Selector, der die Ein- und Ausgaben seiner Verbindungen abarbeitet
+	 */
+	private class EventLoop extends Thread {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // Auftraege anderer Threads
+		private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(); // verzoegerte Auftraege, nur Loop-Thread
+		private final AtomicReference<NioConnection> pending = new AtomicReference<NioConnection>(); // zu schreibende
+																									 // Verbindungen
+		private final ByteBuffer writeBuffer; // Schreibpuffer, von allen Verbindungen der Loop geteilt
+		private volatile boolean running = true;
+
+		EventLoop(int index) throws IOException {
+			super("nio-loop-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+			writeBuffer = ByteBuffer.allocateDirect(coalesceBytes);
+		}
+
+		/**
+		 * Uebergibt eine neue Verbindung an diese Event-Loop
+		 */
+		void register(final SocketChannel channel) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					NioConnection connection = new NioConnection(EventLoop.this, channel);
+					try {
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+						server.deliver(connection, "/NAME");
+					} catch(ClosedChannelException e) {
+						System.out.println(e);
+						connection.close(); // gibt auch den Verbindungsplatz frei
+					}
+				}
+			});
+		}
+
+		/**
+		 * Fuehrt einen Auftrag im Thread dieser Event-Loop aus. Aus der Event-Loop selbst heraus laeuft er erst nach
+		 * den gerade bearbeiteten Ereignissen.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if(Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Fuehrt die Auftraege anderer Threads aus; eine Ausnahme beendet nur den einen Auftrag
+		 */
+		private void runTasks() {
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Eine Verbindung hat eine Ausnahme geworfen (z.B. ein fehlerhaftes Frame im Handler): nur sie wird getrennt,
+		 * die Event-Loop laeuft mit den uebrigen Verbindungen weiter
+		 */
+		private void failed(NioConnection connection, RuntimeException e) {
+			e.printStackTrace();
+			try {
+				server.writeServerLog(String.valueOf(connection.name), " internal error, connection closed: " + e);
+				connection.close();
+			} catch(RuntimeException again) {
+				again.printStackTrace();
+			}
+		}
+
+		/**
+		 * Meldet eine Verbindung zum Schreiben an. Die Verbindung wird ohne weiteren Knoten in einen lock-freien
+		 * Stapel eingehaengt (jede hoechstens einmal); geweckt wird der Selector nur, wenn der Stapel leer war.
+		 */
+		void requestFlush(NioConnection connection) {
+			if(!connection.queued.compareAndSet(false, true)) {
+				return;
+			}
+			NioConnection head;
+			do {
+				head = pending.get();
+				connection.nextPending = head;
+			} while(!pending.compareAndSet(head, connection));
+			if(head == null && Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Arbeitet alle angemeldeten Verbindungen ab: ohne Coalescing-Fenster (bzw. bei erreichtem Byte-Budget) wird
+		 * sofort geschrieben, sonst der Timer der Verbindung gestellt. Nur Loop-Thread.
+		 */
+		private void flushPending() {
+			NioConnection connection = pending.getAndSet(null);
+			while(connection != null) {
+				NioConnection next = connection.nextPending;
+				connection.nextPending = null;
+				connection.queued.set(false);
+				if(coalesceNanos > 0 && connection.outbound.bytes() < coalesceBytes) {
+					if(!connection.timer.armed) {
+						connection.timer.armed = true;
+						connection.timer.deadline = System.nanoTime() + coalesceNanos;
+						timers.add(connection.timer); // weitere Frames im Fenster sammeln
+					}
+				} else {
+					try {
+						connection.flush();
+					} catch(RuntimeException e) {
+						failed(connection, e); // die uebrigen Verbindungen im Stapel bleiben angemeldet
+					}
+				}
+				connection = next;
+			}
+		}
+
+		public void run() {
+			while(running) {
+				try {
+					Timer next = timers.peek();
+					if(!tasks.isEmpty() || pending.get() != null) {
+						selector.selectNow();
+					} else if(next == null) {
+						selector.select();
+					} else {
+						long wait = next.deadline - System.nanoTime();
+						if(wait <= 0) {
+							selector.selectNow();
+						} else {
+							selector.select((wait + 999999) / 1000000);
+						}
+					}
+
+					runTasks();
+					flushPending();
+					long now = System.nanoTime();
+					while(!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+						Timer timer = timers.poll();
+						timer.armed = false;
+						try {
+							timer.task.run();
+						} catch(RuntimeException e) {
+							failed(timer.owner, e);
+						}
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+							if(key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch(RuntimeException e) {
+							failed(connection, e);
+						}
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			runTasks(); // z.B. von anderen Threads abgebaute Verbindungen
+			for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				((NioConnection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch(IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Ein verzoegerter Auftrag einer Event-Loop; wird wiederverwendet und nur vom Loop-Thread veraendert
+	 */
+	private static class Timer implements Comparable<Timer> {
+		private long deadline; // System.nanoTime()
+		private boolean armed; // liegt in der Timer-Warteschlange
+		private final NioConnection owner; // wird abgebaut, wenn task eine Ausnahme wirft
+		private final Runnable task;
+
+		Timer(NioConnection owner, Runnable task) {
+			this.owner = owner;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.signum(deadline - other.deadline);
+		}
+	}
+
+	/**
+	 * Verbindung eines Clients in der NIO-Engine. Eingehende Bytes werden zu Zeilen zusammengesetzt, ausgehende
+	 * Zeilen in einer Warteschlange gesammelt und von der Event-Loop geschrieben. Was der Socket nicht sofort
+	 * annimmt, bleibt in einem eigenen, erst dann angelegten Rueckstaupuffer.
+	 */
+	private class NioConnection implements Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer readBuffer;
+		private final OutboundQueue outbound = new OutboundQueue(config); // wartende Frames
+		private Frame current; // teilweise in den Schreibpuffer kopiertes Frame, nur Loop-Thread
+		private int currentOffset; // bereits kopierte Bytes von current
+		private ByteBuffer backlog; // vom Socket nicht angenommene Bytes (lesebereit), nur Loop-Thread
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private final AtomicBoolean queued = new AtomicBoolean(); // haengt in der Liste der Event-Loop
+		private NioConnection nextPending; // naechste Verbindung in dieser Liste
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private volatile String name; // Client Benutzername
+		private volatile byte[] nameBytes; // Benutzername als UTF-8
+		private volatile int userId = -1; // User-ID im Chat-Raum
+		private volatile boolean binary; // Binaerprotokoll ausgehandelt
+		private volatile Compressor compressor; // "deflate" ausgehandelt, sonst null
+		private volatile Room room; // aktueller Raum
+		private boolean claiming; // Nickname wird im Verbund abgestimmt, nur Loop-Thread
+
+		private final Timer timer = new Timer(this, new Runnable() { // Ende des Coalescing-Fensters
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+		private final RateLimiter limiter = RateLimiter.create(config); // Eingangs-Limits, null = keine
+		private boolean paused; // Limit erreicht oder Raum voll, OP_READ abbestellt, nur Loop-Thread
+		private final Heartbeat heartbeat; // erkennt tote Verbindungen, null = abgeschaltet
+		private final Timer resume = new Timer(this, new Runnable() { // Ende der Pause
+			@Override
+			public void run() {
+				if(closed.get() || !key.isValid() || held != null || backedUp != null) {
+					return;
+				}
+				paused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				process(System.nanoTime());
+			}
+		});
+
+		private List<Connection> backedUp; // bremsen diesen Client (BACKPRESSURE), nur Loop-Thread
+		private long backOffDeadline;
+		private final Timer drainCheck = new Timer(this, new Runnable() { // prueft, ob backedUp nachgekommen ist
+			@Override
+			public void run() {
+				checkDrained();
+			}
+		});
+		private Frame held; // Nachricht, fuer die im Raum kein Platz war, nur Loop-Thread
+		private Room heldRoom;
+		private long heldReceived;
+		private final Runnable roomSpace = new Runnable() { // vom Shard, sobald im Raum wieder Platz ist
+			@Override
+			public void run() {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						retryHeld();
+					}
+				});
+			}
+		};
+
+		NioConnection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+			this.readBuffer = ByteBuffer.allocate(config.getMaxLineLength());
+			this.heartbeat = server.heartbeat(this);
+		}
+
+		@Override
+		public String getNickname() {
+			return name;
+		}
+
+		@Override
+		public byte[] getNicknameBytes() {
+			return nameBytes;
+		}
+
+		@Override
+		public int getUserId() {
+			return userId;
+		}
+
+		@Override
+		public boolean isBinary() {
+			return binary;
+		}
+
+		@Override
+		public Room getRoom() {
+			return room;
+		}
+
+		@Override
+		public void setRoom(Room room) {
+			this.room = room;
+		}
+
+		@Override
+		public boolean send(Frame frame) {
+			frame = frame.encodedFor(binary, compressor);
+			if(frame == null || closed.get()) {
+				return true;
+			}
+			if(!outbound.offer(frame)) {
+				return false;
+			}
+			// auch ohne Fenster: alles, was bis zum Ende der aktuellen Runde der Event-Loop eingereiht wird, geht mit
+			// einem Write raus; ist das Budget erreicht, wird das Fenster nicht abgewartet
+			if(flushScheduled.compareAndSet(false, true) || (coalesceNanos > 0 && outbound.bytes() >= coalesceBytes)) {
+				loop.requestFlush(this);
+			}
+			return true;
+		}
+
+		/**
+		 * Die Event-Loop wartet nicht auf den Shard: ist der Raum voll, wird die Nachricht zurueckgehalten und OP_READ
+		 * abbestellt (wie bei einem Limit); bis der Shard Platz gemacht hat, bremst TCP den Client. Nur Loop-Thread.
+		 */
+		@Override
+		public void submit(Room room, Frame frame, long received) {
+			if(room.offer(frame, received, roomSpace)) {
+				return;
+			}
+			held = frame;
+			heldRoom = room;
+			heldReceived = received;
+			paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Die Event-Loop wartet nicht auf andere Verbindungen: OP_READ wird abbestellt und ein Timer prueft jede
+		 * Millisekunde, ob die Clients in der Reserve nachgekommen sind. Nur Loop-Thread.
+		 */
+		@Override
+		public void backOff(List<Connection> backedUp, long deadline) {
+			if(this.backedUp == null) {
+				this.backedUp = new ArrayList<Connection>(backedUp);
+				backOffDeadline = deadline;
+				paused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				armDrainCheck();
+			} else {
+				this.backedUp.addAll(backedUp);
+			}
+		}
+
+		private void armDrainCheck() {
+			if(!drainCheck.armed) {
+				drainCheck.armed = true;
+				drainCheck.deadline = System.nanoTime() + DRAIN_CHECK;
+				loop.timers.add(drainCheck);
+			}
+		}
+
+		/**
+		 * Liest weiter, sobald alle bremsenden Clients nachgekommen sind; nach der Frist werden die uebrigen getrennt.
+		 * Nur Loop-Thread.
+		 */
+		private void checkDrained() {
+			if(backedUp == null || closed.get() || !key.isValid()) {
+				return;
+			}
+			boolean expired = System.nanoTime() - backOffDeadline >= 0;
+			Iterator<Connection> it = backedUp.iterator();
+			while(it.hasNext()) {
+				Connection connection = it.next();
+				if(!connection.isBackedUp()) {
+					it.remove();
+				} else if(expired) {
+					it.remove();
+					server.disconnectSlowConsumer(connection);
+				}
+			}
+			if(!backedUp.isEmpty()) {
+				armDrainCheck();
+				return;
+			}
+			backedUp = null;
+			if(held == null) {
+				paused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				process(System.nanoTime());
+			}
+		}
+
+		/**
+		 * Reicht die zurueckgehaltene Nachricht erneut ein und liest danach weiter; ist der Raum schon wieder voll,
+		 * bleibt die Pause bestehen. Nur Loop-Thread.
+		 */
+		private void retryHeld() {
+			if(held == null || closed.get() || !key.isValid()) {
+				return;
+			}
+			if(!heldRoom.offer(held, heldReceived, roomSpace)) {
+				return; // erneut angemeldet
+			}
+			held = null;
+			heldRoom = null;
+			if(backedUp != null) {
+				return; // liest weiter, sobald die bremsenden Clients nachgekommen sind
+			}
+			paused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			process(System.nanoTime());
+		}
+
+		@Override
+		public boolean isBackedUp() {
+			return outbound.isBackedUp();
+		}
+
+		@Override
+		public boolean awaitDrained(long deadline) {
+			return outbound.awaitDrained(deadline);
+		}
+
+		@Override
+		public int getQueueDepth() {
+			return outbound.depth();
+		}
+
+		@Override
+		public long getDroppedMessages() {
+			return outbound.dropped();
+		}
+
+		/**
+		 * Liest alle verfuegbaren Bytes und verarbeitet jede vollstaendige Zeile bzw. im Binaerprotokoll jedes
+		 * vollstaendige Frame. Wird nur von der Event-Loop aufgerufen.
+		 */
+		void read() {
+			int n;
+			try {
+				n = channel.read(readBuffer);
+			} catch(IOException e) {
+				System.out.println(e);
+				close();
+				return;
+			}
+			if(n < 0) {
+				close();
+				return;
+			}
+			server.getMetrics().bytesIn.add(n);
+			if(heartbeat != null) {
+				heartbeat.touch();
+			}
+			process(System.nanoTime());
+		}
+
+		/**
+		 * Verarbeitet die vollstaendigen Zeilen bzw. Frames im Lesepuffer. Ueberschreitet der Client im Modus THROTTLE
+		 * seine Limits, bleibt der Rest im Puffer, OP_READ wird abbestellt und ein Timer setzt die Verarbeitung fort,
+		 * sobald das Limit es zulaesst; bis dahin bremst TCP den Client. Ebenso, wenn die Eingangs-Warteschlange des
+		 * Raums voll ist (siehe submit). Nur Loop-Thread.
+		 * @param received , System.nanoTime() nach dem Lesen vom Socket
+		 */
+		private void process(long received) {
+			readBuffer.flip();
+			if(!binary) {
+				byte[] data = readBuffer.array();
+				int start = readBuffer.position();
+				for(int i = start; i < readBuffer.limit() && !closed.get() && !binary; i++) {
+					if(data[i] == '\n') {
+						int end = i;
+						if(end > start && data[end - 1] == '\r') {
+							end--;
+						}
+						long wait = limit(end - start);
+						if(wait > 0) {
+							pause(wait);
+							break;
+						}
+						if(wait == 0) {
+							onLine(data, start, end - start, received);
+						}
+						start = i + 1;
+						if(paused) {
+							break; // Raum voll, die Zeile ist zurueckgehalten
+						}
+					}
+				}
+				readBuffer.position(start);
+			}
+			if(binary && !paused) {
+				// Frames werden direkt im Lesepuffer ausgewertet
+				int length;
+				while(!closed.get() && (length = BinaryProtocol.frameLength(readBuffer)) > 0) {
+					long wait = limit(length);
+					if(wait > 0) {
+						pause(wait);
+						break;
+					}
+					int start = readBuffer.position();
+					readBuffer.position(start + length);
+					if(wait == 0) {
+						onFrame(readBuffer.array(), start, length, received);
+					}
+					if(paused) {
+						break; // Raum voll, das Frame ist zurueckgehalten
+					}
+				}
+				if(!paused && BinaryProtocol.frameLength(readBuffer) < 0) {
+					server.writeServerLog(String.valueOf(name), " invalid frame");
+					close();
+					return;
+				}
+			}
+			readBuffer.compact();
+
+			if(!paused && !readBuffer.hasRemaining()) {
+				// Zeile bzw. Frame laenger als erlaubt
+				server.writeServerLog(String.valueOf(name), " line too long");
+				close();
+			}
+		}
+
+		/**
+		 * Wendet die Limits auf eine Zeile bzw. ein Frame an; vor der Anmeldung gelten keine
+		 * @return 0 = verarbeiten, -1 = verwerfen, sonst Nanosekunden bis zur naechsten Pruefung
+		 */
+		private long limit(int length) {
+			return limiter == null || name == null ? 0 : server.limit(this, limiter, length, System.nanoTime());
+		}
+
+		/**
+		 * Liest vorerst nicht weiter und stellt den Timer, der die Verarbeitung fortsetzt
+		 */
+		private void pause(long nanos) {
+			paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			resume.deadline = System.nanoTime() + nanos;
+			resume.armed = true;
+			loop.timers.add(resume);
+		}
+
+		/**
+		 * Protokoll: zunaechst wird der Nickname angefordert, bis dieser akzeptiert wird. Danach werden die Zeilen an
+		 * den Chat-Raum weitergereicht, ohne einen String zu erzeugen.
+		 * @param data , Lesepuffer mit der Zeile (ohne Zeilenende); nur waehrend des Aufrufs gueltig
+		 * @param received , System.nanoTime() nach dem Lesen vom Socket
+		 */
+		private void onLine(byte[] data, int offset, int length, long received) {
+			if(name != null) {
+				server.handleLine(this, data, offset, length, received);
+				return;
+			}
+			if(claiming) {
+				return; // vor /ACPT bzw. /NAME erwartet der Server nichts
+			}
+			String input = new String(data, offset, length, StandardCharsets.UTF_8);
+			if(input.startsWith("/OPTS")) {
+				int options = server.negotiate(this, ChatServer.extractMessage(input));
+				compressor = server.compressorFor(options);
+				binary = (options & ChatServer.OPT_BINARY) != 0;
+				return;
+			}
+			if(input.equals("/PONG")) {
+				return;
+			}
+			if(!input.startsWith("/USER")) {
+				close();
+				return;
+			}
+			login(ChatServer.extractMessage(input));
+		}
+
+		/**
+		 * Protokoll im Binaerprotokoll, wie onLine
+		 * @param data , Lesepuffer mit dem vollstaendigen Frame inkl. Kopf; nur waehrend des Aufrufs gueltig
+		 * @param received , System.nanoTime() nach dem Lesen vom Socket
+		 */
+		private void onFrame(byte[] data, int offset, int length, long received) {
+			if(name != null) {
+				server.handleFrame(this, data, offset, length, received);
+				return;
+			}
+			if(claiming || data[offset + 4] == BinaryProtocol.PONG) {
+				return;
+			}
+			if(data[offset + 4] != BinaryProtocol.USER) {
+				close();
+				return;
+			}
+			login(new String(data, offset + BinaryProtocol.HEADER, length - BinaryProtocol.HEADER, StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Meldet den Nickname an. Im Verbund kommt das Ergebnis erst nach der Abstimmung mit den anderen Knoten; die
+		 * Event-Loop wartet darauf nicht, sondern bekommt den Abschluss als Auftrag.
+		 */
+		private void login(final String candidate) {
+			server.writeServerLog(candidate, " /NAME");
+			claiming = true;
+			server.register(candidate, this, new ChatServer.Registration() {
+				@Override
+				public void registered(final int id) {
+					if(Thread.currentThread() == loop) {
+						completeLogin(candidate, id);
+					} else {
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								completeLogin(candidate, id);
+							}
+						});
+					}
+				}
+			});
+		}
+
+		/**
+		 * Abschluss von login; nur Loop-Thread
+		 */
+		private void completeLogin(String candidate, int id) {
+			claiming = false;
+			if(id < 0) {
+				server.deliver(this, "/NAME");
+				return;
+			}
+			userId = id;
+			nameBytes = candidate.getBytes(StandardCharsets.UTF_8);
+			name = candidate;
+			if(closed.get()) {
+				server.leave(this); // waehrend der Abstimmung getrennt: Nickname wieder freigeben
+				return;
+			}
+			server.accept(this);
+		}
+
+		/**
+		 * Schreibt die Warteschlange, soweit der Socket es zulaesst. Bleibt ein Rest, wird er in den Rueckstaupuffer
+		 * kopiert und OP_WRITE abonniert. Wird nur von der Event-Loop aufgerufen.
+		 */
+		void flush() {
+			if(!key.isValid()) {
+				return;
+			}
+			try {
+				if(backlog != null && backlog.hasRemaining()) {
+					server.getMetrics().bytesOut.add(channel.write(backlog));
+					if(backlog.hasRemaining()) {
+						return; // OP_WRITE ist noch abonniert
+					}
+				}
+				ByteBuffer out = loop.writeBuffer;
+				do {
+					while(fill(out)) {
+						server.getMetrics().bytesOut.add(channel.write(out));
+						if(out.hasRemaining()) {
+							// Socket-Puffer voll: Rest beim naechsten OP_WRITE
+							if(backlog == null) {
+								backlog = ByteBuffer.allocateDirect(coalesceBytes);
+							}
+							backlog.clear();
+							backlog.put(out).flip();
+							key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+							return;
+						}
+					}
+					if((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					}
+					flushScheduled.set(false);
+					// Zwischenzeitlich eingereihte Frames, deren Sender keinen Flush mehr ausgeloest hat
+				} while(!outbound.isEmpty() && flushScheduled.compareAndSet(false, true));
+			} catch(IOException e) {
+				System.out.println(e);
+				close();
+			}
+		}
+
+		/**
+		 * Kopiert wartende Frames in den Schreibpuffer, bis er voll oder die Warteschlange leer ist. Ein Frame, das
+		 * nicht mehr ganz hineinpasst, wird beim naechsten Aufruf fortgesetzt.
+		 * @return true, wenn etwas zu schreiben ist (Puffer lesebereit)
+		 */
+		private boolean fill(ByteBuffer out) {
+			out.clear();
+			while(out.hasRemaining()) {
+				if(current == null) {
+					current = outbound.poll();
+					currentOffset = 0;
+					if(current == null) {
+						break;
+					}
+				}
+				currentOffset += current.copyTo(out, currentOffset);
+				if(currentOffset == current.length()) {
+					current = null;
+				}
+			}
+			out.flip();
+			return out.hasRemaining();
+		}
+
+		/**
+		 * Trennt die Verbindung; auch aus anderen Threads (Heartbeat, Shards, Broadcast). Der Benutzer verlaesst den
+		 * Raum sofort, Kanal, Key und Puffer gibt die Event-Loop frei, der sie gehoeren.
+		 */
+		@Override
+		public void close() {
+			if(!closed.compareAndSet(false, true)) {
+				return;
+			}
+			if(heartbeat != null) {
+				heartbeat.cancel();
+			}
+			server.leave(this);
+			if(Thread.currentThread() == loop || !loop.isAlive()) {
+				release();
+			} else {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						release();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Zweiter Teil von close; nur Loop-Thread
+		 */
+		private void release() {
+			try {
+				channel.close(); // Verbindungsabbau, entfernt auch den SelectionKey
+			} catch(IOException e) {
+			}
+			outbound.clear();
+			current = null;
+			backlog = null;
+			server.releaseConnection();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Begrenzte Ausgangs-Warteschlange einer Verbindung. Der Sender (z.B. ein Broadcast) reiht nur ein, das
+ *          Schreiben auf den Socket uebernimmt der Writer der Verbindung. Ist die Warteschlange voll, entscheidet die
+ *          konfigurierte OverflowPolicy, was passiert. Einreihen blockiert nie, denn Broadcasts reihen unter der Sperre
+ *          des Raums ein: bei BACKPRESSURE gibt es hinter der Kapazitaet eine Reserve gleicher Groesse, der Sender
+ *          reiht dort ein und wartet erst nach dem Freigeben der Sperre (awaitDrained), bis der Client wieder unter der
+ *          Kapazitaet ist. Erst wenn auch die Reserve voll ist oder das Warten zu lange dauert, wird getrennt.
+ */
+class OutboundQueue {
+
+	private final ArrayBlockingQueue<Frame> queue; // bei BACKPRESSURE mit Reserve: doppelte Kapazitaet
+	private final int capacity;
+	private final ServerConfig.OverflowPolicy policy;
+	private final Object drained = new Object(); // awaitDrained wartet hier
+	private volatile int waiting; // Threads in awaitDrained
+
+	private final AtomicLong bytes = new AtomicLong(); // Summe der wartenden Frame-Laengen
+	private final AtomicLong dropped = new AtomicLong(); // verworfene Nachrichten
+	private volatile int maxDepth; // hoechster beobachteter Fuellstand
+
+	/**
+	 * Konstruktor
+	 * @param config , liefert Kapazitaet und Policy
+	 */
+	OutboundQueue(ServerConfig config) {
+		this(config.getOutboundQueueSize(), config.getOverflowPolicy());
+	}
+
+	/**
+	 * Konstruktor
+	 * @param capacity , maximale Anzahl wartender Frames
+	 * @param policy , Verhalten bei voller Warteschlange; bei BACKPRESSURE kommt eine Reserve gleicher Groesse hinzu
+	 */
+	OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<Frame>(policy == ServerConfig.OverflowPolicy.BACKPRESSURE ? 2 * capacity
+				: capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Reiht ein Frame ein; blockiert nie (auch unter Sperren aufrufbar)
+	 * @param frame , das Frame
+	 * @return false, wenn die Warteschlange (bei BACKPRESSURE auch die Reserve) uebergelaufen ist und die Verbindung
+	 *         getrennt werden muss
+	 */
+	boolean offer(Frame frame) {
+		bytes.addAndGet(frame.length());
+		if(queue.offer(frame)) {
+			updateDepth();
+			return true;
+		}
+		if(policy == ServerConfig.OverflowPolicy.DROP_OLDEST) {
+			while(!queue.offer(frame)) {
+				if(poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			return true;
+		}
+		bytes.addAndGet(-frame.length());
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return true, wenn bei BACKPRESSURE Frames in der Reserve warten; der Sender sollte nach dem Freigeben seiner
+	 *         Sperren awaitDrained aufrufen
+	 */
+	boolean isBackedUp() {
+		return policy == ServerConfig.OverflowPolicy.BACKPRESSURE && queue.size() > capacity;
+	}
+
+	/**
+	 * Wartet, bis die Warteschlange wieder unter ihrer Kapazitaet ist. Nie unter einer Sperre und nie in einer
+	 * Event-Loop aufrufen.
+	 * @param deadline , System.nanoTime(), bis zu dem hoechstens gewartet wird
+	 * @return false, wenn der Client bis dahin nicht nachgekommen ist und getrennt werden muss
+	 */
+	boolean awaitDrained(long deadline) {
+		synchronized(drained) {
+			waiting++;
+			try {
+				long wait;
+				while(isBackedUp()) {
+					wait = deadline - System.nanoTime();
+					if(wait <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(drained, wait);
+				}
+				return true;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return !isBackedUp();
+			} finally {
+				waiting--;
+			}
+		}
+	}
+
+	/**
+	 * @return das naechste Frame oder null, wenn die Warteschlange leer ist
+	 */
+	Frame poll() {
+		return removed(queue.poll());
+	}
+
+	/**
+	 * Wartet hoechstens timeout auf das naechste Frame
+	 * @return das Frame oder null
+	 */
+	Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return removed(queue.poll(timeout, unit));
+	}
+
+	/**
+	 * Wartet auf das naechste Frame
+	 */
+	Frame take() throws InterruptedException {
+		return removed(queue.take());
+	}
+
+	private Frame removed(Frame frame) {
+		if(frame != null) {
+			bytes.addAndGet(-frame.length());
+			if(waiting > 0 && !isBackedUp()) {
+				synchronized(drained) {
+					drained.notifyAll();
+				}
+			}
+		}
+		return frame;
+	}
+
+	boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Verwirft alle wartenden Frames (beim Verbindungsabbau)
+	 */
+	void clear() {
+		while(poll() != null) {
+		}
+	}
+
+	/**
+	 * @return aktueller Fuellstand
+	 */
+	int depth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Summe der wartenden Bytes
+	 */
+	long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return hoechster bisher beobachteter Fuellstand
+	 */
+	int maxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return Anzahl der wegen Ueberlaufs verworfenen Nachrichten
+	 */
+	long dropped() {
+		return dropped.get();
+	}
+
+	private void updateDepth() {
+		int depth = queue.size();
+		if(depth > maxDepth) {
+			maxDepth = depth; // nur ein Richtwert, kein exaktes Maximum
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Verbindung zu einem anderen Knoten des Verbunds (Server-zu-Server). Aufgebaut wie ein Handler im
+ *          Modus PLATFORM: ein blockierender Kanal, ein Thread liest Zeilen und reicht sie an die Federation weiter,
+ *          ein zweiter schreibt die Ausgangs-Warteschlange. Beide Seiten beginnen mit "/NODE<id> <epoch> <nonce>";
+ *          ist peerSecret gesetzt, antworten beide mit "/AUTH<hmac>", dem HMAC-SHA256 ueber die Zufallszahl der
+ *          Gegenseite, die eigene ID und Epoche. Erst danach meldet sich die Verbindung bei der Federation an. Laeuft
+ *          die Warteschlange ueber, wird die Verbindung getrennt und spaeter neu aufgebaut, ein langsamer Knoten
+ *          bremst also keinen Raum.
+ */
+class PeerLink extends Thread {
+
+	private static final byte[] NODE = "/NODE".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AUTH = "/AUTH".getBytes(StandardCharsets.US_ASCII);
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final Federation federation;
+	private final SocketChannel channel; // TCP-Socket, blockierend
+	final InetSocketAddress address; // konfigurierte Adresse, nur bei selbst aufgebauten Verbindungen, sonst null
+	private final int maxLineLength;
+	private final OutboundQueue outbound; // wartende Frames
+	private final ServerMetrics metrics;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final Thread writer; // schreibt die Warteschlange auf den Socket
+	private final byte[] secret; // peerSecret, leer = keine Authentifizierung
+	private final String nonce; // Zufallszahl fuer den Handshake, einmal pro Verbindung
+
+	volatile String node; // ID des anderen Knotens, gesetzt nach dem Handshake
+	volatile long epoch; // Startzeit des anderen Knotens, unterscheidet dessen Neustarts
+	volatile Federation.Window window; // Duplikaterkennung fuer die Nachrichten dieses Knotens
+
+	/**
+	 * Konstruktor
+	 * @param federation , der die empfangenen Zeilen gehoeren
+	 * @param channel , verbundener, blockierender Kanal
+	 * @param address , Adresse, zu der dieser Knoten die Verbindung aufgebaut hat; null = eingehende Verbindung
+	 * @param config , liefert Zeilenlaenge und Groesse der Warteschlange
+	 * @param metrics , zaehlt die Bytes
+	 */
+	PeerLink(Federation federation, SocketChannel channel, InetSocketAddress address, ServerConfig config,
+			ServerMetrics metrics) {
+		super("peer-" + (address != null ? address.getPort() : "in"));
+		setDaemon(true);
+		this.federation = federation;
+		this.channel = channel;
+		this.address = address;
+		this.maxLineLength = config.getMaxLineLength() + 128; // Platz fuer den Kopf von /RELY
+		this.outbound = new OutboundQueue(config.getPeerQueueSize(), ServerConfig.OverflowPolicy.DISCONNECT);
+		this.metrics = metrics;
+		this.secret = config.getPeerSecret().getBytes(StandardCharsets.UTF_8);
+		byte[] random = new byte[16];
+		RANDOM.nextBytes(random);
+		this.nonce = hex(random);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, getName() + "-writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * @return ID des Knotens, der die Verbindung aufgebaut hat; entscheidet, welche von zwei Verbindungen zwischen
+	 *         denselben Knoten bleibt
+	 */
+	String dialer() {
+		return address != null ? federation.nodeId : node;
+	}
+
+	/**
+	 * Handshake, danach Zeile fuer Zeile an die Federation, bis die Verbindung abgebaut wird
+	 */
+	public void run() {
+		try {
+			writer.start();
+			send(Frame.of("/NODE" + federation.nodeId + " " + federation.epoch + " " + nonce));
+
+			InputReader reader = new InputReader(channel, maxLineLength, metrics.peerBytesIn);
+			int length = reader.readLine();
+			if(length < NODE.length || !startsWith(reader.buffer(), reader.start(), NODE)) {
+				federation.rejected(this, "kein Handshake");
+				return;
+			}
+			String hello = new String(reader.buffer(), reader.start() + NODE.length, length - NODE.length,
+					StandardCharsets.UTF_8);
+			int nonceIdx = hello.lastIndexOf(' ');
+			int epochIdx = nonceIdx > 0 ? hello.lastIndexOf(' ', nonceIdx - 1) : -1;
+			if(epochIdx <= 0) {
+				federation.rejected(this, "ungueltiger Handshake");
+				return;
+			}
+			String peerNonce = hello.substring(nonceIdx + 1);
+			node = hello.substring(0, epochIdx);
+			epoch = Long.parseLong(hello.substring(epochIdx + 1, nonceIdx));
+			if(secret.length > 0) {
+				send(Frame.of("/AUTH" + proof(peerNonce, federation.nodeId, federation.epoch)));
+				length = reader.readLine();
+				if(length < AUTH.length || !startsWith(reader.buffer(), reader.start(), AUTH)
+						|| !MessageDigest.isEqual(proof(nonce, node, epoch).getBytes(StandardCharsets.US_ASCII),
+								Arrays.copyOfRange(reader.buffer(), reader.start() + AUTH.length,
+										reader.start() + length))) {
+					federation.rejected(this, "Authentifizierung fehlgeschlagen");
+					return;
+				}
+			}
+			setName("peer-" + node);
+			if(!federation.linkUp(this)) {
+				return;
+			}
+			while(true) {
+				length = reader.readLine();
+				if(length < 0) {
+					return;
+				}
+				federation.onLine(this, reader.buffer(), reader.start(), length);
+			}
+		} catch(IOException | RuntimeException e) {
+			if(!closed.get()) {
+				System.out.println(e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Reiht ein Frame ein; blockiert nie
+	 * @return false, wenn die Warteschlange uebergelaufen ist (die Verbindung wurde getrennt)
+	 */
+	boolean send(Frame frame) {
+		if(closed.get()) {
+			return false;
+		}
+		if(!outbound.offer(frame)) {
+			federation.overflow(this);
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true, solange die Verbindung nicht abgebaut ist
+	 */
+	boolean isOpen() {
+		return !closed.get();
+	}
+
+	/**
+	 * Schreibt die Warteschlange auf den Socket; was bereits wartet, geht mit einem Write raus
+	 */
+	private void writeLoop() {
+		ByteBuffer out = ByteBuffer.allocateDirect(16384);
+		try {
+			while(channel.isOpen()) {
+				Frame frame = outbound.take();
+				while(frame != null) {
+					int from = 0;
+					while(from < frame.length()) {
+						from += frame.copyTo(out, from);
+						if(!out.hasRemaining()) {
+							write(out);
+						}
+					}
+					frame = outbound.poll();
+				}
+				write(out);
+			}
+		} catch(InterruptedException e) {
+			// Verbindung wurde abgebaut
+		} catch(IOException e) {
+			close();
+		}
+	}
+
+	private void write(ByteBuffer out) throws IOException {
+		out.flip();
+		int bytes = out.remaining();
+		while(out.hasRemaining()) {
+			channel.write(out);
+		}
+		metrics.peerBytesOut.add(bytes);
+		out.clear();
+	}
+
+	/**
+	 * Baut die Verbindung ab und meldet sie bei der Federation ab; mehrfacher Aufruf ist harmlos
+	 */
+	void close() {
+		if(!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch(IOException e) {
+		}
+		writer.interrupt();
+		outbound.clear();
+		federation.linkDown(this);
+	}
+
+	/**
+	 * @return HMAC-SHA256 mit peerSecret ueber die Zufallszahl des Pruefenden, ID und Epoche des Beweisenden (hex)
+	 */
+	private String proof(String challenge, String id, long epoch) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return hex(mac.doFinal((challenge + " " + id + " " + epoch).getBytes(StandardCharsets.UTF_8)));
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e); // HmacSHA256 gibt es in jeder JVM
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+		for(int i = 0; i < prefix.length; i++) {
+			if(data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return node != null ? node : String.valueOf(address);
+	}
+}
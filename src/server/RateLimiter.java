@@ -0,0 +1,83 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Eingangs-Limits einer Verbindung: ein Token-Bucket fuer Zeilen bzw. Frames pro Sekunde und einer
+ *          fuer Bytes pro Sekunde. Gehoert dem Thread, der die Verbindung liest (Handler bzw. Event-Loop), und kommt
+ *          daher ohne Sperre und ohne atomare Operationen aus; die Pruefung kostet pro Zeile ein paar Multiplikationen.
+ */
+class RateLimiter {
+
+	private static final long NOTICE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final TokenBucket messages; // null = unbegrenzt
+	private final TokenBucket bytes; // null = unbegrenzt
+	final boolean drop; // true = Zeilen ueber dem Limit verwerfen, false = Lesen verzoegern
+	private long lastNotice; // System.nanoTime() des letzten Hinweises an den Client
+	private boolean noticed; // es wurde schon ein Hinweis geschickt
+
+	/**
+	 * Konstruktor
+	 * @param config , liefert Raten, Bursts und das Verhalten ueber dem Limit
+	 * @param now , System.nanoTime()
+	 */
+	private RateLimiter(ServerConfig config, long now) {
+		double messageRate = config.getMessageRate();
+		double byteRate = config.getByteRate();
+		messages = messageRate > 0 ? new TokenBucket(messageRate, config.getMessageBurst(), now) : null;
+		// eine Zeile darf nie groesser als der Bucket sein, sonst kaeme sie nie durch
+		bytes = byteRate > 0 ? new TokenBucket(byteRate, Math.max(config.getByteBurst(), config.getMaxLineLength()),
+				now) : null;
+		drop = config.getRateLimitPolicy() == ServerConfig.RateLimitPolicy.DROP;
+	}
+
+	/**
+	 * @param config , Konfiguration des Servers
+	 * @return die Limits einer neuen Verbindung oder null, wenn keine konfiguriert sind
+	 */
+	static RateLimiter create(ServerConfig config) {
+		if(config.getMessageRate() <= 0 && config.getByteRate() <= 0) {
+			return null;
+		}
+		return new RateLimiter(config, System.nanoTime());
+	}
+
+	/**
+	 * Verbucht eine Zeile bzw. ein Frame, wenn beide Limits es zulassen; sonst wird nichts verbucht
+	 * @param length , Laenge in Bytes
+	 * @param now , System.nanoTime()
+	 * @return 0, wenn die Zeile verarbeitet werden darf, sonst die Nanosekunden, bis sie es duerfte
+	 */
+	long acquire(int length, long now) {
+		long wait = messages != null ? messages.nanosUntil(1, now) : 0;
+		double amount = bytes != null ? Math.min(length, bytes.burst()) : 0;
+		if(bytes != null) {
+			wait = Math.max(wait, bytes.nanosUntil(amount, now));
+		}
+		if(wait > 0) {
+			return wait;
+		}
+		if(messages != null) {
+			messages.tryAcquire(1, now);
+		}
+		if(bytes != null) {
+			bytes.tryAcquire(amount, now);
+		}
+		return 0;
+	}
+
+	/**
+	 * @param now , System.nanoTime()
+	 * @return true, wenn der Client (wieder) einen Hinweis bekommen soll; hoechstens einer pro Sekunde
+	 */
+	boolean notice(long now) {
+		if(noticed && now - lastNotice < NOTICE_INTERVAL) {
+			return false;
+		}
+		noticed = true;
+		lastNotice = now;
+		return true;
+	}
+}
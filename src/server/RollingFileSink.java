@@ -0,0 +1,82 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Log-Datei, die bei Erreichen einer Maximalgroesse rolliert: chat-server.log wird zu chat-server.log.1,
+ *          chat-server.log.1 zu chat-server.log.2 usw.; die aelteste Datei wird geloescht. Wird nur vom
+ *          Consumer-Thread des Server-Logs benutzt und ist daher nicht synchronisiert.
+ */
+class RollingFileSink {
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+	private Writer out;
+	private long size; // Bytes in der aktuellen Datei
+
+	/**
+	 * Konstruktor
+	 * @param fileName , Name der aktuellen Log-Datei
+	 * @param maxBytes , Groesse, ab der rolliert wird
+	 * @param maxFiles , Anzahl aufbewahrter alter Dateien
+	 */
+	RollingFileSink(String fileName, long maxBytes, int maxFiles) throws IOException {
+		this.file = new File(fileName);
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		open();
+	}
+
+	/**
+	 * Schreibt einen Stapel Zeilen und leert den Puffer
+	 */
+	void write(String lines) throws IOException {
+		if(size >= maxBytes) {
+			roll();
+		}
+		out.write(lines);
+		out.flush();
+		size += lines.length(); // Zeichen statt Bytes, als Richtwert genau genug
+	}
+
+	void close() {
+		try {
+			out.close();
+		} catch(IOException e) {
+		}
+	}
+
+	private void open() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null) {
+			parent.mkdirs();
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		size = file.length();
+	}
+
+	private void roll() throws IOException {
+		out.close();
+		new File(file.getPath() + "." + maxFiles).delete();
+		for(int i = maxFiles - 1; i >= 1; i--) {
+			File older = new File(file.getPath() + "." + i);
+			if(older.exists()) {
+				older.renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+		}
+		if(maxFiles > 0) {
+			file.renameTo(new File(file.getPath() + ".1"));
+		} else {
+			file.delete();
+		}
+		open();
+	}
+}
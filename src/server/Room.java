@@ -0,0 +1,276 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Ein benannter Chat-Raum: eigene Mitgliederliste (writers) mit eigener Sperre und eine begrenzte
+ *          Eingangs-Warteschlange fuer Chat-Nachrichten, die der RoomShard des Raums abarbeitet. Nachrichten
+ *          verschiedener Raeume werden also weder unter einer gemeinsamen Sperre noch im selben Thread verteilt. Jeder
+ *          Benutzer ist in genau einem Raum; leere Raeume (ausser dem Standardraum) werden entfernt.
+ */
+class Room {
+
+	static final String DEFAULT = "main"; // Raum nach der Anmeldung, nur hier gibt es einen Verlauf
+	static final int MAX_NAME_LENGTH = 32;
+	private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	final String name;
+	final byte[] nameBytes; // Name als UTF-8, fuer die Weiterleitung an andere Knoten
+	final RoomShard shard; // verteilt die Nachrichten, null = im Thread des Absenders
+	final List<Connection> writers = new ArrayList<Connection>(); // Mitglieder, Sperre: writers
+	final AtomicInteger binaryMembers = new AtomicInteger(); // Mitglieder im Binaerprotokoll
+	boolean closed; // leer und aus dem Verzeichnis entfernt, Sperre: writers
+
+	// Eingangs-Warteschlange (Ring), Sperre: inbox
+	private final Object inbox = new Object();
+	private final Frame[] frames;
+	private final long[] received; // System.nanoTime() beim Lesen vom Socket
+	private int head;
+	private int size;
+	private List<Runnable> waiting; // warten auf Platz (Event-Loops), null = niemand
+	final AtomicBoolean scheduled = new AtomicBoolean(); // haengt in der Liste des Shards
+	Room nextPending; // naechster Raum in dieser Liste
+	private List<Connection> backedUp; // halten die Verteilung an (BACKPRESSURE), nur Shard-Thread
+	private long backOffDeadline;
+
+	// Kennzahlen, geschrieben unter der Sperre von writers
+	private volatile long messages;
+	private volatile long windowStart = System.nanoTime();
+	private volatile long windowMessages;
+	private volatile double rate; // Nachrichten pro Sekunde im letzten vollen Fenster
+
+	/**
+	 * Konstruktor
+	 * @param name , Name des Raums
+	 * @param shard , Thread, der die Nachrichten verteilt; null = der Absender verteilt selbst
+	 * @param queueSize , Kapazitaet der Eingangs-Warteschlange
+	 */
+	Room(String name, RoomShard shard, int queueSize) {
+		this.name = name;
+		this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		this.shard = shard;
+		this.frames = new Frame[Math.max(1, queueSize)];
+		this.received = new long[frames.length];
+	}
+
+	/**
+	 * @return true, wenn der Name als Raumname zulaessig ist (1 bis 32 Zeichen aus Buchstaben, Ziffern, '-' und '_')
+	 */
+	static boolean isValidName(String name) {
+		if(name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reiht eine Chat-Nachricht ein und meldet den Raum bei seinem Shard an. Ist die Warteschlange voll, wartet der
+	 * Absender, bis wieder Platz ist (Rueckstau statt Verlust). Nur fuer Threads, die warten duerfen (Handler, auch
+	 * virtuelle Threads); eine Event-Loop nimmt offer. Darf nicht unter der Sperre von writers aufgerufen werden.
+	 * @param frame , die kodierte Nachricht
+	 * @param receivedAt , System.nanoTime() beim Lesen vom Socket
+	 */
+	void submit(Frame frame, long receivedAt) {
+		synchronized(inbox) {
+			boolean interrupted = false;
+			while(size == frames.length) {
+				try {
+					inbox.wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			enqueue(frame, receivedAt);
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(scheduled.compareAndSet(false, true)) {
+			shard.schedule(this);
+		}
+	}
+
+	/**
+	 * Reiht eine Chat-Nachricht ein, ohne zu warten. Ist die Warteschlange voll, wird onSpace angemeldet und
+	 * (einmal, im Thread des Shards) aufgerufen, sobald wieder Platz ist; Pruefung und Anmeldung sind atomar, es geht
+	 * also kein Aufruf verloren. Darf nicht unter der Sperre von writers aufgerufen werden.
+	 * @param frame , die kodierte Nachricht
+	 * @param receivedAt , System.nanoTime() beim Lesen vom Socket
+	 * @param onSpace , wird bei voller Warteschlange angemeldet; muss schnell sein und darf nicht blockieren
+	 * @return false, wenn die Warteschlange voll war und nichts eingereiht wurde
+	 */
+	boolean offer(Frame frame, long receivedAt, Runnable onSpace) {
+		synchronized(inbox) {
+			if(size == frames.length) {
+				if(waiting == null) {
+					waiting = new ArrayList<Runnable>();
+				}
+				waiting.add(onSpace);
+				return false;
+			}
+			enqueue(frame, receivedAt);
+		}
+		if(scheduled.compareAndSet(false, true)) {
+			shard.schedule(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Haengt eine Nachricht an den Ring an; unter der Sperre von inbox, es muss Platz sein
+	 */
+	private void enqueue(Frame frame, long receivedAt) {
+		int tail = (head + size) % frames.length;
+		frames[tail] = frame;
+		received[tail] = receivedAt;
+		size++;
+	}
+
+	/**
+	 * Verteilt hoechstens max wartende Nachrichten; nur vom Shard aufgerufen
+	 * @param server , verteilt eine Nachricht an die Mitglieder
+	 * @param max , Obergrenze, damit ein voller Raum die anderen Raeume des Shards nicht aushungert
+	 * @return true, wenn danach noch Nachrichten warten
+	 */
+	boolean drain(ChatServer server, int max) {
+		for(int i = 0; i < max; i++) {
+			if(backedUp != null) {
+				return false; // angehalten, der Shard plant den Raum nach checkDrained neu ein
+			}
+			Frame frame;
+			long receivedAt;
+			List<Runnable> woken = null;
+			synchronized(inbox) {
+				if(size == 0) {
+					return false;
+				}
+				frame = frames[head];
+				receivedAt = received[head];
+				frames[head] = null;
+				head = (head + 1) % frames.length;
+				if(size-- == frames.length) {
+					inbox.notifyAll(); // wartende Absender
+					woken = waiting;
+					waiting = null;
+				}
+			}
+			if(woken != null) {
+				for(Runnable onSpace : woken) {
+					onSpace.run(); // ausserhalb der Sperre
+				}
+			}
+			server.dispatch(this, frame, receivedAt);
+		}
+		synchronized(inbox) {
+			return backedUp == null && size > 0;
+		}
+	}
+
+	/**
+	 * Haelt die Verteilung an, bis die Clients in der Reserve nachgekommen sind. Der Shard wartet nicht auf sie,
+	 * sondern prueft den Raum in seinem Takt (checkDrained) und bedient bis dahin die anderen Raeume. Nur Shard-Thread.
+	 * @param backedUp , Clients in der Reserve
+	 * @param deadline , System.nanoTime(), danach werden die uebrigen getrennt
+	 */
+	void backOff(List<Connection> backedUp, long deadline) {
+		if(this.backedUp == null) {
+			this.backedUp = new ArrayList<Connection>(backedUp);
+			backOffDeadline = deadline;
+			shard.pause(this);
+		} else {
+			this.backedUp.addAll(backedUp);
+		}
+	}
+
+	/**
+	 * Gibt den Raum frei, sobald alle bremsenden Clients nachgekommen sind; nach der Frist werden die uebrigen
+	 * getrennt. Nur Shard-Thread.
+	 * @return true, wenn der Raum wieder verteilen darf
+	 */
+	boolean checkDrained(ChatServer server) {
+		boolean expired = System.nanoTime() - backOffDeadline >= 0;
+		Iterator<Connection> it = backedUp.iterator();
+		while(it.hasNext()) {
+			Connection connection = it.next();
+			if(!connection.isBackedUp()) {
+				it.remove();
+			} else if(expired) {
+				it.remove();
+				server.disconnectSlowConsumer(connection);
+			}
+		}
+		if(!backedUp.isEmpty()) {
+			return false;
+		}
+		backedUp = null;
+		return true;
+	}
+
+	/**
+	 * @return Anzahl wartender Nachrichten
+	 */
+	int backlog() {
+		synchronized(inbox) {
+			return size;
+		}
+	}
+
+	/**
+	 * Zaehlt eine verteilte Nachricht; unter der Sperre von writers
+	 * @param now , System.nanoTime()
+	 */
+	void countMessage(long now) {
+		messages++;
+		long elapsed = now - windowStart;
+		if(elapsed >= RATE_WINDOW) {
+			rate = (messages - windowMessages) * 1e9 / elapsed;
+			windowMessages = messages;
+			windowStart = now;
+		}
+	}
+
+	/**
+	 * @return Anzahl verteilter Nachrichten
+	 */
+	long messages() {
+		return messages;
+	}
+
+	/**
+	 * @return Nachrichten pro Sekunde im letzten vollen Fenster; ist das laufende Fenster schon abgelaufen (keine
+	 *         weitere Nachricht), die Rate seit dessen Beginn
+	 */
+	double rate() {
+		long elapsed = System.nanoTime() - windowStart;
+		if(elapsed >= RATE_WINDOW) {
+			return (messages - windowMessages) * 1e9 / elapsed;
+		}
+		return rate;
+	}
+
+	/**
+	 * @return "#name (n members, r msg/s, m messages)"
+	 */
+	String describe() {
+		int members;
+		synchronized(writers) {
+			members = writers.size();
+		}
+		return String.format(Locale.ROOT, "#%s (%d members, %.1f msg/s, %d messages, backlog %d)", name, members,
+				rate(), messages, backlog());
+	}
+}
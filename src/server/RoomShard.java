@@ -0,0 +1,125 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Thread, der die Chat-Nachrichten der ihm zugeordneten Raeume verteilt. Es gibt standardmaessig einen
+ *          Shard pro Prozessorkern; jeder Raum gehoert fest zu einem Shard, seine Nachrichten bleiben also in
+ *          Reihenfolge. Raeume mit wartenden Nachrichten haengen sich ohne weiteren Knoten in einen lock-freien Stapel
+ *          (wie die Verbindungen in der Event-Loop); pro Runde verteilt der Shard hoechstens BATCH Nachrichten je
+ *          Raum, damit ein voller Raum die anderen nicht aushungert. Muss ein Raum bei BACKPRESSURE auf langsame
+ *          Clients warten, haelt der Shard nur diesen Raum an (Room.backOff) und prueft ihn im Takt DRAIN_CHECK.
+ */
+class RoomShard extends Thread {
+
+	private static final int BATCH = 64;
+	private static final long DRAIN_CHECK = TimeUnit.MILLISECONDS.toNanos(1); // Takt von Room.checkDrained
+
+	private final ChatServer server;
+	private final AtomicReference<Room> pending = new AtomicReference<Room>(); // Raeume mit wartenden Nachrichten
+	private final List<Room> paused = new ArrayList<Room>(); // angehaltene Raeume, nur Shard-Thread
+	final AtomicInteger rooms = new AtomicInteger(); // zugeordnete Raeume, fuer die Verteilung neuer Raeume
+	private volatile boolean running = true;
+
+	RoomShard(ChatServer server, int index) {
+		super("room-shard-" + index);
+		setDaemon(true);
+		this.server = server;
+	}
+
+	/**
+	 * Meldet einen Raum mit wartenden Nachrichten an (jeder Raum hoechstens einmal, siehe Room.scheduled); geweckt
+	 * wird der Thread nur, wenn der Stapel leer war
+	 */
+	void schedule(Room room) {
+		Room head;
+		do {
+			head = pending.get();
+			room.nextPending = head;
+		} while(!pending.compareAndSet(head, room));
+		if(head == null && Thread.currentThread() != this) {
+			LockSupport.unpark(this);
+		}
+	}
+
+	/**
+	 * Nimmt einen angehaltenen Raum in die Pruefung auf; nur Shard-Thread (Room.backOff)
+	 */
+	void pause(Room room) {
+		paused.add(room);
+	}
+
+	/**
+	 * Gibt die Raeume frei, deren bremsende Clients nachgekommen sind oder getrennt wurden, und plant sie mit ihren
+	 * wartenden Nachrichten wieder ein
+	 */
+	private void checkPaused() {
+		Iterator<Room> it = paused.iterator();
+		while(it.hasNext()) {
+			Room room = it.next();
+			try {
+				if(room.checkDrained(server)) {
+					it.remove();
+					if(room.backlog() > 0 && room.scheduled.compareAndSet(false, true)) {
+						schedule(room);
+					}
+				}
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Beendet den Thread; noch wartende Nachrichten werden verworfen
+	 */
+	void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	public void run() {
+		while(running) {
+			if(!paused.isEmpty()) {
+				checkPaused();
+			}
+			Room room = pending.getAndSet(null);
+			if(room == null) {
+				if(paused.isEmpty()) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, DRAIN_CHECK);
+				}
+				continue;
+			}
+			// Stapel umdrehen: Raeume in der Reihenfolge ihrer Anmeldung bedienen
+			Room ordered = null;
+			while(room != null) {
+				Room next = room.nextPending;
+				room.nextPending = ordered;
+				ordered = room;
+				room = next;
+			}
+			while(ordered != null) {
+				Room next = ordered.nextPending;
+				ordered.nextPending = null;
+				ordered.scheduled.set(false);
+				try {
+					if(ordered.drain(server, BATCH) && ordered.scheduled.compareAndSet(false, true)) {
+						schedule(ordered); // Rest in der naechsten Runde, nach den anderen Raeumen
+					}
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+				ordered = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package server;
+
+import java.awt.GraphicsEnvironment;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Konfiguration des Chat-Servers. Die Werte werden aus System-Properties ("-Dchat.port=56789")
+ *          gelesen und koennen durch Programmargumente der Form "port=56789" ueberschrieben werden.
+ */
+public class ServerConfig {
+
+	/**
+	 * Ausfuehrungsmodus des Servers
+	 */
+	public enum Mode {
+		PLATFORM, // ein blockierender Handler pro Verbindung auf einem Plattform-Thread (Legacy)
+		VIRTUAL, // ein blockierender Handler pro Verbindung auf einem virtuellen Thread (ab Java 21)
+		NIO // wenige Event-Loops mit Selector fuer alle Verbindungen
+	}
+
+	/**
+	 * Verhalten, wenn die Ausgangs-Warteschlange eines Clients voll ist
+	 */
+	public enum OverflowPolicy {
+		DROP_OLDEST, // aelteste wartende Nachricht verwerfen
+		DISCONNECT, // langsamen Client trennen
+		BACKPRESSURE // Reserve nutzen, Sender nach dem Broadcast warten lassen (bis zum Timeout, danach trennen)
+	}
+
+	/**
+	 * Verhalten, wenn ein Client mehr Zeilen oder Bytes schickt, als seine Limits erlauben
+	 */
+	public enum RateLimitPolicy {
+		THROTTLE, // nicht weiterlesen, bis das Limit es wieder zulaesst (Rueckstau bis in den Client)
+		DROP // Zeilen ueber dem Limit verwerfen
+	}
+
+	private static final String PREFIX = "chat.";
+
+	private final Properties props;
+
+	private ServerConfig(Properties props) {
+		this.props = props;
+	}
+
+	/**
+	 * Liest die Konfiguration aus den System-Properties und den Programmargumenten
+	 * @param args , Argumente der Form key=value
+	 * @return die Konfiguration
+	 */
+	public static ServerConfig load(String... args) {
+		Properties props = new Properties();
+		for(String key : System.getProperties().stringPropertyNames()) {
+			if(key.startsWith(PREFIX)) {
+				props.setProperty(key.substring(PREFIX.length()), System.getProperty(key));
+			}
+		}
+		for(String arg : args) {
+			int idx = arg.indexOf('=');
+			if(idx <= 0) {
+				throw new IllegalArgumentException("Argument muss die Form key=value haben: " + arg);
+			}
+			props.setProperty(arg.substring(0, idx).trim(), arg.substring(idx + 1).trim());
+		}
+		return new ServerConfig(props);
+	}
+
+	/**
+	 * @return TCP-Port des Servers
+	 */
+	public int getPort() {
+		return getInt("port", 56789);
+	}
+
+	/**
+	 * @return Ausfuehrungsmodus, Standard ist NIO
+	 */
+	public Mode getMode() {
+		String mode = props.getProperty("mode", "nio").trim().toUpperCase();
+		return mode.equals("THREAD") ? Mode.PLATFORM : Mode.valueOf(mode); // "thread" als alter Name fuer PLATFORM
+	}
+
+	/**
+	 * @return Anzahl der Event-Loop-Threads im NIO-Modus
+	 */
+	public int getEventLoops() {
+		return getInt("eventLoops", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return maximale Anzahl gleichzeitiger Verbindungen (in allen Modi)
+	 */
+	public int getMaxConnections() {
+		return getInt("maxConnections", 10000);
+	}
+
+	/**
+	 * @return Laenge der Warteschlange angenommener, aber noch nicht abgeholter Verbindungen im Kernel (Backlog des
+	 *         Server-Sockets)
+	 */
+	public int getAcceptBacklog() {
+		return getInt("acceptBacklog", 1024);
+	}
+
+	/**
+	 * @return erlaubte Verbindungsaufbauten pro Sekunde und Client-Adresse; wer mehr aufbaut, wird sofort
+	 *         abgewiesen. 0 = unbegrenzt
+	 */
+	public double getConnectRate() {
+		return getDouble("connectRate", 0);
+	}
+
+	/**
+	 * @return Verbindungsaufbauten, die eine Adresse auf einmal ueber connectRate hinaus vornehmen darf
+	 */
+	public double getConnectBurst() {
+		return getDouble("connectBurst", 20);
+	}
+
+	/**
+	 * @return erlaubte Zeilen bzw. Frames pro Sekunde und Verbindung (nach der Anmeldung); 0 = unbegrenzt
+	 */
+	public double getMessageRate() {
+		return getDouble("messageRate", 0);
+	}
+
+	/**
+	 * @return Zeilen, die ein Client auf einmal ueber messageRate hinaus schicken darf
+	 */
+	public double getMessageBurst() {
+		return getDouble("messageBurst", 50);
+	}
+
+	/**
+	 * @return erlaubte Bytes pro Sekunde und Verbindung (nach der Anmeldung); 0 = unbegrenzt
+	 */
+	public double getByteRate() {
+		return getDouble("byteRate", 0);
+	}
+
+	/**
+	 * @return Bytes, die ein Client auf einmal ueber byteRate hinaus schicken darf (mindestens maxLineLength)
+	 */
+	public double getByteBurst() {
+		return getDouble("byteBurst", 65536);
+	}
+
+	/**
+	 * @return Verhalten ueber dem Limit, Standard ist THROTTLE
+	 */
+	public RateLimitPolicy getRateLimitPolicy() {
+		return RateLimitPolicy.valueOf(props.getProperty("rateLimitPolicy", "throttle").trim().toUpperCase());
+	}
+
+	/**
+	 * @return Millisekunden ohne Eingang vom Client, nach denen der Server /PING schickt; 0 schaltet Heartbeats
+	 *         und das Abbauen toter Verbindungen ab
+	 */
+	public long getHeartbeatInterval() {
+		return getLong("heartbeatInterval", 30000);
+	}
+
+	/**
+	 * @return Millisekunden nach dem /PING, nach denen eine Verbindung ohne jeden Eingang abgebaut wird
+	 */
+	public long getHeartbeatTimeout() {
+		return getLong("heartbeatTimeout", 10000);
+	}
+
+	/**
+	 * @return Dauer eines Ticks des TimerWheels in Millisekunden (Genauigkeit der Heartbeats)
+	 */
+	public long getTimerTick() {
+		return getLong("timerTick", 100);
+	}
+
+	/**
+	 * @return Mindestgroesse eines Binaer-Frames in Bytes, ab der es fuer Clients mit "deflate" komprimiert wird;
+	 *         0 = Kompression nicht anbieten
+	 */
+	public int getCompressThreshold() {
+		return getInt("compressThreshold", 512);
+	}
+
+	/**
+	 * @return Kompressionsstufe 1 (schnell) bis 9 (klein); schnelle Stufen genuegen fuer Chat-Text
+	 */
+	public int getCompressLevel() {
+		return Math.max(1, Math.min(9, getInt("compressLevel", 1)));
+	}
+
+	/**
+	 * @return true, wenn Beitritt und Abmeldung allen Mitgliedern mitgeteilt werden. In sehr grossen Raeumen
+	 *         (Lasttests) kann das abgeschaltet werden, da jeder Beitritt eine Nachricht an alle erzeugt.
+	 */
+	public boolean isJoinNotices() {
+		return getBoolean("joinNotices", true);
+	}
+
+	/**
+	 * @return Kapazitaet der Ausgangs-Warteschlange pro Client (Anzahl Nachrichten)
+	 */
+	public int getOutboundQueueSize() {
+		return getInt("outboundQueueSize", 1024);
+	}
+
+	/**
+	 * @return Verhalten bei voller Ausgangs-Warteschlange, Standard ist DROP_OLDEST
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.valueOf(props.getProperty("overflowPolicy", "drop_oldest").trim().toUpperCase());
+	}
+
+	/**
+	 * @return maximale Wartezeit des Senders bei BACKPRESSURE in Millisekunden; gewartet wird nach dem Broadcast,
+	 *         ausserhalb der Sperre des Raums und nie in einer Event-Loop
+	 */
+	public long getBackpressureTimeout() {
+		return getLong("backpressureTimeout", 1000);
+	}
+
+	/**
+	 * @return Zeitfenster in Mikrosekunden, in dem ein Writer auf weitere Frames wartet, bevor er schreibt. 0 schreibt
+	 *         sofort alles, was bereits wartet (ohne zusaetzliche Latenz).
+	 */
+	public long getCoalesceWindowMicros() {
+		return getLong("coalesceWindowMicros", 0);
+	}
+
+	/**
+	 * @return maximale Anzahl Bytes, die in einem Write zusammengefasst werden (Groesse des Schreibpuffers)
+	 */
+	public int getCoalesceBytes() {
+		return getInt("coalesceBytes", 16384);
+	}
+
+	/**
+	 * @return true, wenn kein Log-Fenster erzeugt werden soll. Standard: true, wenn kein Display vorhanden ist
+	 */
+	public boolean isHeadless() {
+		return getBoolean("headless", GraphicsEnvironment.isHeadless());
+	}
+
+	/**
+	 * @return Name der Log-Datei; "none" oder leer schaltet das Datei-Log ab
+	 */
+	public String getLogFile() {
+		return getString("logFile", "chat-server.log").trim();
+	}
+
+	/**
+	 * @return Groesse in Bytes, ab der die Log-Datei rolliert
+	 */
+	public long getLogMaxBytes() {
+		return getLong("logMaxBytes", 10L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Anzahl aufbewahrter alter Log-Dateien
+	 */
+	public int getLogMaxFiles() {
+		return getInt("logMaxFiles", 5);
+	}
+
+	/**
+	 * @return Kapazitaet des Log-Ringpuffers (wird auf eine Zweierpotenz aufgerundet)
+	 */
+	public int getLogBufferSize() {
+		return getInt("logBufferSize", 8192);
+	}
+
+	/**
+	 * @return maximale Zeilenzahl im Log-Fenster
+	 */
+	public int getLogWindowLines() {
+		return getInt("logWindowLines", 5000);
+	}
+
+	/**
+	 * @return maximale Laenge einer Protokollzeile in Bytes
+	 */
+	public int getMaxLineLength() {
+		return getInt("maxLineLength", 8192);
+	}
+
+	/**
+	 * @return Anzahl der Threads, die die Chat-Nachrichten der Raeume verteilen (Standard: einer pro Kern). 0 verteilt
+	 *         im Thread des Absenders, nur unter der Sperre des Raums.
+	 */
+	public int getRoomShards() {
+		return getInt("roomShards", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return Kapazitaet der Eingangs-Warteschlange eines Raums (Anzahl Nachrichten); ist sie voll, wartet der
+	 *         Absender
+	 */
+	public int getRoomQueueSize() {
+		return getInt("roomQueueSize", 1024);
+	}
+
+	/**
+	 * @return true, wenn die Kennzahlen des Servers ueber JMX veroeffentlicht werden
+	 */
+	public boolean isJmx() {
+		return getBoolean("jmx", true);
+	}
+
+	/**
+	 * @return Nicknames, die /STAT abfragen duerfen (kommagetrennt, Standard: niemand). Nicknames sind nicht
+	 *         authentifiziert; fuer mehr Schutz die Kennzahlen nur ueber JMX abrufen.
+	 */
+	public Set<String> getAdmins() {
+		Set<String> admins = new HashSet<String>(Arrays.asList(getString("admins", "").split(",")));
+		admins.remove("");
+		return admins;
+	}
+
+	/**
+	 * @return Verzeichnis des Nachrichten-Journals, "none" = kein Journal
+	 */
+	public String getJournalDir() {
+		return getString("journalDir", "journal").trim();
+	}
+
+	/**
+	 * @return Groesse eines Journal-Segments in Bytes
+	 */
+	public int getJournalSegmentBytes() {
+		return getInt("journalSegmentBytes", 64 * 1024 * 1024);
+	}
+
+	/**
+	 * @return Anzahl aufbewahrter Journal-Segmente
+	 */
+	public int getJournalMaxSegments() {
+		return getInt("journalMaxSegments", 16);
+	}
+
+	/**
+	 * @return Anzahl Nachrichten, die einem neuen Benutzer beim Beitritt vorgespielt werden
+	 */
+	public int getHistoryOnJoin() {
+		return getInt("historyOnJoin", 20);
+	}
+
+	/**
+	 * @return maximale Anzahl Nachrichten pro Abruf der Historie
+	 */
+	public int getHistoryMax() {
+		return getInt("historyMax", 500);
+	}
+
+	/**
+	 * @return Port, auf dem andere Knoten des Verbunds Verbindungen aufbauen (Federation); -1 = keine eingehenden
+	 *         Verbindungen, 0 = beliebiger freier Port
+	 */
+	public int getPeerPort() {
+		return getInt("peerPort", -1);
+	}
+
+	/**
+	 * @return Adressen (host:port, kommagetrennt) der Knoten, zu denen dieser Knoten selbst Verbindungen aufbaut.
+	 *         Es genuegt, wenn von jedem Paar ein Knoten den anderen kennt; der andere muss ihn dann ueber
+	 *         peerAllow oder peerSecret zulassen.
+	 */
+	public List<InetSocketAddress> getPeers() {
+		List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+		for(String peer : getString("peers", "").split(",")) {
+			peer = peer.trim();
+			if(!peer.isEmpty()) {
+				int idx = peer.lastIndexOf(':');
+				if(idx <= 0) {
+					throw new IllegalArgumentException("Peer muss die Form host:port haben: " + peer);
+				}
+				peers.add(new InetSocketAddress(peer.substring(0, idx), Integer.parseInt(peer.substring(idx + 1))));
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * @return Rechner (kommagetrennt), die Verbindungen auf peerPort aufbauen duerfen; "*" = alle (nur mit
+	 *         peerSecret sinnvoll). Leer = mit peerSecret alle, sonst nur die Rechner aus "peers" und Loopback.
+	 */
+	public List<String> getPeerAllow() {
+		List<String> hosts = new ArrayList<String>();
+		for(String host : getString("peerAllow", "").split(",")) {
+			host = host.trim();
+			if(!host.isEmpty()) {
+				hosts.add(host);
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * @return gemeinsames Geheimnis der Knoten des Verbunds; ist es gesetzt, beweisen beide Seiten einer Verbindung
+	 *         beim Handshake, dass sie es kennen (HMAC ueber eine Zufallszahl der Gegenseite). Leer = keine Pruefung,
+	 *         dann schuetzt nur peerAllow den Port.
+	 */
+	public String getPeerSecret() {
+		return getString("peerSecret", "");
+	}
+
+	/**
+	 * @return eindeutiger Name dieses Knotens im Verbund; leer = Rechnername und Client-Port
+	 */
+	public String getNodeId() {
+		return getString("nodeId", "").trim();
+	}
+
+	/**
+	 * @return maximale Wartezeit in Millisekunden auf die Zustimmung der anderen Knoten zu einem Nickname; wer bis
+	 *         dahin nicht antwortet, gilt als einverstanden
+	 */
+	public long getPeerClaimTimeout() {
+		return getLong("peerClaimTimeout", 2000);
+	}
+
+	/**
+	 * @return Kapazitaet der Ausgangs-Warteschlange einer Verbindung zu einem anderen Knoten; laeuft sie ueber, wird
+	 *         die Verbindung getrennt und neu aufgebaut
+	 */
+	public int getPeerQueueSize() {
+		return getInt("peerQueueSize", 65536);
+	}
+
+	int getInt(String key, int defaultValue) {
+		String value = props.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	long getLong(String key, long defaultValue) {
+		String value = props.getProperty(key);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	double getDouble(String key, double defaultValue) {
+		String value = props.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+
+	boolean getBoolean(String key, boolean defaultValue) {
+		String value = props.getProperty(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	String getString(String key, String defaultValue) {
+		return props.getProperty(key, defaultValue);
+	}
+
+	@Override
+	public String toString() {
+		return props.toString();
+	}
+}
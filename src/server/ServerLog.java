@@ -0,0 +1,247 @@
+package server;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Asynchrones Server-Log. Die Handler legen Ereignisse nur in einem begrenzten, lock-freien Ringpuffer
+ *          ab; ein einzelner Consumer-Thread formatiert sie, schreibt sie in eine rollierende Log-Datei und haengt sie
+ *          (falls vorhanden) gesammelt im Event Dispatch Thread an das Log-Fenster an. Ist der Ringpuffer voll, wird
+ *          das Ereignis verworfen und gezaehlt, der Aufrufer wartet nie.
+ */
+class ServerLog {
+
+	private static final int MAX_BATCH = 256; // Ereignisse pro Durchlauf des Consumers
+
+	// Ringpuffer (mehrere Produzenten, ein Consumer); seq[i] zeigt an, ob Slot i frei oder belegt ist
+	private final int mask;
+	private final AtomicLongArray seq;
+	private final long[] times;
+	private final String[] names;
+	private final String[] messages;
+	private final Frame[] lines; // fertige Protokollzeilen, werden erst vom Consumer dekodiert
+	private final AtomicLong tail = new AtomicLong(); // naechste Schreibposition der Produzenten
+	private long head; // naechste Leseposition, nur Consumer
+
+	private final AtomicLong dropped = new AtomicLong(); // wegen vollem Puffer verworfene Ereignisse
+
+	private final RollingFileSink file; // null = kein Datei-Log
+	private final JTextArea textArea; // null = headless
+	private final JScrollPane scrollPane;
+	private final int maxWindowLines;
+
+	private final Thread consumer;
+	private volatile boolean waiting; // Consumer schlaeft und muss geweckt werden
+	private volatile boolean running = true;
+
+	/**
+	 * Konstruktor, startet den Consumer-Thread
+	 * @param config , Groesse des Ringpuffers und Einstellungen der Log-Datei
+	 * @param textArea , Anzeigebereich des Log-Fensters oder null (headless)
+	 * @param scrollPane , Scrollbereich um textArea oder null
+	 */
+	ServerLog(ServerConfig config, JTextArea textArea, JScrollPane scrollPane) throws IOException {
+		int capacity = Integer.highestOneBit(Math.max(2, config.getLogBufferSize() - 1)) << 1; // Zweierpotenz
+		this.mask = capacity - 1;
+		this.seq = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++) {
+			seq.set(i, i);
+		}
+		this.times = new long[capacity];
+		this.names = new String[capacity];
+		this.messages = new String[capacity];
+		this.lines = new Frame[capacity];
+
+		String fileName = config.getLogFile();
+		this.file = fileName.isEmpty() || fileName.equals("none") ? null
+				: new RollingFileSink(fileName, config.getLogMaxBytes(), config.getLogMaxFiles());
+		this.textArea = textArea;
+		this.scrollPane = scrollPane;
+		this.maxWindowLines = config.getLogWindowLines();
+
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "server-log");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Legt ein Ereignis im Format "(hh:mm) <name>: <message>" ab. Blockiert nie.
+	 * @param name , des Users
+	 * @param message , die eigentliche Nachricht
+	 * @return false, wenn der Puffer voll war und das Ereignis verworfen wurde
+	 */
+	boolean log(String name, String message) {
+		return offer(name, message, null);
+	}
+
+	/**
+	 * Legt eine fertig kodierte Protokollzeile ab, z.B. die verteilte Nachricht "/MSGE(hh:mm) <name>: ...".
+	 * Geschrieben wird sie ohne den Befehl (die ersten fuenf Zeichen); dekodiert wird erst im Consumer, der Aufrufer
+	 * erzeugt also keinen String.
+	 * @param line , die Protokollzeile
+	 * @return false, wenn der Puffer voll war und das Ereignis verworfen wurde
+	 */
+	boolean logLine(Frame line) {
+		return offer(null, null, line);
+	}
+
+	private boolean offer(String name, String message, Frame line) {
+		long pos = tail.get();
+		while(true) {
+			int idx = (int) pos & mask;
+			long diff = seq.get(idx) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					times[idx] = System.currentTimeMillis();
+					names[idx] = name;
+					messages[idx] = message;
+					lines[idx] = line;
+					seq.lazySet(idx, pos + 1); // Slot fuer den Consumer freigeben
+					if(waiting) {
+						LockSupport.unpark(consumer);
+					}
+					return true;
+				}
+				pos = tail.get();
+			} else if(diff < 0) {
+				dropped.incrementAndGet(); // Puffer voll
+				return false;
+			} else {
+				pos = tail.get(); // ein anderer Produzent war schneller
+			}
+		}
+	}
+
+	/**
+	 * Legt eine Zeile ohne Zeitstempel und Namen ab (z.B. Startinformationen)
+	 */
+	boolean info(String line) {
+		return log(null, line);
+	}
+
+	/**
+	 * @return Anzahl der verworfenen Ereignisse
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Schreibt noch wartende Ereignisse und schliesst die Log-Datei
+	 */
+	void close() {
+		running = false;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join(5000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Consumer: holt Ereignisse stapelweise aus dem Ringpuffer und schreibt sie in die Senken
+	 */
+	private void consume() {
+		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm"); // nur dieser Thread formatiert
+		Date date = new Date();
+		StringBuilder batch = new StringBuilder();
+		long reportedDrops = 0;
+		while(true) {
+			batch.setLength(0);
+			int count = 0;
+			while(count < MAX_BATCH) {
+				int idx = (int) head & mask;
+				if(seq.get(idx) != head + 1) {
+					break; // leer
+				}
+				if(lines[idx] != null) {
+					String line = lines[idx].toString();
+					batch.append(line, Math.min(5, line.length()), line.length()).append('\n');
+					lines[idx] = null;
+				} else if(names[idx] == null) {
+					batch.append(messages[idx]).append('\n');
+				} else {
+					date.setTime(times[idx]);
+					batch.append('(').append(sdf.format(date)).append(") ").append(names[idx]).append(": ")
+							.append(messages[idx]).append('\n');
+				}
+				names[idx] = null;
+				messages[idx] = null;
+				seq.lazySet(idx, head + mask + 1); // Slot fuer die naechste Runde freigeben
+				head++;
+				count++;
+			}
+			long drops = dropped.get();
+			if(drops != reportedDrops) {
+				batch.append("--- ").append(drops - reportedDrops).append(" log events dropped ---\n");
+				reportedDrops = drops;
+			}
+
+			if(batch.length() > 0) {
+				write(batch.toString());
+			} else if(!running) {
+				break;
+			} else {
+				waiting = true;
+				if(seq.get((int) head & mask) == head + 1) {
+					waiting = false; // zwischenzeitlich etwas angekommen
+					continue;
+				}
+				LockSupport.parkNanos(100000000L);
+				waiting = false;
+			}
+		}
+		if(file != null) {
+			file.close();
+		}
+	}
+
+	private void write(final String lines) {
+		if(file != null) {
+			try {
+				file.write(lines);
+			} catch(IOException e) {
+				System.err.println("Log-Datei: " + e);
+			}
+		}
+		if(textArea != null) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					appendToWindow(lines);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Haengt einen Stapel an das Log-Fenster an und kuerzt es auf die maximale Zeilenzahl. Laeuft im EDT.
+	 */
+	private void appendToWindow(String lines) {
+		textArea.append(lines);
+		int excess = textArea.getLineCount() - maxWindowLines;
+		if(excess > 0) {
+			try {
+				textArea.replaceRange("", 0, textArea.getLineEndOffset(excess - 1));
+			} catch(BadLocationException e) {
+			}
+		}
+		scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum());
+	}
+}
@@ -0,0 +1,311 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Eingebaute Kennzahlen des Chat-Servers, ueber JMX (ServerMetricsMBean) und den Admin-Befehl /STAT
+ *          abrufbar. Aufzeichnen ist billig genug fuer den Dauerbetrieb: Zaehler sind LongAdder (keine gemeinsame
+ *          Cache-Zeile zwischen Threads), Dauern gehen in ein LatencyHistogram und werden fast ausschliesslich unter
+ *          der Sperre von writers aufgezeichnet, also ohne Konkurrenz. Die Gauges (Verbindungsplaetze, Tiefe der
+ *          Ausgangs-Warteschlangen) werden erst beim Abruf ermittelt und kosten im Betrieb nichts.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+
+	private static final double MICROS = 1e3;
+	private static final int REPORTED_ROOMS = 10; // /STAT nennt nur die Raeume mit der hoechsten Rate
+
+	final LongAdder connectionsOpened = new LongAdder();
+	final LongAdder connectionsClosed = new LongAdder();
+	final LongAdder rejectedFull = new LongAdder(); // abgewiesen, alle Plaetze belegt
+	final LongAdder rejectedRate = new LongAdder(); // abgewiesen, zu viele Verbindungsaufbauten der Adresse
+	final LongAdder logins = new LongAdder();
+	final LongAdder rejectedNicknames = new LongAdder();
+	final LongAdder messagesIn = new LongAdder(); // Chat-Nachrichten der Clients
+	final LongAdder messagesOut = new LongAdder(); // in Ausgangs-Warteschlangen eingereihte Frames
+	final LongAdder privateMessages = new LongAdder(); // zugestellte bzw. an den Knoten des Empfaengers geleitete
+	final LongAdder privateUndeliverable = new LongAdder(); // Empfaenger nicht angemeldet
+	final LongAdder bytesIn = new LongAdder(); // vom Socket gelesen
+	final LongAdder bytesOut = new LongAdder(); // auf den Socket geschrieben
+	final LongAdder slowConsumers = new LongAdder();
+	final LongAdder pings = new LongAdder(); // geschickte Heartbeats
+	final LongAdder idleDisconnects = new LongAdder(); // ohne Antwort auf PING abgebaut
+	final LongAdder rateLimitHits = new LongAdder(); // Zeilen ueber dem Limit ihrer Verbindung
+	final LongAdder rateLimitDrops = new LongAdder(); // davon verworfen (DROP)
+	final LongAdder compressAttempts = new LongAdder(); // Frames ueber der Schwelle
+	final LongAdder compressedFrames = new LongAdder(); // davon kleiner geworden und komprimiert verschickt
+	final LongAdder compressedBytesIn = new LongAdder(); // Groesse dieser Frames vor der Kompression
+	final LongAdder compressedBytesOut = new LongAdder(); // und danach (je Frame einmal, nicht je Empfaenger)
+	final LongAdder relayedOut = new LongAdder(); // an andere Knoten weitergeleitete Broadcasts
+	final LongAdder relayedIn = new LongAdder(); // von anderen Knoten empfangene Broadcasts
+	final LongAdder relayDuplicates = new LongAdder(); // doppelt empfangen und verworfen
+	final LongAdder peerOverflows = new LongAdder(); // wegen voller Warteschlange getrennte Knoten
+	final LongAdder peerRejects = new LongAdder(); // abgewiesene Verbindungen und verworfene Zeilen anderer Knoten
+	final LongAdder peerBytesIn = new LongAdder(); // von anderen Knoten gelesen
+	final LongAdder peerBytesOut = new LongAdder(); // an andere Knoten geschrieben
+
+	final LatencyHistogram readToBroadcast = new LatencyHistogram(); // Socket gelesen -> an alle eingereiht (ns)
+	final LatencyHistogram broadcast = new LatencyHistogram(); // Verteilen an alle Writer, bei Chat-Nachrichten
+																// inkl. Kodieren der Zeile (ns)
+	final LatencyHistogram writersLock = new LatencyHistogram(); // Haltedauer der Sperre von writers (ns)
+	final LatencyHistogram usersLock = new LatencyHistogram(); // Haltedauer der Sperre der Benutzerliste (ns)
+
+	private final ChatServer server; // liefert die Gauges
+
+	/**
+	 * Konstruktor
+	 * @param server , dessen Gauges abgefragt werden
+	 */
+	ServerMetrics(ChatServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	@Override
+	public long getConnectionsClosed() {
+		return connectionsClosed.sum();
+	}
+
+	@Override
+	public long getConnectionsActive() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	@Override
+	public long getConnectionsRejected() {
+		return rejectedFull.sum() + rejectedRate.sum();
+	}
+
+	@Override
+	public int getAvailablePermits() {
+		return server.availableConnections();
+	}
+
+	@Override
+	public int getMembers() {
+		return server.memberCount();
+	}
+
+	@Override
+	public long getLogins() {
+		return logins.sum();
+	}
+
+	@Override
+	public long getRejectedNicknames() {
+		return rejectedNicknames.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getPrivateMessages() {
+		return privateMessages.sum();
+	}
+
+	@Override
+	public long getPrivateUndeliverable() {
+		return privateUndeliverable.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getSlowConsumerDisconnects() {
+		return slowConsumers.sum();
+	}
+
+	@Override
+	public long getIdleDisconnects() {
+		return idleDisconnects.sum();
+	}
+
+	@Override
+	public long getRateLimitHits() {
+		return rateLimitHits.sum();
+	}
+
+	@Override
+	public long getRateLimitDrops() {
+		return rateLimitDrops.sum();
+	}
+
+	@Override
+	public long getCompressedFrames() {
+		return compressedFrames.sum();
+	}
+
+	@Override
+	public long getCompressionSavedBytes() {
+		return compressedBytesIn.sum() - compressedBytesOut.sum();
+	}
+
+	@Override
+	public long getLogDropped() {
+		return server.getLogDropped();
+	}
+
+	@Override
+	public int getMaxQueueDepth() {
+		return (int) server.queueDepths()[0];
+	}
+
+	@Override
+	public long getTotalQueueDepth() {
+		return server.queueDepths()[1];
+	}
+
+	@Override
+	public int getRoomCount() {
+		return server.getRooms().size();
+	}
+
+	@Override
+	public String[] getRooms() {
+		List<String> rooms = new ArrayList<String>();
+		for(Room room : busiestRooms()) {
+			rooms.add(room.describe());
+		}
+		return rooms.toArray(new String[rooms.size()]);
+	}
+
+	/**
+	 * @return alle Raeume, absteigend nach Nachrichtenrate
+	 */
+	private List<Room> busiestRooms() {
+		List<Room> rooms = new ArrayList<Room>(server.getRooms());
+		Collections.sort(rooms, new Comparator<Room>() {
+			@Override
+			public int compare(Room a, Room b) {
+				return Double.compare(b.rate(), a.rate());
+			}
+		});
+		return rooms;
+	}
+
+	@Override
+	public int getPeers() {
+		return server.peerCount();
+	}
+
+	@Override
+	public long getRelayedOut() {
+		return relayedOut.sum();
+	}
+
+	@Override
+	public long getRelayedIn() {
+		return relayedIn.sum();
+	}
+
+	@Override
+	public long getRelayDuplicates() {
+		return relayDuplicates.sum();
+	}
+
+	@Override
+	public String getReadToBroadcast() {
+		return readToBroadcast.summary(MICROS);
+	}
+
+	@Override
+	public String getBroadcastDuration() {
+		return broadcast.summary(MICROS);
+	}
+
+	@Override
+	public String getWritersLockHold() {
+		return writersLock.summary(MICROS);
+	}
+
+	@Override
+	public String getUsersLockHold() {
+		return usersLock.summary(MICROS);
+	}
+
+	@Override
+	public double percentileMicros(String histogram, double percentile) {
+		return histogram(histogram).percentile(percentile) / MICROS;
+	}
+
+	@Override
+	public void resetHistograms() {
+		readToBroadcast.reset();
+		broadcast.reset();
+		writersLock.reset();
+		usersLock.reset();
+	}
+
+	private LatencyHistogram histogram(String name) {
+		if(name.equals("readToBroadcast")) {
+			return readToBroadcast;
+		} else if(name.equals("broadcast")) {
+			return broadcast;
+		} else if(name.equals("writersLock")) {
+			return writersLock;
+		} else if(name.equals("usersLock")) {
+			return usersLock;
+		}
+		throw new IllegalArgumentException("unbekanntes Histogramm: " + name);
+	}
+
+	/**
+	 * @return die Antwort auf /STAT, eine Zeile je Gruppe; Dauern in Mikrosekunden
+	 */
+	List<String> report() {
+		long[] depths = server.queueDepths();
+		List<String> lines = new ArrayList<String>();
+		lines.add("connections opened=" + getConnectionsOpened() + " active=" + getConnectionsActive() + " permits="
+				+ getAvailablePermits() + " members=" + getMembers());
+		lines.add("rejected full=" + rejectedFull.sum() + " rate=" + rejectedRate.sum() + " rateLimit hits="
+				+ getRateLimitHits() + " drops=" + getRateLimitDrops());
+		lines.add("logins=" + getLogins() + " rejected=" + getRejectedNicknames() + " slowConsumers="
+				+ getSlowConsumerDisconnects() + " pings=" + pings.sum() + " idle=" + getIdleDisconnects()
+				+ " logDropped=" + getLogDropped());
+		lines.add("messages in=" + getMessagesIn() + " out=" + getMessagesOut() + " private=" + getPrivateMessages()
+				+ " undeliverable=" + getPrivateUndeliverable() + " bytes in=" + getBytesIn() + " out=" + getBytesOut());
+		lines.add("compressed frames=" + getCompressedFrames() + "/" + compressAttempts.sum() + " bytes="
+				+ compressedBytesIn.sum() + "->" + compressedBytesOut.sum());
+		lines.add("queueDepth max=" + depths[0] + " total=" + depths[1]);
+		List<Room> rooms = busiestRooms();
+		lines.add("rooms=" + rooms.size() + " shards=" + server.getRoomShards());
+		for(Room room : rooms.subList(0, Math.min(REPORTED_ROOMS, rooms.size()))) {
+			lines.add("  " + room.describe());
+		}
+		String federation = server.federationSummary();
+		if(federation != null) {
+			lines.add(federation + " relayed out=" + getRelayedOut() + " in=" + getRelayedIn() + " duplicates="
+					+ getRelayDuplicates() + " overflows=" + peerOverflows.sum() + " rejected=" + peerRejects.sum() + " bytes in=" + peerBytesIn.sum()
+					+ " out=" + peerBytesOut.sum());
+		}
+		lines.add("readToBroadcast(us) " + getReadToBroadcast());
+		lines.add("broadcast(us) " + getBroadcastDuration());
+		lines.add("writersLock(us) " + getWritersLockHold());
+		lines.add("usersLock(us) " + getUsersLockHold());
+		return lines;
+	}
+}
@@ -0,0 +1,93 @@
+package server;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 JMX-Schnittstelle der Kennzahlen des Chat-Servers (Standard-MBean). Zaehler laufen seit dem Start,
+ *          Histogramme seit dem Start bzw. dem letzten resetHistograms(); Dauern in Mikrosekunden.
+ */
+public interface ServerMetricsMBean {
+
+	long getConnectionsOpened();
+
+	long getConnectionsClosed();
+
+	long getConnectionsActive();
+
+	long getConnectionsRejected();
+
+	int getAvailablePermits();
+
+	int getMembers();
+
+	long getLogins();
+
+	long getRejectedNicknames();
+
+	long getMessagesIn();
+
+	long getMessagesOut();
+
+	long getPrivateMessages();
+
+	long getPrivateUndeliverable();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getSlowConsumerDisconnects();
+
+	long getIdleDisconnects();
+
+	long getRateLimitHits();
+
+	long getRateLimitDrops();
+
+	long getCompressedFrames();
+
+	long getCompressionSavedBytes();
+
+	long getLogDropped();
+
+	int getMaxQueueDepth();
+
+	long getTotalQueueDepth();
+
+	int getRoomCount();
+
+	/**
+	 * @return je Raum Mitglieder, Nachrichtenrate, Anzahl Nachrichten und Rueckstau
+	 */
+	String[] getRooms();
+
+	/**
+	 * @return Anzahl verbundener Knoten des Verbunds
+	 */
+	int getPeers();
+
+	long getRelayedOut();
+
+	long getRelayedIn();
+
+	long getRelayDuplicates();
+
+	String getReadToBroadcast();
+
+	String getBroadcastDuration();
+
+	String getWritersLockHold();
+
+	String getUsersLockHold();
+
+	/**
+	 * @param histogram , readToBroadcast, broadcast, writersLock oder usersLock
+	 * @param percentile , zwischen 0 und 100
+	 * @return das Perzentil in Mikrosekunden
+	 */
+	double percentileMicros(String histogram, double percentile);
+
+	/**
+	 * Setzt alle Histogramme zurueck, z.B. zu Beginn eines Messintervalls
+	 */
+	void resetHistograms();
+}
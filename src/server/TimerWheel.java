@@ -0,0 +1,151 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Hashed Timer Wheel: ein einziger Thread verwaltet beliebig viele Zeitgeber in einem Ring aus
+ *          Buckets, je einer pro Tick. Ein Zeitgeber landet im Bucket seines Ablauf-Ticks (modulo Ringgroesse) und
+ *          zaehlt mit rounds die noch ausstehenden Umlaeufe. Einreihen und Abbrechen kosten O(1), pro Tick wird nur
+ *          ein Bucket durchlaufen; die Genauigkeit ist ein Tick. Gedacht fuer viele lange, meist abgebrochene oder
+ *          verlaengerte Fristen wie Heartbeats, nicht fuer genaue Zeitmessung.
+ */
+class TimerWheel extends Thread {
+
+	/**
+	 * Ein Zeitgeber; wird vom Aufrufer abgeleitet und kann nach dem Ablauf erneut eingereiht werden
+	 */
+	abstract static class Task {
+		private Task next; // naechster Zeitgeber im Bucket, nur Wheel-Thread
+		private long rounds; // ausstehende Umlaeufe, nur Wheel-Thread
+		private long delay; // Frist beim Einreihen
+		private volatile boolean cancelled;
+
+		/**
+		 * Wird im Thread des Wheels aufgerufen, wenn die Frist abgelaufen ist; darf nicht blockieren
+		 */
+		abstract void expired();
+
+		/**
+		 * Bricht den Zeitgeber ab; er wird beim naechsten Durchlauf seines Buckets entfernt und danach nicht
+		 * wieder eingereiht
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickNanos;
+	private final Task[] buckets; // Listenkopf je Tick, nur Wheel-Thread
+	private final int mask;
+	private final Queue<Task> added = new ConcurrentLinkedQueue<Task>(); // von anderen Threads eingereiht
+	private long cursor; // naechster abzuarbeitender Tick, nur Wheel-Thread
+	private volatile long now = System.nanoTime(); // Zeit des letzten Ticks, grobe Uhr fuer die Zeitgeber
+	private volatile boolean running = true;
+
+	/**
+	 * Konstruktor
+	 * @param tickMillis , Dauer eines Ticks
+	 * @param size , Anzahl der Buckets (wird auf eine Zweierpotenz aufgerundet)
+	 */
+	TimerWheel(long tickMillis, int size) {
+		super("timer-wheel");
+		setDaemon(true);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.buckets = new Task[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Reiht einen Zeitgeber ein; aus jedem Thread. Der Zeitgeber darf nicht bereits eingereiht sein.
+	 * @param task , der Zeitgeber
+	 * @param delayNanos , Frist ab jetzt
+	 */
+	void schedule(Task task, long delayNanos) {
+		task.delay = delayNanos;
+		if(Thread.currentThread() == this) {
+			insert(task);
+		} else {
+			added.add(task);
+		}
+	}
+
+	/**
+	 * @return System.nanoTime() des letzten Ticks; kostet nur einen volatilen Lesezugriff
+	 */
+	long now() {
+		return now;
+	}
+
+	/**
+	 * Beendet den Thread; noch eingereihte Zeitgeber laufen nicht mehr ab
+	 */
+	void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		long deadline = System.nanoTime() + tickNanos;
+		while(running) {
+			long wait = deadline - System.nanoTime();
+			if(wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			now = System.nanoTime();
+			Task task;
+			while((task = added.poll()) != null) {
+				insert(task);
+			}
+			expire();
+			deadline += tickNanos;
+		}
+	}
+
+	/**
+	 * Haengt einen Zeitgeber in den Bucket seines Ablauf-Ticks; nur Wheel-Thread
+	 */
+	private void insert(Task task) {
+		if(task.cancelled) {
+			return;
+		}
+		long ticks = Math.max(0, (task.delay + tickNanos - 1) / tickNanos - 1); // Ticks nach dem naechsten
+		task.rounds = ticks / buckets.length;
+		int index = (int) ((cursor + ticks) & mask);
+		task.next = buckets[index];
+		buckets[index] = task;
+	}
+
+	/**
+	 * Laesst die faelligen Zeitgeber des aktuellen Buckets ablaufen; die anderen zaehlen einen Umlauf herunter
+	 */
+	private void expire() {
+		int index = (int) (cursor++ & mask); // was expired() neu einreiht, zaehlt ab dem naechsten Tick
+		Task task = buckets[index];
+		buckets[index] = null;
+		while(task != null) {
+			Task next = task.next;
+			task.next = null;
+			if(task.cancelled) {
+				// entfernt
+			} else if(task.rounds > 0) {
+				task.rounds--;
+				task.next = buckets[index];
+				buckets[index] = task;
+			} else {
+				try {
+					task.expired();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			task = next;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Token-Bucket: fuellt sich mit rate Marken pro Sekunde bis hoechstens burst; jede Aktion kostet eine
+ *          Marke. Kurze Spitzen bis burst werden also durchgelassen, auf Dauer aber nur rate pro Sekunde. Nicht
+ *          threadsicher, jeder Bucket gehoert einem Thread (Acceptor bzw. der lesende Thread einer Verbindung).
+ */
+class TokenBucket {
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double rate; // Marken pro Nanosekunde
+	private final double burst; // Fassungsvermoegen
+	private double tokens; // aktueller Stand
+	private long last; // System.nanoTime() der letzten Auffuellung
+
+	/**
+	 * Konstruktor, der Bucket ist anfangs voll
+	 * @param rate , Marken pro Sekunde
+	 * @param burst , Fassungsvermoegen (mindestens 1)
+	 * @param now , System.nanoTime()
+	 */
+	TokenBucket(double rate, double burst, long now) {
+		this.rate = rate / NANOS_PER_SECOND;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.last = now;
+	}
+
+	/**
+	 * Entnimmt eine Marke, falls vorhanden
+	 * @param now , System.nanoTime()
+	 * @return true, wenn die Aktion erlaubt ist
+	 */
+	boolean tryAcquire(long now) {
+		return tryAcquire(1, now);
+	}
+
+	/**
+	 * Entnimmt amount Marken, falls vorhanden
+	 * @param amount , hoechstens burst, sonst gelingt es nie
+	 * @param now , System.nanoTime()
+	 * @return true, wenn die Aktion erlaubt ist
+	 */
+	boolean tryAcquire(double amount, long now) {
+		refill(now);
+		if(tokens < amount) {
+			return false;
+		}
+		tokens -= amount;
+		return true;
+	}
+
+	/**
+	 * @param amount , benoetigte Marken, hoechstens burst
+	 * @param now , System.nanoTime()
+	 * @return Nanosekunden, bis amount Marken vorhanden sind; 0 = sofort
+	 */
+	long nanosUntil(double amount, long now) {
+		refill(now);
+		return tokens >= amount ? 0 : (long) Math.ceil((amount - tokens) / rate);
+	}
+
+	/**
+	 * @return Fassungsvermoegen
+	 */
+	double burst() {
+		return burst;
+	}
+
+	/**
+	 * @param now , System.nanoTime()
+	 * @return true, wenn der Bucket wieder voll ist, also seit einer Weile nicht benutzt wurde
+	 */
+	boolean isFull(long now) {
+		refill(now);
+		return tokens >= burst;
+	}
+
+	private void refill(long now) {
+		if(now - last > 0) { // Zeitstempel aelterer Lesevorgaenge fuellen nichts auf
+			tokens = Math.min(burst, tokens + (now - last) * rate);
+			last = now;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.BinaryProtocol;
+
+/**
+ * @author Marc Kaepke & Anna Steinhauer
+ * @version 2.0 Verzeichnis der angemeldeten Benutzer (Nickname -> Verbindung). Ein Nickname wird atomar per
+ *          putIfAbsent reserviert, ohne globale Sperre, und erhaelt eine kompakte User-ID fuer das Binaerprotokoll.
+ *          Die Antwort auf /USRS wird als fertig kodierte Frames in einem versionierten Schnappschuss gehalten, der
+ *          nur nach einem Beitritt oder Verlassen (beim naechsten Abruf) neu aufgebaut wird; jede weitere Anfrage
+ *          kostet unabhaengig von der Raumgroesse gleich viel.
+ */
+class UserRegistry {
+
+	private static final Frame HEADER = Frame.of("/MSGE        list of users:", null);
+	private static final Frame ALONE = Frame.of("/MSGEyou are alone :(", null);
+
+	private final ConcurrentHashMap<String, Member> users = new ConcurrentHashMap<String, Member>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicLong version = new AtomicLong(); // wird bei jeder Aenderung erhoeht
+	private volatile Snapshot snapshot = new Snapshot(-1, new Frame[0], null);
+	private final LatencyHistogram lockHold; // Haltedauer der Sperre beim Neuaufbau (ns)
+
+	/**
+	 * Konstruktor
+	 * @param lockHold , zeichnet auf, wie lange der Neuaufbau des Schnappschusses die Sperre haelt
+	 */
+	UserRegistry(LatencyHistogram lockHold) {
+		this.lockHold = lockHold;
+	}
+
+	/**
+	 * Eintrag eines angemeldeten Benutzers
+	 */
+	private static final class Member {
+		private final int id;
+		private final Connection connection;
+
+		Member(int id, Connection connection) {
+			this.id = id;
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Unveraenderliche, fertig kodierte Benutzerliste
+	 */
+	static final class Snapshot {
+		private final long version;
+		private final Frame[] frames;
+		private final Frame table;
+
+		private Snapshot(long version, Frame[] frames, Frame table) {
+			this.version = version;
+			this.frames = frames;
+			this.table = table;
+		}
+
+		/**
+		 * @return die Frames der /USRS-Antwort (nicht veraendern); jeder Client erhaelt die seines Protokolls
+		 */
+		Frame[] frames() {
+			return frames;
+		}
+
+		/**
+		 * @return nur Binaerprotokoll: Zuordnung aller User-IDs zu Nicknames
+		 */
+		Frame table() {
+			return table;
+		}
+
+		long version() {
+			return version;
+		}
+	}
+
+	/**
+	 * Reserviert den Nickname, falls er noch nicht vergeben ist
+	 * @param name , gewuenschter Nickname
+	 * @param connection , Verbindung des Benutzers
+	 * @return die neue User-ID oder -1, wenn der Nickname vergeben ist
+	 */
+	int register(String name, Connection connection) {
+		Member member = new Member(nextId.getAndIncrement(), connection);
+		if(users.putIfAbsent(name, member) == null) {
+			version.incrementAndGet();
+			return member.id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gibt den Nickname wieder frei, sofern er noch dieser Verbindung gehoert
+	 */
+	void unregister(String name, Connection connection) {
+		Member member = users.get(name);
+		if(member != null && member.connection == connection && users.remove(name, member)) {
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return die Verbindung zum Nickname oder null
+	 */
+	Connection get(String name) {
+		Member member = users.get(name);
+		return member == null ? null : member.connection;
+	}
+
+	/**
+	 * @return alle reservierten Nicknames (Sicht, schwach konsistent)
+	 */
+	Collection<String> names() {
+		return users.keySet();
+	}
+
+	/**
+	 * @return Anzahl angemeldeter Benutzer
+	 */
+	int size() {
+		return users.size();
+	}
+
+	/**
+	 * Liefert den aktuellen Schnappschuss; ist er veraltet, wird er einmal neu aufgebaut
+	 */
+	Snapshot snapshot() {
+		Snapshot current = snapshot;
+		if(current.version == version.get()) {
+			return current;
+		}
+		synchronized(this) {
+			long locked = System.nanoTime();
+			current = snapshot;
+			long v = version.get(); // vor dem Durchlauf lesen: spaetere Aenderungen erzwingen einen neuen Aufbau
+			if(current.version != v) {
+				current = encode(v);
+				snapshot = current;
+			}
+			lockHold.record(System.nanoTime() - locked);
+			return current;
+		}
+	}
+
+	private Snapshot encode(long v) {
+		StringBuilder allUsers = new StringBuilder("/MSGE        ");
+		int count = 0;
+		int tableBytes = 4;
+		byte[][] names = new byte[users.size() + 16][]; // Puffer, falls waehrenddessen jemand beitritt
+		int[] ids = new int[names.length];
+		for(Map.Entry<String, Member> entry : users.entrySet()) {
+			if(count == names.length) {
+				break;
+			}
+			allUsers.append('[').append(entry.getKey()).append("] ");
+			names[count] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			ids[count] = entry.getValue().id;
+			tableBytes += 6 + names[count].length;
+			count++;
+		}
+
+		ByteBuffer table = BinaryProtocol.allocate(BinaryProtocol.USRS, tableBytes);
+		table.putInt(count);
+		for(int i = 0; i < count; i++) {
+			table.putInt(ids[i]).putShort((short) names[i].length).put(names[i]);
+		}
+		table.flip();
+
+		Frame[] frames = count <= 1 ? new Frame[] { ALONE }
+				: new Frame[] { HEADER, Frame.of(allUsers.toString(), null) };
+		return new Snapshot(v, frames, Frame.binaryOnly(table));
+	}
+}